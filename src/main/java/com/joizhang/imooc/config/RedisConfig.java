@@ -1,5 +1,8 @@
 package com.joizhang.imooc.config;
 
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.joizhang.imooc.session.shard.RebalanceMode;
+import com.joizhang.imooc.session.shard.ShardedRedisConnectionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -7,13 +10,18 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.annotation.Order;
 import org.springframework.core.env.Environment;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * @author joizhang
  */
@@ -39,24 +47,77 @@ public class RedisConfig {
     @Bean
     @Primary
     public StringRedisTemplate redisTemplate() {
-        StringRedisTemplate redisTemplate = new StringRedisTemplate(connectionFactory());
+        StringRedisTemplate redisTemplate = new StringRedisTemplate(sessionConnectionFactory());
         redisTemplate.setKeySerializer(stringRedisSerializer());
-        redisTemplate.setValueSerializer(jdkSerializationRedisSerializer());
+        redisTemplate.setValueSerializer(shiroSessionRedisSerializer());
         return redisTemplate;
     }
 
     @Bean
-    public JedisConnectionFactory connectionFactory() {
+    public RedisConnectionFactory connectionFactory() {
+        return newConnectionFactory(getPropertyFormEnv("redis.host"), getIntPropertyFormEnv("redis.port"));
+    }
+
+    /**
+     * redis.client=lettuce时使用Lettuce：所有非阻塞命令在一个共享连接上多路复用，不再需要连接池；
+     * 否则使用Jedis连接池
+     */
+    private RedisConnectionFactory newConnectionFactory(String host, int port) {
+        if ("lettuce".equalsIgnoreCase(getPropertyFormEnv("redis.client"))) {
+            LettuceConnectionFactory connection = new LettuceConnectionFactory(host, port);
+            connection.setPassword(getPropertyFormEnv("redis.passWord"));
+            connection.setTimeout(getIntPropertyFormEnv("redis.timeout"));
+            connection.setDatabase(getIntPropertyFormEnv("redis.database"));
+            connection.setShareNativeConnection(true);
+            return connection;
+        }
         JedisConnectionFactory connection = new JedisConnectionFactory();
-        connection.setHostName(getPropertyFormEnv("redis.host"));
+        connection.setHostName(host);
         connection.setPassword(getPropertyFormEnv("redis.passWord"));
-        connection.setPort(getIntPropertyFormEnv("redis.port"));
+        connection.setPort(port);
         connection.setTimeout(getIntPropertyFormEnv("redis.timeout"));
         connection.setDatabase(getIntPropertyFormEnv("redis.database"));
         connection.setPoolConfig(jedisPoolConfig());
         return connection;
     }
 
+    /**
+     * 配置了redis.shards(host:port,host:port,...)时Session按一致性hash分布到多个Redis节点，
+     * 分片名称为host:port，扩容时保持已有节点的写法不变；否则使用单个Redis。
+     * 改变redis.shards后重启时，把改变前的分片写在redis.shards.previous中，迁移窗口内按原分片迁移已有的Session，
+     * 窗口结束后清空该配置
+     */
+    @Bean
+    public RedisConnectionFactory sessionConnectionFactory() {
+        String shards = getPropertyFormEnv("redis.shards");
+        if (shards == null || shards.trim().isEmpty()) {
+            return connectionFactory();
+        }
+        // 新旧分片中同名的节点共用一个连接工厂，迁移时据此判断key是否换了分片
+        Map<String, RedisConnectionFactory> connectionFactories = new LinkedHashMap<>();
+        ShardedRedisConnectionFactory sharded = new ShardedRedisConnectionFactory();
+        sharded.setVirtualNodes(getIntPropertyFormEnv("redis.shards.virtualNodes"));
+        sharded.setRebalanceMode(RebalanceMode.valueOf(getPropertyFormEnv("redis.shards.rebalanceMode")));
+        String previousShards = getPropertyFormEnv("redis.shards.previous");
+        if (previousShards != null && !previousShards.trim().isEmpty()) {
+            sharded.setPreviousShards(shardConnectionFactories(previousShards, connectionFactories));
+        }
+        sharded.setShards(shardConnectionFactories(shards, connectionFactories));
+        return sharded;
+    }
+
+    private Map<String, RedisConnectionFactory> shardConnectionFactories(
+            String shards, Map<String, RedisConnectionFactory> connectionFactories) {
+        Map<String, RedisConnectionFactory> shardConnectionFactories = new LinkedHashMap<>();
+        for (String shard : shards.split(",")) {
+            String hostAndPort = shard.trim();
+            int separator = hostAndPort.lastIndexOf(':');
+            shardConnectionFactories.put(hostAndPort, connectionFactories.computeIfAbsent(hostAndPort, name ->
+                    newConnectionFactory(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)))));
+        }
+        return shardConnectionFactories;
+    }
+
     @Bean
     public JedisPoolConfig jedisPoolConfig() {
         JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
@@ -77,4 +138,14 @@ public class RedisConfig {
         return new JdkSerializationRedisSerializer();
     }
 
+    /**
+     * Session使用紧凑的二进制编码，其余对象仍使用JDK序列化，超过redis.compressThreshold字节的数据压缩保存
+     */
+    @Bean
+    public ShiroSessionRedisSerializer shiroSessionRedisSerializer() {
+        ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer(jdkSerializationRedisSerializer());
+        serializer.setCompressThreshold(environment.getProperty("redis.compressThreshold", Integer.class, 0));
+        return serializer;
+    }
+
 }
@@ -2,6 +2,10 @@ package com.joizhang.imooc.config;
 
 import com.joizhang.imooc.realm.ShiroRealm;
 import com.joizhang.imooc.session.*;
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.joizhang.imooc.session.store.SessionStore;
+import com.lambdaworks.redis.cluster.api.async.RedisClusterAsyncCommands;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.session.mgt.SessionFactory;
 import org.apache.shiro.session.mgt.SessionManager;
@@ -13,7 +17,14 @@ import org.apache.shiro.web.session.mgt.DefaultWebSessionManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -28,9 +39,16 @@ public class ShiroConfig {
 
     private final RedisTemplate redisTemplate;
 
+    private final ShiroSessionRedisSerializer shiroSessionRedisSerializer;
+
+    private final Environment environment;
+
     @Autowired
-    public ShiroConfig(RedisTemplate redisTemplate) {
+    public ShiroConfig(RedisTemplate redisTemplate, ShiroSessionRedisSerializer shiroSessionRedisSerializer,
+                       Environment environment) {
         this.redisTemplate = redisTemplate;
+        this.shiroSessionRedisSerializer = shiroSessionRedisSerializer;
+        this.environment = environment;
     }
 
     @Bean
@@ -69,6 +87,7 @@ public class ShiroConfig {
         DefaultWebSessionManager sessionManager = new DefaultWebSessionManager();
         sessionManager.setGlobalSessionTimeout(1800);
         sessionManager.setDeleteInvalidSessions(false);
+        // 由SessionValidationSweeper在集群内分片校验，单机的校验调度器保持关闭
         sessionManager.setSessionValidationSchedulerEnabled(false);
         sessionManager.setSessionValidationInterval(1800);
         sessionManager.setSessionFactory(sessionFactory());
@@ -84,18 +103,173 @@ public class ShiroConfig {
         return new ShiroSessionFactory();
     }
 
+    /**
+     * 22个字符的URL安全Session id，每个线程使用独立的SecureRandom
+     */
+    @Bean
+    public SecureSessionIdGenerator sessionIdGenerator() {
+        return new SecureSessionIdGenerator();
+    }
+
     @Bean
     public ShiroCachingSessionDao shiroCachingSessionDao() {
-        return new ShiroCachingSessionDao(redisTemplate);
+        ShiroCachingSessionDao shiroCachingSessionDao = new ShiroCachingSessionDao(redisTemplate);
+        shiroCachingSessionDao.setCacheManager(sessionCacheManager());
+        shiroCachingSessionDao.setSessionStore(sessionStore());
+        shiroCachingSessionDao.setSessionIdGenerator(sessionIdGenerator());
+        // 未登录的Session在5秒内直接使用本地缓存
+        shiroCachingSessionDao.setAnonymousSessionValidity(5000);
+        // 异步写回在进程异常退出时会丢失最近的修改，默认关闭，redis.writeBehind=true时开启
+        if (Boolean.parseBoolean(environment.getProperty("redis.writeBehind"))) {
+            shiroCachingSessionDao.setWriteBehindFlusher(sessionWriteBehindFlusher());
+        }
+        shiroCachingSessionDao.setTouchBatcher(sessionTouchBatcher());
+        // 本地缓存的Session每秒最多检查一次版本号，版本落后时才从Redis重读
+        shiroCachingSessionDao.setVersionTable(sessionVersionTable());
+        shiroCachingSessionDao.setVersionCheckInterval(1000);
+        shiroCachingSessionDao.setExpiryIndex(sessionExpiryIndex());
+        shiroCachingSessionDao.setUserIndex(sessionUserIndex());
+        shiroCachingSessionDao.setCircuitBreaker(redisCircuitBreaker());
+        return shiroCachingSessionDao;
+    }
+
+    /**
+     * 请求线程上的Redis调用最多等待200毫秒，连续5次失败后熔断5秒，期间使用本地缓存并暂存写入
+     */
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public RedisCircuitBreaker redisCircuitBreaker() {
+        RedisCircuitBreaker redisCircuitBreaker = new RedisCircuitBreaker();
+        redisCircuitBreaker.setLatencyBudgetMillis(200);
+        redisCircuitBreaker.setFailureThreshold(5);
+        redisCircuitBreaker.setOpenMillis(5000);
+        redisCircuitBreaker.setWorkerThreads(16);
+        redisCircuitBreaker.setHealthCheck(() -> redisTemplate.execute((RedisCallback<String>) RedisConnection::ping));
+        return redisCircuitBreaker;
+    }
+
+    /**
+     * Session的持久化存储，单机部署可换成HeapSessionStore或MappedSessionStore；
+     * 使用Lettuce(redis.client=lettuce)时Session的写入和删除异步完成，不阻塞请求线程
+     */
+    @Bean(destroyMethod = "destroy")
+    @SuppressWarnings("unchecked")
+    public SessionStore sessionStore() {
+        // 单机部署不使用Redis时：new MappedSessionStore(new File("sessions.dat"))，
+        // 并以initMethod/destroyMethod注册，重启时从文件恢复索引
+        RedisConnectionFactory connectionFactory = redisTemplate.getConnectionFactory();
+        RedisSessionStore redisSessionStore;
+        if (connectionFactory instanceof LettuceConnectionFactory) {
+            // 共享的原生连接由LettuceConnectionFactory持有，关闭包装连接不会关闭它
+            RedisClusterAsyncCommands<byte[], byte[]> commands;
+            RedisConnection connection = connectionFactory.getConnection();
+            try {
+                commands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            } finally {
+                connection.close();
+            }
+            LettuceAsyncSessionStore asyncSessionStore = new LettuceAsyncSessionStore(redisTemplate, commands);
+            asyncSessionStore.setMaxInFlight(10_000);
+            asyncSessionStore.setCircuitBreaker(redisCircuitBreaker());
+            asyncSessionStore.setVersionTable(sessionVersionTable());
+            redisSessionStore = asyncSessionStore;
+        } else {
+            redisSessionStore = new RedisSessionStore(redisTemplate);
+        }
+        redisSessionStore.setRedisShiroSessionTimeout(1800);
+        redisSessionStore.setExpiryIndex(sessionExpiryIndex());
+        return redisSessionStore;
+    }
+
+    /**
+     * Session更新异步合并写回Redis，关闭时写回剩余的Session，此后的更新直接写回；仅在redis.writeBehind=true时使用
+     */
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public SessionWriteBehindFlusher sessionWriteBehindFlusher() {
+        SessionWriteBehindFlusher sessionWriteBehindFlusher = new SessionWriteBehindFlusher(redisTemplate);
+        sessionWriteBehindFlusher.setFlushIntervalMillis(5);
+        sessionWriteBehindFlusher.setBatchSize(256);
+        sessionWriteBehindFlusher.setRedisShiroSessionTimeout(1800);
+        sessionWriteBehindFlusher.setVersionTable(sessionVersionTable());
+        sessionWriteBehindFlusher.setExpiryIndex(sessionExpiryIndex());
+        sessionWriteBehindFlusher.setCircuitBreaker(redisCircuitBreaker());
+        return sessionWriteBehindFlusher;
+    }
+
+    /**
+     * Session版本表，分为256个Redis Hash
+     */
+    @Bean
+    public SessionVersionTable sessionVersionTable() {
+        SessionVersionTable sessionVersionTable = new SessionVersionTable(redisTemplate);
+        sessionVersionTable.setShards(256);
+        sessionVersionTable.setRedisShiroSessionTimeout(1800);
+        return sessionVersionTable;
+    }
+
+    /**
+     * 按过期时间排序的Session索引，分为16个有序集合
+     */
+    @Bean
+    public SessionExpiryIndex sessionExpiryIndex() {
+        SessionExpiryIndex sessionExpiryIndex = new SessionExpiryIndex(redisTemplate);
+        sessionExpiryIndex.setShards(16);
+        sessionExpiryIndex.setRedisShiroSessionTimeout(1800);
+        return sessionExpiryIndex;
     }
 
-//    @Bean
-//    public ShiroSessionRepository shiroSessionRepository() {
-//        ShiroSessionRepository shiroSessionRepository = new ShiroSessionRepository();
-//        assert redisTemplate != null;
-//        shiroSessionRepository.setRedisTemplate(redisTemplate);
-//        return shiroSessionRepository;
-//    }
+    /**
+     * Session的访问只在本地记录，每隔过期时间的1/10批量刷新一次Redis中的过期时间
+     */
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public SessionTouchBatcher sessionTouchBatcher() {
+        SessionTouchBatcher sessionTouchBatcher = new SessionTouchBatcher(redisTemplate);
+        sessionTouchBatcher.setTouchIntervalRatio(0.1);
+        sessionTouchBatcher.setBatchSize(256);
+        sessionTouchBatcher.setRedisShiroSessionTimeout(1800);
+        sessionTouchBatcher.setExpiryIndex(sessionExpiryIndex());
+        sessionTouchBatcher.setCircuitBreaker(redisCircuitBreaker());
+        return sessionTouchBatcher;
+    }
+
+    /**
+     * 用户名到sessionId的索引，用于同时登录数限制和踢出用户
+     */
+    @Bean
+    public SessionUserIndex sessionUserIndex() {
+        SessionUserIndex sessionUserIndex = new SessionUserIndex(redisTemplate);
+        sessionUserIndex.setShards(16);
+        return sessionUserIndex;
+    }
+
+    /**
+     * 各节点以Redis租约平分过期索引的分片，清扫到期的Session并在集群内只触发一次onExpiration
+     */
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public SessionValidationSweeper sessionValidationSweeper() {
+        SessionValidationSweeper sessionValidationSweeper =
+                new SessionValidationSweeper(redisTemplate, sessionExpiryIndex(), shiroCachingSessionDao());
+        sessionValidationSweeper.setSweepIntervalMillis(60_000);
+        sessionValidationSweeper.setBatchSize(200);
+        sessionValidationSweeper.setMaxSessionsPerSecond(2000);
+        sessionValidationSweeper.setRedisShiroSessionTimeout(1800);
+        sessionValidationSweeper.setSessionListeners(Collections.singletonList(shiroSessionListener()));
+        return sessionValidationSweeper;
+    }
+
+    /**
+     * 本地Session缓存，按条目数和估算字节数限制大小，过期时间与Redis中的Session一致
+     */
+    @Bean
+    public SessionCacheManager sessionCacheManager() {
+        SessionCacheManager sessionCacheManager = new SessionCacheManager();
+        sessionCacheManager.setMaximumSize(100_000);
+        sessionCacheManager.setMaximumWeight(256L * 1024 * 1024);
+        sessionCacheManager.setTimeToLiveSeconds(1800);
+        // 开启后Session以编码形式保存在堆外，maximumWeight即直接内存预算，需相应调整-XX:MaxDirectMemorySize
+        sessionCacheManager.setOffHeap(false);
+        sessionCacheManager.setSerializer(shiroSessionRedisSerializer);
+        return sessionCacheManager;
+    }
 
     @Bean
     public ShiroSessionListener shiroSessionListener() {
@@ -110,9 +284,47 @@ public class ShiroConfig {
         ShiroSessionService shiroSessionService = new ShiroSessionService();
         shiroSessionService.setRedisTemplate(redisTemplate);
         shiroSessionService.setSessionDao(shiroCachingSessionDao());
+        shiroSessionService.setInvalidationBus(sessionInvalidationBus());
+        shiroSessionService.setSessionScanner(sessionScanner());
+        shiroSessionService.setExpiryIndex(sessionExpiryIndex());
+        shiroSessionService.setUserIndex(sessionUserIndex());
+        shiroSessionService.setMaxSessionsPerUser(5);
+        shiroSessionService.setVersionTable(sessionVersionTable());
+        shiroSessionService.setPurgeScanSize(1000);
+        shiroSessionService.setPurgeDeleteBatchSize(100);
         return shiroSessionService;
     }
 
+    @Bean
+    public SessionScanner sessionScanner() {
+        return new SessionScanner(redisTemplate);
+    }
+
+    /**
+     * 10毫秒内的缓存失效通知合并为一条消息发布
+     */
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public SessionInvalidationBus sessionInvalidationBus() {
+        SessionInvalidationBus sessionInvalidationBus =
+                new SessionInvalidationBus(redisTemplate, shiroCachingSessionDao());
+        sessionInvalidationBus.setChannel("shiro.session.uncache");
+        sessionInvalidationBus.setBatchWindowMillis(10);
+        sessionInvalidationBus.setBatchSize(512);
+        return sessionInvalidationBus;
+    }
+
+    /**
+     * 订阅其他节点发出的缓存失效通知
+     */
+    @Bean
+    public RedisMessageListenerContainer sessionInvalidationListenerContainer() {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisTemplate.getConnectionFactory());
+        container.addMessageListener(sessionInvalidationBus(),
+                new ChannelTopic(sessionInvalidationBus().getChannel()));
+        return container;
+    }
+
     @Bean(name = "shiroFilter")
     public ShiroFilterFactoryBean shiroFilterFactoryBean() {
         ShiroFilterFactoryBean shiroFilterFactoryBean = new ShiroFilterFactoryBean();
@@ -1,10 +1,12 @@
 package com.joizhang.imooc.controller;
 
+import com.joizhang.imooc.session.ShiroSessionService;
 import com.joizhang.imooc.util.SHAUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.subject.Subject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -23,6 +25,9 @@ import javax.servlet.http.HttpSession;
 @Slf4j
 public class AccountController {
 
+    @Autowired
+    private ShiroSessionService shiroSessionService;
+
     /**
      * 转向登录界面
      *
@@ -58,6 +63,7 @@ public class AccountController {
                 token.setRememberMe(true);
             }
             user.login(token);
+            shiroSessionService.enforceMaxSessions(token.getUsername());
             return "redirect:/";
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -0,0 +1,204 @@
+package com.joizhang.imooc.session;
+
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.io.Serializable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 基于Lettuce异步命令的Session存储：写入和删除只把命令放到共享连接上即返回，
+ * 结果在Lettuce的事件循环线程上处理，请求线程不等待Redis应答也不占用连接。
+ * 读取仍由父类通过RedisTemplate完成，与写入走同一个共享连接，Redis按发送顺序执行，
+ * 本节点发出写入后的读取一定能读到该写入
+ *
+ * @author joizhang
+ */
+@Slf4j
+public class LettuceAsyncSessionStore extends RedisSessionStore {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 10_000;
+
+    private static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 100;
+
+    /**
+     * 已发出尚未应答的写入命令数上限，达到上限时请求线程等待
+     */
+    @Setter
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * 达到上限时等待的最长时间(毫秒)，超时抛出QueryTimeoutException
+     */
+    @Setter
+    private long acquireTimeoutMillis = DEFAULT_ACQUIRE_TIMEOUT_MILLIS;
+
+    /**
+     * 设置后异步写入的失败计入熔断器
+     */
+    @Setter
+    private RedisCircuitBreaker circuitBreaker;
+
+    /**
+     * 设置后写入Session时在同一连接上发出版本号加一，应答后写回ShiroSession的版本号，
+     * ShiroCachingSessionDao不再同步增加版本号
+     */
+    @Getter
+    @Setter
+    private SessionVersionTable versionTable;
+
+    private final RedisClusterAsyncCommands<byte[], byte[]> commands;
+
+    private final LongAdder failedWrites = new LongAdder();
+
+    private volatile Semaphore inFlight;
+
+    /**
+     * @param commands 共享连接上的异步命令，如LettuceConnectionFactory的连接的getNativeConnection()
+     */
+    public LettuceAsyncSessionStore(@NonNull final RedisTemplate<String, Session> redisTemplate,
+                                    @NonNull final RedisClusterAsyncCommands<byte[], byte[]> commands) {
+        super(redisTemplate);
+        this.commands = commands;
+    }
+
+    @Override
+    public void create(final Session session) {
+        byte[] key = rawKey(session.getId());
+        byte[] value = serialize(session);
+        SessionExpiryIndex expiryIndex = getExpiryIndex();
+        SessionVersionTable versionTable = this.versionTable;
+        acquire(1 + (expiryIndex == null ? 0 : 1) + (versionTable == null ? 0 : 2));
+        track(commands.setex(key, getRedisShiroSessionTimeout(), value));
+        if (expiryIndex != null) {
+            track(commands.zadd(expiryIndex.indexKey(session.getId()), expiryIndex.writtenScore(),
+                    SessionExpiryIndex.member(session.getId())));
+        }
+        if (versionTable != null) {
+            byte[] shardKey = versionTable.shardKey(key);
+            track(commands.hincrby(shardKey, key, 1), version -> {
+                if (session instanceof ShiroSession) {
+                    ((ShiroSession) session).setVersion(version);
+                }
+            });
+            track(commands.expire(shardKey, versionTable.getRedisShiroSessionTimeout()));
+        }
+    }
+
+    @Override
+    public void touch(final Serializable sessionId, final long lastAccessTime) {
+        long expireAt = lastAccessTime + TimeUnit.SECONDS.toMillis(getRedisShiroSessionTimeout());
+        long ttl = expireAt - System.currentTimeMillis();
+        if (ttl <= 0) {
+            return;
+        }
+        SessionExpiryIndex expiryIndex = getExpiryIndex();
+        acquire(expiryIndex == null ? 1 : 2);
+        track(commands.pexpire(rawKey(sessionId), ttl));
+        if (expiryIndex != null) {
+            track(commands.zadd(expiryIndex.indexKey(sessionId), expireAt, SessionExpiryIndex.member(sessionId)));
+        }
+    }
+
+    @Override
+    public void delete(final Serializable sessionId) {
+        SessionExpiryIndex expiryIndex = getExpiryIndex();
+        acquire(expiryIndex == null ? 1 : 2);
+        track(commands.del(rawKey(sessionId)));
+        if (expiryIndex != null) {
+            track(commands.zrem(expiryIndex.indexKey(sessionId), SessionExpiryIndex.member(sessionId)));
+        }
+    }
+
+    /**
+     * 等待已发出的写入全部应答，最多等待timeoutMillis
+     */
+    public boolean awaitPending(final long timeoutMillis) throws InterruptedException {
+        Semaphore semaphore = semaphore();
+        if (!semaphore.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        semaphore.release(maxInFlight);
+        return true;
+    }
+
+    /**
+     * 已发出尚未应答的写入命令数
+     */
+    public int getInFlightCount() {
+        return maxInFlight - semaphore().availablePermits();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWrites.sum();
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            if (!awaitPending(TimeUnit.SECONDS.toMillis(1))) {
+                log.warn("{} async session writes still pending", getInFlightCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acquire(final int permits) {
+        try {
+            if (!semaphore().tryAcquire(permits, acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new QueryTimeoutException("Too many async session writes in flight");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryTimeoutException("Interrupted while waiting for async session writes", e);
+        }
+    }
+
+    private void track(final RedisFuture<?> future) {
+        track(future, null);
+    }
+
+    /**
+     * 应答成功时先处理结果再释放许可，awaitPending返回后结果一定已处理
+     */
+    private <T> void track(final RedisFuture<T> future, final Consumer<T> onSuccess) {
+        future.whenComplete((result, error) -> {
+            if (error == null && onSuccess != null) {
+                onSuccess.accept(result);
+            }
+            if (error != null) {
+                failedWrites.increment();
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                log.error("async session write error", error);
+            }
+            semaphore().release();
+        });
+    }
+
+    private Semaphore semaphore() {
+        Semaphore semaphore = inFlight;
+        if (semaphore == null) {
+            synchronized (this) {
+                if (inFlight == null) {
+                    inFlight = new Semaphore(maxInFlight);
+                }
+                semaphore = inFlight;
+            }
+        }
+        return semaphore;
+    }
+
+}
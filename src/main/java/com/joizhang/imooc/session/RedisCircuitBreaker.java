@@ -0,0 +1,270 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.RedisSystemException;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Redis调用的熔断器：请求线程上的调用交给有界线程池执行并等待不超过latencyBudgetMillis，
+ * 超时、连接失败或线程池已满都计为失败；连续失败达到阈值后熔断，openMillis内的调用直接失败，
+ * 之后放行一个探测调用，成功则恢复并通知恢复监听器(如重放降级期间积压的写入)；
+ * 设置了healthCheck时由后台线程定期探测，请求只命中本地数据时也能及时恢复
+ *
+ * @author joizhang
+ */
+@Slf4j
+public class RedisCircuitBreaker implements Initializable, Destroyable {
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    private static final long DEFAULT_OPEN_MILLIS = 5000;
+
+    private static final long DEFAULT_LATENCY_BUDGET_MILLIS = 200;
+
+    private static final int DEFAULT_WORKER_THREADS = 16;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * 连续失败多少次后熔断
+     */
+    @Setter
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * 熔断后多久(毫秒)放行探测调用
+     */
+    @Setter
+    private long openMillis = DEFAULT_OPEN_MILLIS;
+
+    /**
+     * 请求线程等待单次Redis调用的最长时间(毫秒)，包括排队时间
+     */
+    @Setter
+    private long latencyBudgetMillis = DEFAULT_LATENCY_BUDGET_MILLIS;
+
+    /**
+     * 执行Redis调用的线程数，超时的调用会占用线程直到Jedis的socket超时
+     */
+    @Setter
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+
+    /**
+     * 等待执行的调用数上限，超出时直接失败
+     */
+    @Setter
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * 熔断期间后台探测Redis是否恢复的调用，如PING
+     */
+    @Setter
+    private Callable<?> healthCheck;
+
+    @Getter
+    private volatile State state = State.CLOSED;
+
+    private volatile long openedAt;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private final List<Runnable> recoveryListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 熔断期间直接失败的调用数
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    private ThreadPoolExecutor executor;
+
+    private ScheduledExecutorService prober;
+
+    @Override
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "shiro-session-redis-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        if (healthCheck != null) {
+            prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "shiro-session-redis-prober");
+                thread.setDaemon(true);
+                return thread;
+            });
+            prober.scheduleWithFixedDelay(this::probe, openMillis, openMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Redis恢复可用时在工作线程上调用
+     */
+    public void addRecoveryListener(final Runnable listener) {
+        recoveryListeners.add(listener);
+    }
+
+    /**
+     * 在预算时间内执行一次Redis调用；熔断中、超时或线程池已满时抛出DataAccessException
+     */
+    public <T> T execute(final Callable<T> call) {
+        if (!allowRequest()) {
+            rejected.increment();
+            throw new RedisConnectionFailureException("Redis circuit is open");
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            recordFailure();
+            throw new RedisConnectionFailureException("Too many Redis calls in flight", e);
+        }
+        try {
+            T result = future.get(latencyBudgetMillis, TimeUnit.MILLISECONDS);
+            recordSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            recordFailure();
+            throw new QueryTimeoutException("Redis call exceeded " + latencyBudgetMillis + " ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RedisConnectionFailureException("Interrupted while waiting for Redis", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DataAccessException) {
+                recordFailure();
+                throw (DataAccessException) cause;
+            }
+            // Redis已正常应答，如反序列化失败，不计入熔断
+            recordSuccess();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RedisSystemException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * 是否允许发起调用；熔断时间过后只有一个调用者得到true作为探测，结果须以recordSuccess/recordFailure报告
+     */
+    public boolean allowRequest() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis
+                && probing.compareAndSet(false, true)) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    private void probe() {
+        if (state != State.OPEN || !allowRequest()) {
+            return;
+        }
+        try {
+            healthCheck.call();
+            recordSuccess();
+        } catch (Exception e) {
+            recordFailure();
+        }
+    }
+
+    public void recordSuccess() {
+        failures.set(0);
+        if (state != State.CLOSED && close()) {
+            for (Runnable listener : recoveryListeners) {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            listener.run();
+                        } catch (Exception e) {
+                            log.error("Redis recovery listener error", e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    log.warn("Redis recovery listener rejected, will run on next recovery");
+                }
+            }
+        }
+    }
+
+    public void recordFailure() {
+        State current = state;
+        if (current == State.HALF_OPEN) {
+            open();
+        } else if (failures.incrementAndGet() >= failureThreshold && current == State.CLOSED) {
+            open();
+        }
+    }
+
+    public boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private synchronized boolean close() {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        state = State.CLOSED;
+        probing.set(false);
+        log.info("Redis recovered, circuit closed");
+        return true;
+    }
+
+    private synchronized void open() {
+        openedAt = System.currentTimeMillis();
+        state = State.OPEN;
+        probing.set(false);
+        log.warn("Redis unhealthy, circuit opened for {} ms", openMillis);
+    }
+
+}
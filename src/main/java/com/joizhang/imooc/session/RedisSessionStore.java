@@ -0,0 +1,168 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.store.SessionStore;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.util.Destroyable;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个Session以一个String key保存在Redis中，读取并刷新过期时间由脚本在一次往返内完成
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+public class RedisSessionStore implements SessionStore, Destroyable {
+
+    private static final String REDIS_SHIRO_SESSION = "shiro-session:";
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 保存到Redis中key的前缀 prefix+sessionId
+     */
+    @Getter
+    private String redisShiroSessionPrefix = REDIS_SHIRO_SESSION;
+
+    /**
+     * Redis中Session的过期时间(秒)
+     */
+    @Getter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    private SessionKeyEncoder keyEncoder = new SessionKeyEncoder(REDIS_SHIRO_SESSION);
+
+    /**
+     * 预先编码的过期时间，作为脚本参数
+     */
+    private byte[] timeoutArg = String.valueOf(SESSION_VAL_TIME_SPAN).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 设置后写入和删除Session时在同一pipeline中更新按过期时间排序的索引
+     */
+    @Getter
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    public void setRedisShiroSessionPrefix(final String redisShiroSessionPrefix) {
+        this.redisShiroSessionPrefix = redisShiroSessionPrefix;
+        this.keyEncoder = new SessionKeyEncoder(redisShiroSessionPrefix);
+    }
+
+    public void setRedisShiroSessionTimeout(final int redisShiroSessionTimeout) {
+        this.redisShiroSessionTimeout = redisShiroSessionTimeout;
+        this.timeoutArg = String.valueOf(redisShiroSessionTimeout).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void create(final Session session) {
+        if (expiryIndex == null) {
+            redisTemplate.opsForValue().set(buildRedisSessionKey(session.getId()), session,
+                    redisShiroSessionTimeout, TimeUnit.SECONDS);
+            return;
+        }
+        final byte[] value = serialize(session);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            written(connection, session.getId(), value);
+            return null;
+        });
+    }
+
+    @Override
+    public Session read(final Serializable sessionId) {
+        final byte[] key = rawKey(sessionId);
+        return deserialize(redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key)));
+    }
+
+    @Override
+    public Session readAndRefresh(final Serializable sessionId) {
+        final byte[] key = rawKey(sessionId);
+        final byte[] timeout = timeoutArg;
+        return deserialize(redisTemplate.execute((RedisCallback<byte[]>) connection ->
+                SessionRedisScripts.getAndExpire(connection, key, timeout)));
+    }
+
+    @Override
+    public void touch(final Serializable sessionId, final long lastAccessTime) {
+        final long ttl = lastAccessTime + TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout) - System.currentTimeMillis();
+        if (ttl <= 0) {
+            return;
+        }
+        final byte[] key = rawKey(sessionId);
+        if (expiryIndex == null) {
+            redisTemplate.execute((RedisCallback<Boolean>) connection -> connection.pExpire(key, ttl));
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.pExpire(key, ttl);
+            expiryIndex.touched(connection, sessionId, lastAccessTime);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(final Serializable sessionId) {
+        if (expiryIndex == null) {
+            redisTemplate.delete(buildRedisSessionKey(sessionId));
+            return;
+        }
+        final byte[] key = rawKey(sessionId);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.del(key);
+            expiryIndex.removed(connection, sessionId);
+            return null;
+        });
+    }
+
+    /**
+     * 同步写入没有需要释放的资源，异步实现在此等待已发出的写入完成
+     */
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * 在已有的pipeline中写入序列化后的Session，并更新过期索引
+     */
+    void written(final RedisConnection connection, final Serializable sessionId, final byte[] value) {
+        connection.setEx(rawKey(sessionId), redisShiroSessionTimeout, value);
+        if (expiryIndex != null) {
+            expiryIndex.written(connection, sessionId);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    byte[] serialize(final Session session) {
+        return ((RedisSerializer<Session>) redisTemplate.getValueSerializer()).serialize(session);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Session deserialize(final byte[] value) {
+        return value == null ? null : ((RedisSerializer<Session>) redisTemplate.getValueSerializer()).deserialize(value);
+    }
+
+    /**
+     * 前缀已预先编码，与StringRedisSerializer序列化prefix+sessionId的结果相同
+     */
+    byte[] rawKey(final Serializable sessionId) {
+        return keyEncoder.encode(sessionId);
+    }
+
+    private String buildRedisSessionKey(final Serializable sessionId) {
+        return redisShiroSessionPrefix + sessionId;
+    }
+
+}
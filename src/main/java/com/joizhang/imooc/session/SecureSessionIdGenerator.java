@@ -0,0 +1,71 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.eis.SessionIdGenerator;
+
+import java.io.Serializable;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 紧凑的Session id：128位随机数以URL安全的Base64编码(无填充)，共22个字符，
+ * 熵不低于UUID的122位，长度却只有其36个字符的六成。每个线程持有自己的SecureRandom，
+ * 生成id时不争用同一个锁
+ *
+ * @author joizhang
+ */
+public class SecureSessionIdGenerator implements SessionIdGenerator {
+
+    private static final int DEFAULT_ID_BYTES = 16;
+
+    private static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * 随机字节数，id长度为ceil(idBytes * 4 / 3)
+     */
+    @Getter
+    private final int idBytes;
+
+    /**
+     * SecureRandom的算法；Linux默认的NativePRNG在所有实例间共用一个锁，因此默认使用各自独立的SHA1PRNG，
+     * 首次使用时由系统熵源播种
+     */
+    @Getter
+    private final String algorithm;
+
+    private final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(this::newSecureRandom);
+
+    public SecureSessionIdGenerator() {
+        this(DEFAULT_ID_BYTES, DEFAULT_ALGORITHM);
+    }
+
+    public SecureSessionIdGenerator(int idBytes, String algorithm) {
+        if (idBytes < DEFAULT_ID_BYTES) {
+            throw new IllegalArgumentException("Session id needs at least " + DEFAULT_ID_BYTES + " random bytes");
+        }
+        this.idBytes = idBytes;
+        this.algorithm = algorithm;
+        // 提前检查算法是否可用
+        newSecureRandom();
+    }
+
+    @Override
+    public Serializable generateId(Session session) {
+        byte[] bytes = new byte[idBytes];
+        randoms.get().nextBytes(bytes);
+        return ENCODER.encodeToString(bytes);
+    }
+
+    private SecureRandom newSecureRandom() {
+        try {
+            return SecureRandom.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SecureRandom algorithm " + algorithm + " is not available", e);
+        }
+    }
+
+}
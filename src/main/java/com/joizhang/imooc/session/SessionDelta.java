@@ -0,0 +1,72 @@
+package com.joizhang.imooc.session;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 记录ShiroSession自上次写回后发生变化的字段
+ *
+ * @author joizhang
+ */
+public class SessionDelta {
+
+    /**
+     * 需要整体重写，如新建的Session、替换了整个属性Map或修改了id
+     */
+    private boolean full;
+
+    /**
+     * 除属性以外的固定字段(时间戳、超时、host等)发生了变化
+     */
+    private boolean meta;
+
+    private final Set<Object> changedAttributes = new HashSet<>();
+
+    private final Set<Object> removedAttributes = new HashSet<>();
+
+    static SessionDelta full() {
+        SessionDelta delta = new SessionDelta();
+        delta.markFull();
+        return delta;
+    }
+
+    void markFull() {
+        full = true;
+    }
+
+    void markMeta() {
+        meta = true;
+    }
+
+    void markAttribute(Object key) {
+        removedAttributes.remove(key);
+        changedAttributes.add(key);
+    }
+
+    void markRemoved(Object key) {
+        changedAttributes.remove(key);
+        removedAttributes.add(key);
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public boolean isMetaChanged() {
+        return full || meta;
+    }
+
+    public Set<Object> getChangedAttributes() {
+        return Collections.unmodifiableSet(changedAttributes);
+    }
+
+    public Set<Object> getRemovedAttributes() {
+        return Collections.unmodifiableSet(removedAttributes);
+    }
+
+    public boolean isEmpty() {
+        return !full && !meta && changedAttributes.isEmpty() && removedAttributes.isEmpty();
+    }
+
+}
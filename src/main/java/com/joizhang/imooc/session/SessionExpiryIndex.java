@@ -0,0 +1,211 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按过期时间排序的Session索引：sessionId按hash分布到若干个有序集合，score为Session在Redis中的过期时刻(毫秒)。
+ * 写入Session的pipeline中同时更新索引，计数为O(1)，按空闲时间查询和查找过期Session为O(log n)。
+ * 读取Session时在脚本中重置的过期时间不会反映到索引中，因此索引中的过期时刻只是下限，判定过期前应再确认
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+public class SessionExpiryIndex {
+
+    private static final String REDIS_SHIRO_SESSION_EXPIRY = "shiro-session-expiry:";
+
+    private static final int DEFAULT_SHARDS = 16;
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 索引key的前缀 prefix+shard
+     */
+    @Getter
+    @Setter
+    private String indexKeyPrefix = REDIS_SHIRO_SESSION_EXPIRY;
+
+    /**
+     * 索引的分片个数
+     */
+    @Getter
+    @Setter
+    private int shards = DEFAULT_SHARDS;
+
+    /**
+     * Redis中Session的过期时间(秒)
+     */
+    @Setter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 在已有的pipeline中记录Session刚被写入，过期时刻为当前时间加过期时间
+     */
+    public void written(final RedisConnection connection, final Serializable sessionId) {
+        expireAt(connection, sessionId, writtenScore());
+    }
+
+    /**
+     * 在已有的pipeline中记录Session最后一次访问的时间
+     */
+    public void touched(final RedisConnection connection, final Serializable sessionId, final long lastAccessTime) {
+        expireAt(connection, sessionId, lastAccessTime + TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout));
+    }
+
+    public void expireAt(final RedisConnection connection, final Serializable sessionId, final long expireAt) {
+        connection.zAdd(indexKey(sessionId), expireAt, member(sessionId));
+    }
+
+    /**
+     * 在已有的pipeline中移除Session
+     */
+    public void removed(final RedisConnection connection, final Serializable sessionId) {
+        connection.zRem(indexKey(sessionId), member(sessionId));
+    }
+
+    public void remove(final Collection<? extends Serializable> sessionIds) {
+        if (sessionIds.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Serializable sessionId : sessionIds) {
+                removed(connection, sessionId);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 索引中的Session个数，包括已过期但尚未清理的Session
+     */
+    public long count() {
+        long count = 0;
+        for (Object shardCount : redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int shard = 0; shard < shards; shard++) {
+                connection.zCard(indexKey(shard));
+            }
+            return null;
+        })) {
+            count += shardCount == null ? 0 : (Long) shardCount;
+        }
+        return count;
+    }
+
+    /**
+     * 尚未过期的Session个数
+     */
+    public long countActive() {
+        return countExpiringBetween(System.currentTimeMillis(), Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * 空闲时间在[minIdleMillis, maxIdleMillis]之间且尚未过期的Session个数
+     */
+    public long countIdle(final long minIdleMillis, final long maxIdleMillis) {
+        long now = System.currentTimeMillis();
+        long timeout = TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout);
+        return countExpiringBetween(Math.max(now, now + timeout - maxIdleMillis), now + timeout - minIdleMillis);
+    }
+
+    private long countExpiringBetween(final double min, final double max) {
+        long count = 0;
+        for (Object shardCount : redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int shard = 0; shard < shards; shard++) {
+                connection.zCount(indexKey(shard), min, max);
+            }
+            return null;
+        })) {
+            count += shardCount == null ? 0 : (Long) shardCount;
+        }
+        return count;
+    }
+
+    /**
+     * 空闲时间不少于minIdleMillis且尚未过期的Session，每个分片最多取limit个
+     */
+    public List<String> findIdle(final long minIdleMillis, final int limit) {
+        long now = System.currentTimeMillis();
+        long timeout = TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout);
+        List<String> sessionIds = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            sessionIds.addAll(range(shard, now, now + timeout - minIdleMillis, limit));
+        }
+        return sessionIds;
+    }
+
+    /**
+     * 某个分片中过期时刻不晚于now的Session，按过期时刻从早到晚最多取limit个
+     */
+    public List<String> findExpired(final int shard, final long now, final int limit) {
+        return range(shard, Double.NEGATIVE_INFINITY, now, limit);
+    }
+
+    /**
+     * 所有分片中已过期的Session，每个分片最多取limit个
+     */
+    public List<String> findExpired(final long now, final int limit) {
+        List<String> sessionIds = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            sessionIds.addAll(findExpired(shard, now, limit));
+        }
+        return sessionIds;
+    }
+
+    private List<String> range(final int shard, final double min, final double max, final int limit) {
+        final byte[] key = indexKey(shard);
+        Set<byte[]> members = redisTemplate.execute((RedisCallback<Set<byte[]>>) connection ->
+                connection.zRangeByScore(key, min, max, 0, limit));
+        List<String> sessionIds = new ArrayList<>(members == null ? 0 : members.size());
+        if (members != null) {
+            for (byte[] member : members) {
+                sessionIds.add(new String(member, StandardCharsets.UTF_8));
+            }
+        }
+        return sessionIds;
+    }
+
+    /**
+     * Session所在的分片
+     */
+    public int shardOf(final Serializable sessionId) {
+        return (sessionId.toString().hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Session刚被写入时在索引中的score，供不经过RedisConnection的写入路径使用
+     */
+    long writtenScore() {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout);
+    }
+
+    byte[] indexKey(final Serializable sessionId) {
+        return indexKey(shardOf(sessionId));
+    }
+
+    private byte[] indexKey(final int shard) {
+        return (indexKeyPrefix + shard).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] member(final Serializable sessionId) {
+        return sessionId.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群内本地Session缓存的失效通知：短时间窗口内的sessionId合并为一条紧凑的二进制消息发布，
+ * 收到消息时跳过本节点发出的消息
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class SessionInvalidationBus implements MessageListener, Initializable, Destroyable {
+
+    private static final long DEFAULT_BATCH_WINDOW_MILLIS = 10;
+
+    private static final int DEFAULT_BATCH_SIZE = 512;
+
+    /**
+     * 消息发布的频道
+     */
+    @Getter
+    @Setter
+    private String channel = "shiro.session.uncache";
+
+    /**
+     * 合并sessionId的时间窗口(毫秒)，0表示不合并，立即发布
+     */
+    @Setter
+    private long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+
+    /**
+     * 一条消息最多携带的sessionId个数
+     */
+    @Setter
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * 本节点标识，只在创建时取一次
+     */
+    @Getter
+    @Setter
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @NonNull
+    private ShiroCachingSessionDao sessionDao;
+
+    private final Set<Serializable> pending = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init() {
+        if (batchWindowMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shiro-session-invalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, batchWindowMillis, batchWindowMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止后台线程并发布剩余的消息
+     */
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 通知其他节点失效该Session的本地缓存，未启动后台线程时立即发布
+     */
+    public void publish(final Serializable sessionId) {
+        pending.add(sessionId);
+        if (scheduler == null) {
+            flush();
+        }
+    }
+
+    /**
+     * 一次通知多个Session，未启动后台线程时立即以一条消息发布
+     */
+    public void publish(final Collection<? extends Serializable> sessionIds) {
+        pending.addAll(sessionIds);
+        if (scheduler == null) {
+            flush();
+        }
+    }
+
+    /**
+     * 立即通知其他节点清除全部Session的本地缓存，尚未发布的单个通知随之作废
+     */
+    public void publishFlushAll() {
+        pending.clear();
+        final byte[] rawChannel = channel.getBytes(StandardCharsets.UTF_8);
+        final byte[] body = ShiroSessionMessage.encodeFlushAll(nodeId);
+        redisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(rawChannel, body));
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("session invalidation publish error", e);
+        }
+    }
+
+    /**
+     * 将待发布的sessionId按batchSize分批发布
+     */
+    public void flush() {
+        final byte[] rawChannel = channel.getBytes(StandardCharsets.UTF_8);
+        while (!pending.isEmpty()) {
+            List<Serializable> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+            Iterator<Serializable> iterator = pending.iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                Serializable sessionId = iterator.next();
+                if (pending.remove(sessionId)) {
+                    batch.add(sessionId);
+                }
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            final byte[] body = ShiroSessionMessage.encode(nodeId, batch);
+            redisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(rawChannel, body));
+        }
+    }
+
+    /**
+     * 收到其他节点的消息时清除本地缓存中的Session
+     */
+    @Override
+    public void onMessage(final Message message, final byte[] pattern) {
+        ShiroSessionMessage shiroSessionMessage;
+        try {
+            shiroSessionMessage = new ShiroSessionMessage(message.getChannel(), message.getBody());
+        } catch (IllegalArgumentException e) {
+            log.warn("ignore malformed session invalidation message", e);
+            return;
+        }
+        if (nodeId.equals(shiroSessionMessage.nodeId)) {
+            return;
+        }
+        log.debug("channel {} , message {} ", channel, shiroSessionMessage);
+        if (shiroSessionMessage.flushAll) {
+            sessionDao.clearLocal();
+            return;
+        }
+        for (String sessionId : shiroSessionMessage.sessionIds) {
+            sessionDao.deleteCache(sessionId);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Session key的二进制编码：前缀预先编码为UTF-8，id逐字符直接写入key数组，
+ * 不经过字符串拼接和StringRedisSerializer的再次编码，结果与StringRedisSerializer序列化prefix+id相同。
+ * key数组交给Redis驱动后不再修改，同一个数组可同时用作key和版本表的field
+ *
+ * @author joizhang
+ */
+final class SessionKeyEncoder {
+
+    @Getter
+    private final String prefix;
+
+    private final byte[] prefixBytes;
+
+    SessionKeyEncoder(final String prefix) {
+        this.prefix = prefix;
+        this.prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 编码prefix+sessionId，id中有非ASCII字符时退回字符串编码
+     */
+    byte[] encode(final Serializable sessionId) {
+        String id = sessionId instanceof String ? (String) sessionId : String.valueOf(sessionId);
+        int length = id.length();
+        byte[] key = new byte[prefixBytes.length + length];
+        System.arraycopy(prefixBytes, 0, key, 0, prefixBytes.length);
+        int offset = prefixBytes.length;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c >= 0x80) {
+                return (prefix + id).getBytes(StandardCharsets.UTF_8);
+            }
+            key[offset + i] = (byte) c;
+        }
+        return key;
+    }
+
+    /**
+     * 与new String(key, UTF_8).hashCode()相同，全为ASCII时不创建字符串
+     */
+    static int hash(final byte[] key) {
+        int h = 0;
+        for (byte b : key) {
+            if (b < 0) {
+                return new String(key, StandardCharsets.UTF_8).hashCode();
+            }
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+}
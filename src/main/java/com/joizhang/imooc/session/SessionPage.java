@@ -0,0 +1,31 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * 分页遍历的一页结果
+ *
+ * @param <T> 元素类型
+ * @author joizhang
+ */
+@Getter
+@RequiredArgsConstructor
+@ToString
+public class SessionPage<T> {
+
+    private final List<T> items;
+
+    /**
+     * 下一页的游标，遍历结束时为null
+     */
+    private final String nextCursor;
+
+    public boolean isFinished() {
+        return nextCursor == null;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.joizhang.imooc.session;
+
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Session读写共用的Redis Lua脚本
+ *
+ * @author joizhang
+ */
+final class SessionRedisScripts {
+
+    /**
+     * 读取Session并重置过期时间，一次网络往返完成GET+EXPIRE
+     */
+    static final RedisScript<Session> GET_AND_EXPIRE = new DefaultRedisScript<>(
+            "local v = redis.call('GET', KEYS[1]) " +
+                    "if v then redis.call('EXPIRE', KEYS[1], ARGV[1]) end " +
+                    "return v",
+            Session.class);
+
+    /**
+     * 读取Hash结构存储的Session并重置过期时间，返回field、value交替的列表
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> HGETALL_AND_EXPIRE = new DefaultRedisScript<>(
+            "local h = redis.call('HGETALL', KEYS[1]) " +
+                    "if #h > 0 then redis.call('EXPIRE', KEYS[1], ARGV[1]) end " +
+                    "return h",
+            List.class);
+
+    /**
+     * 获取或续期租约：租约不存在时以ARGV[1]为持有者创建，已由ARGV[1]持有时续期，返回1表示持有
+     */
+    static final RedisScript<Long> ACQUIRE_LEASE = new DefaultRedisScript<>(
+            "local v = redis.call('GET', KEYS[1]) " +
+                    "if v == ARGV[1] then redis.call('PEXPIRE', KEYS[1], ARGV[2]) return 1 end " +
+                    "if not v then redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end " +
+                    "return 0",
+            Long.class);
+
+    /**
+     * 释放由ARGV[1]持有的租约
+     */
+    static final RedisScript<Long> RELEASE_LEASE = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end " +
+                    "return 0",
+            Long.class);
+
+    private static final StringRedisSerializer ARGS_SERIALIZER = new StringRedisSerializer();
+
+    private SessionRedisScripts() {
+    }
+
+    /**
+     * 以已编码的key和参数执行GET_AND_EXPIRE，返回未反序列化的Session数据
+     */
+    static byte[] getAndExpire(final RedisConnection connection, final byte[] key, final byte[] timeoutSeconds) {
+        return evalSha(connection, GET_AND_EXPIRE, ReturnType.VALUE, key, timeoutSeconds);
+    }
+
+    /**
+     * 以已编码的key和参数执行HGETALL_AND_EXPIRE
+     */
+    @SuppressWarnings("unchecked")
+    static List<byte[]> getAllAndExpire(final RedisConnection connection, final byte[] key,
+                                        final byte[] timeoutSeconds) {
+        List<byte[]> result = evalSha(connection, HGETALL_AND_EXPIRE, ReturnType.MULTI, key, timeoutSeconds);
+        return result == null ? Collections.<byte[]>emptyList() : result;
+    }
+
+    /**
+     * 与DefaultScriptExecutor相同先EVALSHA，脚本未加载时退回EVAL；key不经过RedisTemplate的key序列化器
+     */
+    private static <T> T evalSha(final RedisConnection connection, final RedisScript<?> script,
+                                 final ReturnType returnType, final byte[] key, final byte[] arg) {
+        try {
+            return connection.evalSha(script.getSha1(), returnType, 1, key, arg);
+        } catch (RuntimeException e) {
+            if (!isNoScriptError(e)) {
+                throw e;
+            }
+            return connection.eval(script.getScriptAsString().getBytes(StandardCharsets.UTF_8), returnType, 1, key, arg);
+        }
+    }
+
+    private static boolean isNoScriptError(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取或续期租约，返回是否由owner持有
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static boolean acquireLease(final RedisTemplate<String, ?> redisTemplate, final String key,
+                                final String owner, final long leaseMillis) {
+        Long result = redisTemplate.execute(ACQUIRE_LEASE, ARGS_SERIALIZER, (RedisSerializer) ARGS_SERIALIZER,
+                Collections.singletonList(key), owner, String.valueOf(leaseMillis));
+        return result != null && result == 1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void releaseLease(final RedisTemplate<String, ?> redisTemplate, final String key, final String owner) {
+        redisTemplate.execute(RELEASE_LEASE, ARGS_SERIALIZER, (RedisSerializer) ARGS_SERIALIZER,
+                Collections.singletonList(key), owner);
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.shard.ShardedRedisConnectionFactory;
+import com.lambdaworks.redis.KeyScanCursor;
+import com.lambdaworks.redis.LettuceFutures;
+import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.ScanArgs;
+import com.lambdaworks.redis.ScanCursor;
+import com.lambdaworks.redis.api.async.RedisKeyAsyncCommands;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 以SCAN增量遍历Redis中的所有Session，每次只取一页key再批量读取，内存占用与页大小成正比；
+ * 分片时依次遍历每个分片，游标格式为 分片序号:SCAN游标。
+ * Lettuce连接的execute没有SCAN的返回类型提示，改用其原生的scan命令
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+public class SessionScanner {
+
+    private static final String REDIS_SHIRO_SESSION = "shiro-session:";
+
+    private static final String FIRST_CURSOR = "0:0";
+
+    private static final long DEFAULT_SCAN_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * 保存到Redis中key的前缀 prefix+sessionId
+     */
+    @Getter
+    @Setter
+    private String redisShiroSessionPrefix = REDIS_SHIRO_SESSION;
+
+    /**
+     * 使用Lettuce时等待单次SCAN应答的最长时间(毫秒)
+     */
+    @Setter
+    private long scanTimeoutMillis = DEFAULT_SCAN_TIMEOUT_MILLIS;
+
+    /**
+     * 设置后Session按Hash结构读取
+     */
+    @Setter
+    private ShiroSessionHashRepository hashRepository;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 读取一页Session；SCAN的COUNT只是提示，一页的个数可能略多于pageSize，遍历期间过期的Session会被跳过
+     *
+     * @param cursor   上一页返回的游标，从头开始时为null
+     * @param pageSize 每页大约的Session个数
+     */
+    public SessionPage<Session> scan(final String cursor, final int pageSize) {
+        List<RedisConnectionFactory> shards = shards();
+        String[] position = (cursor == null ? FIRST_CURSOR : cursor).split(":", 2);
+        if (position.length != 2) {
+            throw new IllegalArgumentException("Invalid session cursor " + cursor);
+        }
+        int shard = Integer.parseInt(position[0]);
+        String scanCursor = position[1];
+        List<Session> sessions = new ArrayList<>(pageSize);
+        while (shard < shards.size() && sessions.size() < pageSize) {
+            RedisConnection connection = shards.get(shard).getConnection();
+            try {
+                ScanReply reply = scanOnce(connection, scanCursor, pageSize - sessions.size());
+                scanCursor = reply.cursor;
+                if (!reply.keys.isEmpty()) {
+                    sessions.addAll(load(connection, reply.keys));
+                }
+            } finally {
+                connection.close();
+            }
+            if ("0".equals(scanCursor)) {
+                shard++;
+            }
+        }
+        String nextCursor = shard < shards.size() ? shard + ":" + scanCursor : null;
+        return new SessionPage<>(sessions, nextCursor);
+    }
+
+    /**
+     * 按页遍历所有Session
+     */
+    public void forEach(final int pageSize, final Consumer<Session> consumer) {
+        String cursor = null;
+        do {
+            SessionPage<Session> page = scan(cursor, pageSize);
+            page.getItems().forEach(consumer);
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+    }
+
+    /**
+     * 按页遍历匹配pattern的key，每页在所在分片的连接上交给consumer处理，返回遍历到的key个数
+     */
+    public long forEachKeys(final String pattern, final int pageSize,
+                            final BiConsumer<RedisConnection, List<byte[]>> consumer) {
+        long count = 0;
+        for (RedisConnectionFactory shard : shards()) {
+            RedisConnection connection = shard.getConnection();
+            try {
+                String scanCursor = "0";
+                do {
+                    ScanReply reply = scanOnce(connection, pattern, scanCursor, pageSize);
+                    scanCursor = reply.cursor;
+                    if (!reply.keys.isEmpty()) {
+                        consumer.accept(connection, reply.keys);
+                        count += reply.keys.size();
+                    }
+                } while (!"0".equals(scanCursor));
+            } finally {
+                connection.close();
+            }
+        }
+        return count;
+    }
+
+    private ScanReply scanOnce(final RedisConnection connection, final String cursor, final int count) {
+        return scanOnce(connection, redisShiroSessionPrefix + "*", cursor, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ScanReply scanOnce(final RedisConnection connection, final String pattern, final String cursor,
+                               final int count) {
+        Object nativeConnection = connection.getNativeConnection();
+        if (nativeConnection instanceof RedisKeyAsyncCommands) {
+            return lettuceScan((RedisKeyAsyncCommands<byte[], byte[]>) nativeConnection, pattern, cursor, count);
+        }
+        byte[] match = pattern.getBytes(StandardCharsets.UTF_8);
+        List<Object> reply = (List<Object>) connection.execute("SCAN", cursor.getBytes(StandardCharsets.US_ASCII),
+                "MATCH".getBytes(StandardCharsets.US_ASCII), match,
+                "COUNT".getBytes(StandardCharsets.US_ASCII),
+                String.valueOf(Math.max(1, count)).getBytes(StandardCharsets.US_ASCII));
+        return new ScanReply(new String((byte[]) reply.get(0), StandardCharsets.US_ASCII), (List<byte[]>) reply.get(1));
+    }
+
+    private ScanReply lettuceScan(final RedisKeyAsyncCommands<byte[], byte[]> commands, final String pattern,
+                                  final String cursor, final int count) {
+        ScanArgs args = ScanArgs.Builder.matches(pattern).limit(Math.max(1, count));
+        try {
+            KeyScanCursor<byte[]> reply = LettuceFutures.awaitOrCancel(commands.scan(ScanCursor.of(cursor), args),
+                    scanTimeoutMillis, TimeUnit.MILLISECONDS);
+            return new ScanReply(reply.getCursor(), reply.getKeys());
+        } catch (RedisException e) {
+            throw new RedisSystemException("SCAN failed: " + e.getMessage(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Session> load(final RedisConnection connection, final List<byte[]> keys) {
+        if (hashRepository != null) {
+            return new ArrayList<>(hashRepository.getSessions(connection, keys));
+        }
+        RedisSerializer<Session> valueSerializer = (RedisSerializer<Session>) redisTemplate.getValueSerializer();
+        List<byte[]> values = connection.mGet(keys.toArray(new byte[keys.size()][]));
+        List<Session> sessions = new ArrayList<>(values.size());
+        for (byte[] value : values) {
+            Session session = value == null ? null : valueSerializer.deserialize(value);
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    private static final class ScanReply {
+
+        final String cursor;
+
+        final List<byte[]> keys;
+
+        ScanReply(String cursor, List<byte[]> keys) {
+            this.cursor = cursor;
+            this.keys = keys;
+        }
+    }
+
+    private List<RedisConnectionFactory> shards() {
+        RedisConnectionFactory factory = redisTemplate.getConnectionFactory();
+        if (factory instanceof ShardedRedisConnectionFactory) {
+            return new ArrayList<>(((ShardedRedisConnectionFactory) factory).getShards().values());
+        }
+        return Collections.singletonList(factory);
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.joizhang.imooc.session;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session滑动过期：只在本地记录最后访问时间，由后台线程按固定节奏以pipeline批量EXPIRE，
+ * 节奏为Redis过期时间的一个比例，频繁访问的Session在一个周期内只产生一条命令
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class SessionTouchBatcher implements Initializable, Destroyable {
+
+    private static final double DEFAULT_TOUCH_INTERVAL_RATIO = 0.1;
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 两次批量EXPIRE之间的间隔占Redis过期时间的比例，Session在Redis中的剩余时间不会少于(1 - ratio) * timeout
+     */
+    @Setter
+    private double touchIntervalRatio = DEFAULT_TOUCH_INTERVAL_RATIO;
+
+    /**
+     * 每个pipeline最多包含的命令数
+     */
+    @Setter
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Redis中Session的过期时间(秒)
+     */
+    @Setter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 设置后在同一pipeline中更新按过期时间排序的索引
+     */
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    /**
+     * 设置后熔断期间暂停写回，写回的成败也计入熔断器
+     */
+    @Setter
+    private RedisCircuitBreaker circuitBreaker;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 待刷新过期时间的Session key及其最后访问时间
+     */
+    private final ConcurrentMap<String, Touch> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shiro-session-toucher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = getTouchIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止后台线程并刷新剩余的过期时间
+     */
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 两次批量EXPIRE之间的间隔(毫秒)
+     */
+    public long getTouchIntervalMillis() {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout) * touchIntervalRatio));
+    }
+
+    /**
+     * 记录一次访问，同一Session在一个周期内的多次访问只保留最后一次
+     */
+    public void touch(final String key, final Serializable sessionId, final long lastAccessTime) {
+        pending.merge(key, new Touch(sessionId, lastAccessTime), Touch::latest);
+    }
+
+    /**
+     * Session已被删除或已随写入刷新过期时间，不再需要EXPIRE
+     */
+    public void cancel(final String key) {
+        pending.remove(key);
+    }
+
+    /**
+     * 丢弃所有尚未刷新的过期时间
+     */
+    public void clear() {
+        pending.clear();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private void flushQuietly() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // 熔断期间不写Redis，待写内容留在队列中
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            return;
+        }
+        try {
+            flush();
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+        } catch (Exception e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
+            }
+            log.error("session touch flush error", e);
+        }
+    }
+
+    /**
+     * 将当前记录的所有访问分批以PEXPIRE写到Redis，过期时刻为最后访问时间加过期时间
+     */
+    @SuppressWarnings("unchecked")
+    public void flush() {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        final long timeoutMillis = TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout);
+        while (!pending.isEmpty()) {
+            List<Map.Entry<String, Touch>> batch = new ArrayList<>(batchSize);
+            List<byte[]> keys = new ArrayList<>(batchSize);
+            List<Long> ttls = new ArrayList<>(batchSize);
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Touch>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext() && keys.size() < batchSize) {
+                Map.Entry<String, Touch> entry = iterator.next();
+                if (!pending.remove(entry.getKey(), entry.getValue())) {
+                    continue;
+                }
+                long ttl = entry.getValue().lastAccessTime + timeoutMillis - now;
+                if (ttl > 0) {
+                    batch.add(entry);
+                    keys.add(keySerializer.serialize(entry.getKey()));
+                    ttls.add(ttl);
+                }
+            }
+            if (keys.isEmpty()) {
+                continue;
+            }
+            try {
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < keys.size(); i++) {
+                        connection.pExpire(keys.get(i), ttls.get(i));
+                        if (expiryIndex != null) {
+                            Touch touch = batch.get(i).getValue();
+                            expiryIndex.touched(connection, touch.sessionId, touch.lastAccessTime);
+                        }
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                // 放回队列等待下一轮
+                batch.forEach(entry -> pending.merge(entry.getKey(), entry.getValue(), Touch::latest));
+                throw e;
+            }
+        }
+    }
+
+    private static final class Touch {
+
+        final Serializable sessionId;
+
+        final long lastAccessTime;
+
+        Touch(Serializable sessionId, long lastAccessTime) {
+            this.sessionId = sessionId;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        static Touch latest(Touch a, Touch b) {
+            return a.lastAccessTime >= b.lastAccessTime ? a : b;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按用户的Session索引：每个用户一个有序集合，成员为sessionId，score为Session的创建时间；
+ * 另以按hash分片的Hash记录sessionId所属的用户，删除只知道id的Session时据此找到用户。
+ * 登录、退出和过期时由ShiroCachingSessionDao维护，每个Session的增删都是O(1)
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+public class SessionUserIndex {
+
+    private static final String REDIS_SHIRO_SESSION_USER = "shiro-session-user:";
+
+    private static final String REDIS_SHIRO_SESSION_OWNER = "shiro-session-owner:";
+
+    private static final int DEFAULT_SHARDS = 16;
+
+    private static final StringRedisSerializer USER_NAME_SERIALIZER = new StringRedisSerializer();
+
+    /**
+     * 用户索引key的前缀 prefix+userName
+     */
+    @Getter
+    @Setter
+    private String userKeyPrefix = REDIS_SHIRO_SESSION_USER;
+
+    /**
+     * sessionId到用户名的Hash的key前缀 prefix+shard
+     */
+    @Getter
+    @Setter
+    private String ownerKeyPrefix = REDIS_SHIRO_SESSION_OWNER;
+
+    /**
+     * sessionId到用户名的Hash的分片个数
+     */
+    @Setter
+    private int shards = DEFAULT_SHARDS;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 在已有的pipeline中记录用户登录了该Session
+     */
+    public void added(final RedisConnection connection, final String userName, final Serializable sessionId,
+                      final long startTimestamp) {
+        byte[] member = member(sessionId);
+        connection.zAdd(userKey(userName), startTimestamp, member);
+        connection.hSet(ownerKey(sessionId), member, userName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void add(final String userName, final Serializable sessionId, final long startTimestamp) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            added(connection, userName, sessionId, startTimestamp);
+            return null;
+        });
+    }
+
+    /**
+     * 在已有的pipeline中移除已知所属用户的Session
+     */
+    public void removed(final RedisConnection connection, final String userName, final Serializable sessionId) {
+        byte[] member = member(sessionId);
+        connection.zRem(userKey(userName), member);
+        connection.hDel(ownerKey(sessionId), member);
+    }
+
+    /**
+     * 移除只知道id的Session，先查出所属用户
+     */
+    public void remove(final Serializable sessionId) {
+        remove(Collections.singletonList(sessionId));
+    }
+
+    public void remove(final Collection<? extends Serializable> sessionIds) {
+        Map<Serializable, String> owners = getUserNames(sessionIds);
+        if (owners.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            owners.forEach((sessionId, userName) -> removed(connection, userName, sessionId));
+            return null;
+        });
+    }
+
+    /**
+     * 查询Session所属的用户，未登录的Session不在结果中
+     */
+    public Map<Serializable, String> getUserNames(final Collection<? extends Serializable> sessionIds) {
+        if (sessionIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final List<Serializable> ids = new ArrayList<>(sessionIds);
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Serializable sessionId : ids) {
+                connection.hGet(ownerKey(sessionId), member(sessionId));
+            }
+            return null;
+        }, USER_NAME_SERIALIZER);
+        Map<Serializable, String> owners = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size() && i < results.size(); i++) {
+            if (results.get(i) != null) {
+                owners.put(ids.get(i), (String) results.get(i));
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * 用户的所有Session，按创建时间从早到晚排列
+     */
+    public List<String> getSessionIds(final String userName) {
+        return range(userName, 0, -1);
+    }
+
+    /**
+     * 用户的Session个数
+     */
+    public long count(final String userName) {
+        final byte[] key = userKey(userName);
+        Long count = redisTemplate.execute((RedisCallback<Long>) connection -> connection.zCard(key));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 超出maxSessions的Session，即除最新的maxSessions个以外较早创建的Session
+     */
+    public List<String> getOverflow(final String userName, final int maxSessions) {
+        return range(userName, 0, -maxSessions - 1);
+    }
+
+    private List<String> range(final String userName, final long start, final long end) {
+        final byte[] key = userKey(userName);
+        Set<byte[]> members = redisTemplate.execute((RedisCallback<Set<byte[]>>) connection ->
+                connection.zRange(key, start, end));
+        List<String> sessionIds = new ArrayList<>(members == null ? 0 : members.size());
+        if (members != null) {
+            for (byte[] member : members) {
+                sessionIds.add(new String(member, StandardCharsets.UTF_8));
+            }
+        }
+        return sessionIds;
+    }
+
+    private byte[] userKey(final String userName) {
+        return (userKeyPrefix + userName).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] ownerKey(final Serializable sessionId) {
+        int shard = (sessionId.toString().hashCode() & Integer.MAX_VALUE) % shards;
+        return (ownerKeyPrefix + shard).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] member(final Serializable sessionId) {
+        return sessionId.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,352 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.InvalidSessionException;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListener;
+import org.apache.shiro.session.mgt.ValidatingSession;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群内的Session校验：{@link SessionExpiryIndex}的每个分片由一个节点通过Redis租约独占，
+ * 各节点按存活节点数平分分片，只清扫自己持有的分片，因此总的清扫开销与节点数无关。
+ * 过期的Session从索引中ZREM成功的节点才触发onExpiration，同一Session在集群内只通知一次
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class SessionValidationSweeper implements Initializable, Destroyable {
+
+    private static final String REDIS_SHIRO_SESSION = "shiro-session:";
+
+    private static final String LEASE_KEY_PREFIX = "shiro-session-sweep-lease:";
+
+    private static final String NODES_KEY = "shiro-session-sweep-nodes";
+
+    private static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private static final int DEFAULT_BATCH_SIZE = 200;
+
+    private static final int DEFAULT_MAX_SESSIONS_PER_SECOND = 2000;
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 保存到Redis中key的前缀 prefix+sessionId
+     */
+    @Setter
+    private String redisShiroSessionPrefix = REDIS_SHIRO_SESSION;
+
+    /**
+     * Redis中Session的过期时间(秒)
+     */
+    @Setter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 两轮清扫之间的间隔(毫秒)，租约时长为其3倍
+     */
+    @Setter
+    private long sweepIntervalMillis = DEFAULT_SWEEP_INTERVAL_MILLIS;
+
+    /**
+     * 每批从索引中取出的Session个数
+     */
+    @Setter
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * 每秒最多检查的Session个数
+     */
+    @Setter
+    private int maxSessionsPerSecond = DEFAULT_MAX_SESSIONS_PER_SECOND;
+
+    /**
+     * 本节点标识，作为租约的持有者
+     */
+    @Getter
+    @Setter
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * Session过期时通知的监听器
+     */
+    @Setter
+    private Collection<SessionListener> sessionListeners = Collections.emptyList();
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @NonNull
+    private SessionExpiryIndex expiryIndex;
+
+    @NonNull
+    private ShiroCachingSessionDao sessionDao;
+
+    /**
+     * 本节点当前持有租约的分片
+     */
+    private final Set<Integer> leasedShards = new ConcurrentSkipListSet<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shiro-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long initialDelay = ThreadLocalRandom.current().nextLong(sweepIntervalMillis) + 1;
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, initialDelay, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止清扫并释放持有的租约，其他节点下一轮即可接手
+     */
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            for (Integer shard : leasedShards) {
+                SessionRedisScripts.releaseLease(redisTemplate, LEASE_KEY_PREFIX + shard, nodeId);
+            }
+            final byte[] nodesKey = NODES_KEY.getBytes(StandardCharsets.UTF_8);
+            final byte[] member = nodeId.getBytes(StandardCharsets.UTF_8);
+            redisTemplate.execute((RedisCallback<Long>) connection -> connection.zRem(nodesKey, member));
+        } catch (Exception e) {
+            log.warn("release session sweep leases error", e);
+        }
+        leasedShards.clear();
+    }
+
+    public Set<Integer> getLeasedShards() {
+        return Collections.unmodifiableSet(new TreeSet<>(leasedShards));
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            log.error("session sweep error", e);
+        }
+    }
+
+    /**
+     * 执行一轮：登记心跳，续期或调整租约，然后清扫持有的分片
+     *
+     * @return 本轮触发过期的Session个数
+     */
+    public int sweep() {
+        long roundStart = System.currentTimeMillis();
+        long leaseMillis = sweepIntervalMillis * 3;
+        rebalanceLeases(roundStart, leaseMillis);
+        int expired = 0;
+        for (Integer shard : leasedShards) {
+            if (System.currentTimeMillis() - roundStart > leaseMillis / 2) {
+                // 剩下的分片留到下一轮，避免租约在清扫期间过期
+                break;
+            }
+            expired += sweepShard(shard, roundStart);
+        }
+        if (expired > 0) {
+            log.info("session sweep expired {} sessions in shards {}", expired, leasedShards);
+        }
+        return expired;
+    }
+
+    /**
+     * 按存活节点数计算应持有的分片数，多余的释放，不足的从随机位置开始抢占
+     */
+    private void rebalanceLeases(final long now, final long leaseMillis) {
+        final byte[] nodesKey = NODES_KEY.getBytes(StandardCharsets.UTF_8);
+        final byte[] member = nodeId.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zAdd(nodesKey, now, member);
+            connection.zRemRangeByScore(nodesKey, Double.NEGATIVE_INFINITY, now - leaseMillis);
+            connection.zCount(nodesKey, now - leaseMillis, Double.POSITIVE_INFINITY);
+            connection.pExpire(nodesKey, leaseMillis);
+            return null;
+        });
+        long liveNodes = 1;
+        for (Object result : results) {
+            if (result instanceof Long && (Long) result > 0) {
+                liveNodes = (Long) result;
+            }
+        }
+        int shards = expiryIndex.getShards();
+        int fairShare = (int) ((shards + liveNodes - 1) / liveNodes);
+
+        Iterator<Integer> iterator = leasedShards.iterator();
+        int kept = 0;
+        while (iterator.hasNext()) {
+            Integer shard = iterator.next();
+            if (kept < fairShare && SessionRedisScripts.acquireLease(redisTemplate, LEASE_KEY_PREFIX + shard,
+                    nodeId, leaseMillis)) {
+                kept++;
+            } else {
+                iterator.remove();
+                SessionRedisScripts.releaseLease(redisTemplate, LEASE_KEY_PREFIX + shard, nodeId);
+            }
+        }
+        int offset = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards && leasedShards.size() < fairShare; i++) {
+            int shard = (offset + i) % shards;
+            if (!leasedShards.contains(shard)
+                    && SessionRedisScripts.acquireLease(redisTemplate, LEASE_KEY_PREFIX + shard, nodeId, leaseMillis)) {
+                leasedShards.add(shard);
+            }
+        }
+    }
+
+    /**
+     * 分批取出索引中过期时刻已到的Session：Redis中已不存在或校验失败的视为过期，其余按实际剩余时间重新登记
+     */
+    private int sweepShard(final int shard, final long now) {
+        int expired = 0;
+        while (true) {
+            long batchStart = System.currentTimeMillis();
+            List<String> candidates = expiryIndex.findExpired(shard, now, batchSize);
+            if (candidates.isEmpty()) {
+                return expired;
+            }
+            List<Object> ttls = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String sessionId : candidates) {
+                    connection.pTtl(rawKey(sessionId));
+                }
+                return null;
+            });
+            List<Session> expiredSessions = new ArrayList<>();
+            List<String> alive = new ArrayList<>();
+            List<Long> aliveTtls = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                String sessionId = candidates.get(i);
+                long ttl = i < ttls.size() && ttls.get(i) != null ? (Long) ttls.get(i) : -2;
+                Session session = ttl == -2 ? null : sessionDao.doReadSessionWithoutExpire(sessionId);
+                if (session == null) {
+                    expiredSessions.add(expiredStub(sessionId));
+                } else if (!isValid(session)) {
+                    expiredSessions.add(session);
+                } else {
+                    alive.add(sessionId);
+                    aliveTtls.add(ttl < 0 ? TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout) : ttl);
+                }
+            }
+            if (!alive.isEmpty()) {
+                final long rescoreAt = System.currentTimeMillis();
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < alive.size(); i++) {
+                        expiryIndex.expireAt(connection, alive.get(i), rescoreAt + aliveTtls.get(i));
+                    }
+                    return null;
+                });
+            }
+            expired += fireClaimed(expiredSessions);
+            throttle(candidates.size(), batchStart);
+            if (candidates.size() < batchSize) {
+                return expired;
+            }
+        }
+    }
+
+    /**
+     * 从索引中ZREM成功的Session才由本节点通知过期
+     */
+    private int fireClaimed(final List<Session> expiredSessions) {
+        if (expiredSessions.isEmpty()) {
+            return 0;
+        }
+        List<Object> removed = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Session session : expiredSessions) {
+                expiryIndex.removed(connection, session.getId());
+            }
+            return null;
+        });
+        int fired = 0;
+        for (int i = 0; i < expiredSessions.size(); i++) {
+            if (i < removed.size() && removed.get(i) instanceof Long && (Long) removed.get(i) > 0) {
+                Session session = expiredSessions.get(i);
+                for (SessionListener listener : sessionListeners) {
+                    try {
+                        listener.onExpiration(session);
+                    } catch (Exception e) {
+                        log.warn("session listener onExpiration error", e);
+                    }
+                }
+                fired++;
+            }
+        }
+        return fired;
+    }
+
+    private static boolean isValid(final Session session) {
+        if (!(session instanceof ValidatingSession)) {
+            return true;
+        }
+        try {
+            ((ValidatingSession) session).validate();
+            return true;
+        } catch (InvalidSessionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Redis中已因TTL被删除的Session只剩下id
+     */
+    private static Session expiredStub(final String sessionId) {
+        ShiroSession session = new ShiroSession();
+        session.setId(sessionId);
+        session.setExpired(true);
+        return session;
+    }
+
+    private void throttle(final int processed, final long batchStart) {
+        long minimumMillis = processed * 1000L / Math.max(1, maxSessionsPerSecond);
+        long remaining = minimumMillis - (System.currentTimeMillis() - batchStart);
+        if (remaining > 0) {
+            try {
+                Thread.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] rawKey(final String sessionId) {
+        return ((RedisSerializer<String>) redisTemplate.getKeySerializer()).serialize(redisShiroSessionPrefix + sessionId);
+    }
+
+}
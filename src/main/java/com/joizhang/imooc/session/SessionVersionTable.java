@@ -0,0 +1,159 @@
+package com.joizhang.imooc.session;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Session版本表：按Session key的hash分成若干个Redis Hash，每个field保存一个Session的版本号，
+ * 每次写回Session后版本号加一。节点只需读取版本号即可判断本地缓存是否过期，不依赖失效消息一定送达
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+public class SessionVersionTable {
+
+    private static final String REDIS_SHIRO_SESSION_VERSION = "shiro-session-version:";
+
+    private static final int DEFAULT_SHARDS = 256;
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 版本表key的前缀 prefix+shard
+     */
+    @Getter
+    private String versionKeyPrefix = REDIS_SHIRO_SESSION_VERSION;
+
+    /**
+     * 分片个数
+     */
+    private int shards = DEFAULT_SHARDS;
+
+    /**
+     * 分片的过期时间(秒)，每次写入时重置；长时间没有写入的分片连同其中过期Session的版本号一起被清除
+     */
+    @Getter
+    @Setter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 预先编码的各分片key，前缀或分片个数改变时重建
+     */
+    private volatile byte[][] shardKeys;
+
+    public void setVersionKeyPrefix(final String versionKeyPrefix) {
+        this.versionKeyPrefix = versionKeyPrefix;
+        this.shardKeys = null;
+    }
+
+    public void setShards(final int shards) {
+        this.shards = shards;
+        this.shardKeys = null;
+    }
+
+    /**
+     * 读取Session当前的版本号，没有记录时返回0
+     *
+     * @param sessionKey Session在Redis中的key
+     */
+    public long getVersion(final String sessionKey) {
+        return getVersion(sessionKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 读取Session当前的版本号，没有记录时返回0
+     *
+     * @param sessionKey 已编码的Session key，同时用作field
+     */
+    public long getVersion(final byte[] sessionKey) {
+        final byte[] shardKey = shardKey(sessionKey);
+        byte[] version = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.hGet(shardKey, sessionKey));
+        return version == null ? 0 : parseVersion(version);
+    }
+
+    /**
+     * 版本号加一并返回新的版本号
+     */
+    public long increment(final String sessionKey) {
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            increment(connection, sessionKey);
+            return null;
+        });
+        return (Long) results.get(0);
+    }
+
+    /**
+     * 在已有的pipeline中追加版本号加一的命令，应排在写入Session的命令之后
+     */
+    public void increment(final RedisConnection connection, final String sessionKey) {
+        byte[] shardKey = shardKey(sessionKey);
+        connection.hIncrBy(shardKey, sessionKey.getBytes(StandardCharsets.UTF_8), 1);
+        connection.expire(shardKey, redisShiroSessionTimeout);
+    }
+
+    /**
+     * 删除Session的版本号，缓存了该Session的节点下次检查时会重新读取
+     */
+    public void remove(final String sessionKey) {
+        final byte[] field = sessionKey.getBytes(StandardCharsets.UTF_8);
+        final byte[] shardKey = shardKey(sessionKey);
+        redisTemplate.execute((RedisCallback<Long>) connection -> connection.hDel(shardKey, field));
+    }
+
+    /**
+     * 在已有的pipeline中删除Session的版本号
+     */
+    public void removed(final RedisConnection connection, final String sessionKey) {
+        connection.hDel(shardKey(sessionKey), sessionKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] shardKey(final String sessionKey) {
+        return shardKey(sessionKey.hashCode());
+    }
+
+    /**
+     * 已编码的Session key所在分片的key，供不经过RedisTemplate的异步写入使用
+     */
+    byte[] shardKey(final byte[] sessionKey) {
+        return shardKey(SessionKeyEncoder.hash(sessionKey));
+    }
+
+    private byte[] shardKey(final int hash) {
+        byte[][] keys = shardKeys;
+        if (keys == null) {
+            keys = new byte[shards][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (versionKeyPrefix + i).getBytes(StandardCharsets.UTF_8);
+            }
+            shardKeys = keys;
+        }
+        return keys[(hash & Integer.MAX_VALUE) % keys.length];
+    }
+
+    /**
+     * HINCRBY写入的十进制版本号，直接按ASCII数字解析
+     */
+    private static long parseVersion(final byte[] version) {
+        long value = 0;
+        for (byte b : version) {
+            if (b < '0' || b > '9') {
+                return Long.parseLong(new String(version, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+}
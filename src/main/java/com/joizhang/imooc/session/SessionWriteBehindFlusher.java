@@ -0,0 +1,279 @@
+package com.joizhang.imooc.session;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session异步写回：待写的Session按key合并，由后台线程定期以pipeline批量SETEX到Redis
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class SessionWriteBehindFlusher implements Initializable, Destroyable {
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 5;
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 两次写回之间的间隔(毫秒)
+     */
+    @Setter
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+    /**
+     * 每个pipeline最多包含的命令数
+     */
+    @Setter
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * 写入Redis的过期时间(秒)
+     */
+    @Setter
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 设置后每个Session写回的同时在同一pipeline中增加其版本号
+     */
+    @Setter
+    private SessionVersionTable versionTable;
+
+    /**
+     * 设置后每个Session写回的同时在同一pipeline中更新按过期时间排序的索引
+     */
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    /**
+     * 设置后熔断期间暂停写回，写回的成败也计入熔断器
+     */
+    @Setter
+    private RedisCircuitBreaker circuitBreaker;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    /**
+     * 待写回的Session，同一个key只保留最新的一份
+     */
+    private final ConcurrentMap<String, Session> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 写回与取消写回互斥，保证删除后的Session不会被写回
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * destroy开始后置位，此后入队的Session由调用线程直接写回
+     */
+    private volatile boolean draining;
+
+    @Override
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shiro-session-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止后台线程并写回剩余的Session
+     */
+    @Override
+    public void destroy() {
+        draining = true;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        log.info("session write-behind flusher stopped, {} sessions left", pending.size());
+    }
+
+    /**
+     * 加入待写队列，已在队列中的同一Session会被合并；destroy开始后不再依赖后台线程，入队后立即写回
+     */
+    public void enqueue(final String key, final Session session) {
+        pending.put(key, session);
+        if (draining) {
+            flush();
+        }
+    }
+
+    /**
+     * 返回尚未写回Redis的Session
+     */
+    public Session getPending(final String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * 取消尚未写回的Session，删除Session前调用；会等待正在进行的写回完成
+     */
+    public void cancel(final String key) {
+        flushLock.lock();
+        try {
+            pending.remove(key);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃所有尚未写回的Session，清空Redis中的Session时调用
+     */
+    public void clear() {
+        flushLock.lock();
+        try {
+            pending.clear();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private void flushQuietly() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // 熔断期间不写Redis，待写内容留在队列中
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            return;
+        }
+        try {
+            flush();
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+        } catch (Exception e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
+            }
+            log.error("write-behind flush error", e);
+        }
+    }
+
+    /**
+     * 将当前所有待写的Session分批写回Redis
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            while (!pending.isEmpty()) {
+                List<Map.Entry<String, Session>> batch = new ArrayList<>(batchSize);
+                List<String> stringKeys = new ArrayList<>(batchSize);
+                List<byte[]> keys = new ArrayList<>(batchSize);
+                List<byte[]> values = new ArrayList<>(batchSize);
+                takeBatch(batch, stringKeys, keys, values);
+                if (keys.isEmpty()) {
+                    return;
+                }
+                final long timeout = redisShiroSessionTimeout;
+                List<Object> results;
+                try {
+                    results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        for (int i = 0; i < keys.size(); i++) {
+                            connection.setEx(keys.get(i), timeout, values.get(i));
+                            if (versionTable != null) {
+                                versionTable.increment(connection, stringKeys.get(i));
+                            }
+                            if (expiryIndex != null) {
+                                expiryIndex.written(connection, batch.get(i).getValue().getId());
+                            }
+                        }
+                        return null;
+                    });
+                } catch (Exception e) {
+                    // 写回失败，放回队列等待下一轮，已有更新的Session不覆盖
+                    batch.forEach(entry -> pending.putIfAbsent(entry.getKey(), entry.getValue()));
+                    throw e;
+                }
+                if (versionTable != null) {
+                    stampVersions(batch, results);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 每个Session在pipeline中只有HINCRBY返回Long，第i个Long即第i个Session的新版本号
+     */
+    private static void stampVersions(final List<Map.Entry<String, Session>> batch, final List<Object> results) {
+        int i = 0;
+        for (Object result : results) {
+            if (!(result instanceof Long)) {
+                continue;
+            }
+            if (i >= batch.size()) {
+                return;
+            }
+            Session session = batch.get(i++).getValue();
+            if (session instanceof ShiroSession) {
+                ((ShiroSession) session).setVersion((Long) result);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void takeBatch(final List<Map.Entry<String, Session>> batch, final List<String> stringKeys,
+                           final List<byte[]> keys, final List<byte[]> values) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        RedisSerializer<Session> valueSerializer = (RedisSerializer<Session>) redisTemplate.getValueSerializer();
+        Iterator<Map.Entry<String, Session>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && keys.size() < batchSize) {
+            Map.Entry<String, Session> entry = iterator.next();
+            // 先出队再序列化，序列化期间的修改会重新入队，不会丢失
+            if (!pending.remove(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            try {
+                values.add(valueSerializer.serialize(entry.getValue()));
+                keys.add(keySerializer.serialize(entry.getKey()));
+                stringKeys.add(entry.getKey());
+                batch.add(entry);
+            } catch (Exception e) {
+                // 序列化时Session正被请求线程修改，留到下一轮再写
+                log.debug("serialize session {} error, retry later", entry.getKey());
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+}
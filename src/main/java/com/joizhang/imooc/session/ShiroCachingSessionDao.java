@@ -1,25 +1,37 @@
 package com.joizhang.imooc.session;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.joizhang.imooc.session.cache.OffHeapSessionCache;
+import com.joizhang.imooc.session.cache.SessionCache;
+import com.joizhang.imooc.session.codec.CompressionStats;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.joizhang.imooc.session.store.SessionStore;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.cache.Cache;
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionException;
 import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.ValidatingSession;
 import org.apache.shiro.session.mgt.eis.CachingSessionDAO;
 import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author joizhang
  */
-@RequiredArgsConstructor()
 @Slf4j
 public class ShiroCachingSessionDao extends CachingSessionDAO {
 
@@ -27,40 +39,201 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
 
     private static final int SESSION_VAL_TIME_SPAN = 1800;
 
+    private static final int DEFAULT_MAX_DEGRADED_WRITES = 10_000;
+
     /**
      * 保存到Redis中key的前缀 prefix+sessionId
      */
-    @Setter
     private String redisShiroSessionPrefix = REDIS_SHIRO_SESSION;
 
+    private SessionKeyEncoder keyEncoder = new SessionKeyEncoder(REDIS_SHIRO_SESSION);
+
     /**
      * 设置会话的过期时间
      */
     @Setter
     private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
 
-    @NonNull
-    private RedisTemplate<String, Session> redisTemplate;
+    /**
+     * 未登录的Session在本地缓存中视为有效的时间(毫秒)，在此时间内不再从Redis重读；
+     * Session发生改变时会写回Redis并重新计时，0表示每次都从Redis重读
+     */
+    @Setter
+    private long anonymousSessionValidity = 0;
+
+    /**
+     * 设置后Session的更新改为异步批量写回Redis
+     */
+    @Setter
+    private SessionWriteBehindFlusher writeBehindFlusher;
+
+    /**
+     * 设置后Session以Hash结构存储，更新时只写回变化的字段；此时不使用writeBehindFlusher
+     */
+    @Setter
+    private ShiroSessionHashRepository hashRepository;
+
+    /**
+     * Session的持久化存储，未设置时按Redis配置创建
+     */
+    @Setter
+    private SessionStore sessionStore;
+
+    /**
+     * 设置后未改变的Session被访问时，由touchBatcher批量刷新Redis中的过期时间
+     */
+    @Setter
+    private SessionTouchBatcher touchBatcher;
+
+    /**
+     * 设置后本地缓存的Session通过比较版本号判断是否需要从Redis重读，替代登录用户永远信任本地缓存的做法
+     */
+    @Setter
+    private SessionVersionTable versionTable;
+
+    /**
+     * 设置了versionTable时，距上次同步不超过该时间(毫秒)的Session不检查版本号，0表示每次都检查
+     */
+    @Setter
+    private long versionCheckInterval = 0;
+
+    /**
+     * 设置后写入和删除Session时在同一pipeline中更新按过期时间排序的索引
+     */
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    /**
+     * 设置后登录、退出和删除Session时维护按用户的Session索引
+     */
+    @Setter
+    private SessionUserIndex userIndex;
+
+    /**
+     * Redis降级期间暂存的写入和删除最多各保留的个数，超出后丢弃并记录日志
+     */
+    @Setter
+    private int maxDegradedWrites = DEFAULT_MAX_DEGRADED_WRITES;
+
+    /**
+     * 设置后读写Redis受延迟预算和熔断保护，见{@link #setCircuitBreaker}
+     */
+    private RedisCircuitBreaker circuitBreaker;
+
+    /**
+     * Redis不可用期间未能写入的Session，恢复后重放
+     */
+    private final ConcurrentMap<Serializable, Session> degradedWrites = new ConcurrentHashMap<>();
+
+    /**
+     * Redis不可用期间未能删除的Session，恢复后重放
+     */
+    private final Set<Serializable> degradedDeletes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 只使用非Redis的sessionStore时为null，此时不能使用依赖Redis的索引、版本表等组件
+     */
+    private final RedisTemplate<String, Session> redisTemplate;
+
+    public ShiroCachingSessionDao(@NonNull final RedisTemplate<String, Session> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public ShiroCachingSessionDao(@NonNull final SessionStore sessionStore) {
+        this.redisTemplate = null;
+        this.sessionStore = sessionStore;
+    }
+
+    public void setRedisShiroSessionPrefix(final String redisShiroSessionPrefix) {
+        this.redisShiroSessionPrefix = redisShiroSessionPrefix;
+        this.keyEncoder = new SessionKeyEncoder(redisShiroSessionPrefix);
+    }
+
+    /**
+     * 设置后Redis变慢或不可用时：读取超过延迟预算即失败，本地有缓存时直接使用本地缓存；
+     * 写入和删除暂存在本地，熔断器恢复后重放；没有本地缓存的Session抛出SessionException而不是
+     * UnknownSessionException，用户不会因此被登出
+     */
+    public void setCircuitBreaker(final RedisCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        if (circuitBreaker != null) {
+            circuitBreaker.addRecoveryListener(this::replayDegradedWrites);
+        }
+    }
 
     /**
      * 重写CachingSessionDAO中readSession方法，如果Session中没有登陆信息就调用doReadSession方法从Redis中重读
      * session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY) == null 代表没有登录，登录后Shiro会放入该值
+     * 设置了anonymousSessionValidity时，有效期内的未登录Session直接使用本地缓存；
+     * 设置了versionTable时，只有版本号落后的Session才从Redis重读
      */
     @Override
     public Session readSession(final Serializable sessionId) {
-        Session session = getCachedSession(sessionId);
-        if (session == null || session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY) == null) {
-            session = this.doReadSession(sessionId);
-            if (session == null) {
-                throw new UnknownSessionException("There is no session with id [" + sessionId + "]");
-            } else {
-                // 缓存
-                cache(session, session.getId());
+        Session cached = getCachedSession(sessionId);
+        if (cached != null && isCachedSessionAuthoritative(cached)) {
+            return cached;
+        }
+        Session session;
+        try {
+            session = loadSession(sessionId);
+        } catch (Exception e) {
+            if (cached != null) {
+                log.warn("读取Session {} 失败，降级使用本地缓存: {}", sessionId, e.getMessage());
+                return cached;
+            }
+            if (circuitBreaker != null) {
+                throw new SessionException("Session store unavailable, session [" + sessionId + "]", e);
             }
+            log.warn("读取Session失败", e);
+            session = null;
+        }
+        if (session == null) {
+            throw new UnknownSessionException("There is no session with id [" + sessionId + "]");
         }
+        // 缓存
+        cache(session, session.getId());
         return session;
     }
 
+    /**
+     * 本地缓存的Session是否可以不经Redis重读直接使用
+     */
+    private boolean isCachedSessionAuthoritative(final Session session) {
+        if (versionTable != null && session instanceof ShiroSession) {
+            return isCachedVersionCurrent((ShiroSession) session);
+        }
+        if (session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY) != null) {
+            return true;
+        }
+        return anonymousSessionValidity > 0
+                && session instanceof ShiroSession
+                && System.currentTimeMillis() - ((ShiroSession) session).getSyncTimestamp() < anonymousSessionValidity;
+    }
+
+    /**
+     * 本地缓存的Session版本号是否与版本表一致，一致时重新计时
+     */
+    private boolean isCachedVersionCurrent(final ShiroSession session) {
+        if (System.currentTimeMillis() - session.getSyncTimestamp() < versionCheckInterval) {
+            return true;
+        }
+        try {
+            byte[] key = rawKey(session.getId());
+            if (guarded(() -> versionTable.getVersion(key)) == session.getVersion()) {
+                session.markSynced();
+                Cache<Serializable, Session> cache = getActiveSessionsCache();
+                if (cache instanceof OffHeapSessionCache) {
+                    // 堆外缓存每次读取都解码出新对象，同步时间需要写回索引
+                    ((OffHeapSessionCache) cache).markSynced(session.getId(), session.getSyncTimestamp());
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            log.warn("读取Session版本号失败", e);
+        }
+        return false;
+    }
+
     /**
      * 根据session ID获取session 并redis中重置过期时间
      *
@@ -72,18 +245,35 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         log.debug("begin doReadSession {} ", sessionId);
         Session session = null;
         try {
-            session = getSession(sessionId);
-            if (session != null) {
-                // 重置Redis中缓存过期时间
-                refreshSession(sessionId);
-                log.debug("sessionId {} name {} 被读取", sessionId, session.getClass().getName());
-            }
+            session = loadSession(sessionId);
         } catch (Exception e) {
             log.warn("读取Session失败", e);
         }
         return session;
     }
 
+    /**
+     * 从Redis中读取并重置过期时间，Redis不可用时抛出异常以便与Session不存在区分
+     */
+    private Session loadSession(final Serializable sessionId) throws Exception {
+        // 先读版本号再读Session，读取期间有写入时版本号偏旧，下次检查会再重读
+        long version = 0;
+        if (versionTable != null) {
+            byte[] key = rawKey(sessionId);
+            version = guarded(() -> versionTable.getVersion(key));
+        }
+        // 读取的同时重置Redis中缓存过期时间
+        Session session = getAndRefreshSession(sessionId);
+        if (session != null) {
+            markSynced(session);
+            if (session instanceof ShiroSession) {
+                ((ShiroSession) session).setVersion(version);
+            }
+            log.debug("sessionId {} name {} 被读取", sessionId, session.getClass().getName());
+        }
+        return session;
+    }
+
     /**
      * 从Redis中读取，但不重置Redis中缓存过期时间
      */
@@ -109,6 +299,7 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         assignSessionId(session, sessionId);
         try {
             saveSession(session);
+            markSynced(session);
             log.info("sessionId {} name {} 被创建", sessionId, session.getClass().getName());
         } catch (Exception e) {
             log.error("创建Session失败", e);
@@ -134,12 +325,15 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
                 // 如果没有主要字段(除lastAccessTime以外其他字段)发生改变
                 ShiroSession ss = (ShiroSession) session;
                 if (!ss.isChanged()) {
+                    touch(ss);
                     return;
                 }
                 ss.setChanged(false);
-                ss.setLastAccessTime(new Date());
+                ss.markAccessed(new Date());
 
                 updateSession(session);
+                ss.markSynced();
+                indexUser(ss);
 
                 log.debug("sessionId {} name {} 被更新", session.getId(), session.getClass().getName());
             } else {
@@ -156,6 +350,62 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         this.doUpdate(session);
     }
 
+    /**
+     * 立即写回一批修改：Session、过期索引和版本号在一个pipeline内写入，不经过writeBehindFlusher；
+     * 不是默认的同步Redis存储时退回update
+     */
+    public void commit(final Session session) {
+        final SessionStore store = store();
+        if (!(session instanceof ShiroSession) || !(store instanceof RedisSessionStore)
+                || store instanceof LettuceAsyncSessionStore) {
+            update(session);
+            return;
+        }
+        ShiroSession ss = (ShiroSession) session;
+        if (!ss.isValid() || !ss.isChanged()) {
+            update(session);
+            return;
+        }
+        ss.setChanged(false);
+        ss.markAccessed(new Date());
+        final String key = buildRedisSessionKey(session.getId());
+        if (writeBehindFlusher != null) {
+            // 队列中的旧版本不再需要写回
+            writeBehindFlusher.cancel(key);
+        }
+        final RedisSessionStore redisStore = (RedisSessionStore) store;
+        final byte[] value = redisStore.serialize(session);
+        try {
+            List<Object> results = guarded(() -> redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                redisStore.written(connection, session.getId(), value);
+                if (versionTable != null) {
+                    versionTable.increment(connection, key);
+                }
+                return null;
+            }));
+            if (versionTable != null) {
+                ss.setVersion(lastLong(results));
+            }
+            ss.markSynced();
+            indexUser(ss);
+        } catch (Exception e) {
+            log.error("commit session error", e);
+            deferWrite(session);
+        }
+    }
+
+    /**
+     * pipeline结果中HINCRBY返回的版本号，SETEX、ZADD和EXPIRE的结果都不是Long
+     */
+    private static long lastLong(final List<Object> results) {
+        for (int i = results.size() - 1; i >= 0; i--) {
+            if (results.get(i) instanceof Long) {
+                return (Long) results.get(i);
+            }
+        }
+        return 0;
+    }
+
     /**
      * 删除会话；当会话过期/会话停止（如用户退出时）会调用
      */
@@ -164,6 +414,7 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         log.debug("begin doDelete {} ", session);
         try {
             deleteSession(session.getId());
+            unindexUser(session);
             this.deleteCache(session.getId());
             log.debug("shiro session id {} 被删除", session.getId());
         } catch (Exception e) {
@@ -171,6 +422,69 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         }
     }
 
+    /**
+     * 批量删除同一用户的Session，所有Redis命令在一个pipeline中发送；只清除本节点的缓存
+     */
+    public void deleteSessions(final Collection<? extends Serializable> sessionIds, final String userName) {
+        if (sessionIds.isEmpty()) {
+            return;
+        }
+        for (Serializable id : sessionIds) {
+            if (writeBehindFlusher != null) {
+                writeBehindFlusher.cancel(buildRedisSessionKey(id));
+            }
+            if (touchBatcher != null) {
+                touchBatcher.cancel(buildRedisSessionKey(id));
+            }
+        }
+        try {
+            final boolean redisStore = store() instanceof RedisSessionStore;
+            if (!redisStore) {
+                sessionIds.forEach(store()::delete);
+            }
+            if (redisTemplate == null) {
+                sessionIds.forEach(this::deleteCache);
+                return;
+            }
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Serializable id : sessionIds) {
+                    if (redisStore) {
+                        connection.del(rawKey(id));
+                    }
+                    if (expiryIndex != null) {
+                        expiryIndex.removed(connection, id);
+                    }
+                    if (versionTable != null) {
+                        versionTable.removed(connection, buildRedisSessionKey(id));
+                    }
+                    if (userIndex != null && userName != null) {
+                        userIndex.removed(connection, userName, id);
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("delete sessions error", e);
+        }
+        sessionIds.forEach(this::deleteCache);
+    }
+
+    /**
+     * 清除本节点缓存的全部Session以及尚未写回Redis的修改
+     */
+    public void clearLocal() {
+        if (writeBehindFlusher != null) {
+            writeBehindFlusher.clear();
+        }
+        if (touchBatcher != null) {
+            touchBatcher.clear();
+        }
+        Cache<Serializable, Session> cache = getActiveSessionsCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     /**
      * 删除cache中缓存的Session
      */
@@ -192,36 +506,178 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
         return super.getActiveSessions();
     }
 
+    /**
+     * 返回本地缓存的命中、未命中、淘汰次数，未配置SessionCacheManager时返回null
+     */
+    public CacheStats getLocalCacheStats() {
+        Cache<Serializable, Session> cache = getActiveSessionsCache();
+        if (cache instanceof SessionCache) {
+            return ((SessionCache) cache).stats();
+        }
+        if (cache instanceof OffHeapSessionCache) {
+            return ((OffHeapSessionCache) cache).stats();
+        }
+        return null;
+    }
+
+    /**
+     * Redis中Session数据的压缩统计，值序列化器不是ShiroSessionRedisSerializer时返回null
+     */
+    public CompressionStats getCompressionStats() {
+        if (redisTemplate != null && redisTemplate.getValueSerializer() instanceof ShiroSessionRedisSerializer) {
+            return ((ShiroSessionRedisSerializer) redisTemplate.getValueSerializer()).getCompressor().stats();
+        }
+        return null;
+    }
+
+    /**
+     * 只刷新过期时间：Redis存储交给touchBatcher合并后批量发送，其他存储(堆内、映射文件)直接调用SessionStore.touch
+     */
+    private void touch(final ShiroSession session) {
+        if (session.getLastAccessTime() == null) {
+            return;
+        }
+        final long lastAccessTime = session.getLastAccessTime().getTime();
+        if (isRedisKeyStore()) {
+            if (touchBatcher != null) {
+                touchBatcher.touch(buildRedisSessionKey(session.getId()), session.getId(), lastAccessTime);
+            }
+        } else {
+            try {
+                guarded(() -> {
+                    store().touch(session.getId(), lastAccessTime);
+                    return null;
+                });
+            } catch (Exception e) {
+                log.warn("touch session {} error: {}", session.getId(), e.getMessage());
+            }
+        }
+        Cache<Serializable, Session> cache = getActiveSessionsCache();
+        if (cache instanceof OffHeapSessionCache) {
+            ((OffHeapSessionCache) cache).touch(session.getId(), lastAccessTime);
+        }
+    }
+
+    /**
+     * Session以prefix+sessionId为key保存在Redis中，touchBatcher的PEXPIRE对其有效
+     */
+    private boolean isRedisKeyStore() {
+        SessionStore store = store();
+        return store instanceof RedisSessionStore || store instanceof ShiroSessionHashRepository;
+    }
+
+    /**
+     * 登录信息发生变化时更新按用户的索引，score为登录时间
+     */
+    private void indexUser(final ShiroSession session) {
+        if (userIndex == null || !session.drainPrincipalsChanged()) {
+            return;
+        }
+        try {
+            guarded(() -> {
+                // 同一Session可能换了用户登录，先移除旧的记录
+                userIndex.remove(session.getId());
+                String userName = session.getUserName();
+                if (userName != null) {
+                    userIndex.add(userName, session.getId(), System.currentTimeMillis());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("update session user index error", e);
+        }
+    }
+
+    private void unindexUser(final Session session) {
+        if (userIndex == null) {
+            return;
+        }
+        try {
+            String userName = session instanceof ShiroSession ? ((ShiroSession) session).getUserName() : null;
+            guarded(() -> {
+                if (userName == null) {
+                    // 如校验器清理的已过期Session只有id
+                    userIndex.remove(session.getId());
+                } else {
+                    redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        userIndex.removed(connection, userName, session.getId());
+                        return null;
+                    });
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("delete session user index error", e);
+        }
+    }
+
+    private void markSynced(final Session session) {
+        if (session instanceof ShiroSession) {
+            ((ShiroSession) session).markSynced();
+        }
+    }
+
     /**
      * 保存session
      */
     private void saveSession(final Session session) {
         try {
-            redisTemplate.opsForValue()
-                    .set(buildRedisSessionKey(session.getId()), session, redisShiroSessionTimeout, TimeUnit.SECONDS);
+            guarded(() -> {
+                store().create(session);
+                incrementVersion(session);
+                return null;
+            });
         } catch (Exception e) {
-            log.error("save session to redis error");
+            log.error("save session error");
+            deferWrite(session);
         }
     }
 
     /**
-     * 更新session
+     * 更新session，异步写回只用于默认的Redis存储
      */
     private void updateSession(final Session session) {
+        if (writeBehindFlusher != null && store() instanceof RedisSessionStore) {
+            writeBehindFlusher.enqueue(buildRedisSessionKey(session.getId()), session);
+            return;
+        }
         try {
-            redisTemplate.boundValueOps(buildRedisSessionKey(session.getId()))
-                    .set(session, redisShiroSessionTimeout, TimeUnit.SECONDS);
+            guarded(() -> {
+                store().update(session);
+                incrementVersion(session);
+                return null;
+            });
         } catch (Exception e) {
             log.error("update session error");
+            deferWrite(session);
         }
     }
 
+    /**
+     * 写入Redis后增加版本号，异步写回时由writeBehindFlusher负责，Lettuce异步存储设置了版本表时由存储负责
+     */
+    private void incrementVersion(final Session session) {
+        SessionStore store = store();
+        if (store instanceof LettuceAsyncSessionStore && ((LettuceAsyncSessionStore) store).getVersionTable() != null) {
+            return;
+        }
+        if (versionTable != null && session instanceof ShiroSession) {
+            ((ShiroSession) session).setVersion(versionTable.increment(buildRedisSessionKey(session.getId())));
+        }
+    }
 
     /**
-     * 刷新session
+     * 获取session并刷新过期时间
      */
-    private void refreshSession(final Serializable sessionId) {
-        redisTemplate.expire(buildRedisSessionKey(sessionId), redisShiroSessionTimeout, TimeUnit.SECONDS);
+    private Session getAndRefreshSession(final Serializable id) throws Exception {
+        Session pending = getPendingSession(id);
+        if (pending != null) {
+            return pending;
+        }
+        if (degradedDeletes.contains(id)) {
+            return null;
+        }
+        return guarded(() -> store().readAndRefresh(id));
     }
 
 
@@ -229,25 +685,147 @@ public class ShiroCachingSessionDao extends CachingSessionDAO {
      * 删除session
      */
     private void deleteSession(final Serializable id) {
+        if (writeBehindFlusher != null) {
+            writeBehindFlusher.cancel(buildRedisSessionKey(id));
+        }
+        if (touchBatcher != null) {
+            touchBatcher.cancel(buildRedisSessionKey(id));
+        }
         try {
-            redisTemplate.delete(buildRedisSessionKey(id));
+            guarded(() -> {
+                removeFromStore(id);
+                return null;
+            });
         } catch (Exception e) {
             log.error("delete session error");
+            deferDelete(id);
+        }
+    }
+
+    private void removeFromStore(final Serializable id) {
+        if (versionTable != null) {
+            versionTable.remove(buildRedisSessionKey(id));
         }
+        store().delete(id);
     }
 
 
     /**
      * 获取session
      */
-    private Session getSession(final Serializable id) {
-        Session session = null;
+    private Session getSession(final Serializable id) throws Exception {
+        Session pending = getPendingSession(id);
+        if (pending != null) {
+            return pending;
+        }
+        if (degradedDeletes.contains(id)) {
+            return null;
+        }
+        return guarded(() -> store().read(id));
+    }
+
+    /**
+     * 设置了circuitBreaker时在延迟预算内执行，否则直接在当前线程执行
+     */
+    private <T> T guarded(final Callable<T> call) throws Exception {
+        return circuitBreaker == null ? call.call() : circuitBreaker.execute(call);
+    }
+
+    /**
+     * Redis不可用时暂存写入，同一Session只保留最新的一份
+     */
+    private void deferWrite(final Session session) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        if (degradedWrites.size() >= maxDegradedWrites && !degradedWrites.containsKey(session.getId())) {
+            log.warn("too many degraded session writes, drop {}", session.getId());
+            return;
+        }
+        degradedDeletes.remove(session.getId());
+        degradedWrites.put(session.getId(), session);
+    }
+
+    private void deferDelete(final Serializable id) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        degradedWrites.remove(id);
+        if (degradedDeletes.size() >= maxDegradedWrites) {
+            log.warn("too many degraded session deletes, drop {}", id);
+            return;
+        }
+        degradedDeletes.add(id);
+    }
+
+    /**
+     * Redis恢复后在熔断器的工作线程上重放暂存的删除和写入，写入一律完整写回；再次失败时留待下次恢复
+     */
+    private void replayDegradedWrites() {
+        int replayed = 0;
         try {
-            session = redisTemplate.boundValueOps(buildRedisSessionKey(id)).get();
+            for (Serializable id : degradedDeletes) {
+                removeFromStore(id);
+                degradedDeletes.remove(id);
+                replayed++;
+            }
+            for (Map.Entry<Serializable, Session> entry : degradedWrites.entrySet()) {
+                store().create(entry.getValue());
+                incrementVersion(entry.getValue());
+                degradedWrites.remove(entry.getKey(), entry.getValue());
+                replayed++;
+            }
+            circuitBreaker.recordSuccess();
         } catch (Exception e) {
-            log.info("get session error");
+            log.warn("replay degraded session writes error", e);
+            circuitBreaker.recordFailure();
         }
-        return session;
+        log.info("replayed {} degraded session writes, {} left", replayed,
+                degradedDeletes.size() + degradedWrites.size());
+    }
+
+    /**
+     * Redis降级期间暂存的写入和删除个数
+     */
+    public int getDegradedWriteCount() {
+        return degradedWrites.size() + degradedDeletes.size();
+    }
+
+    /**
+     * 未设置sessionStore时，设置了hashRepository则以Hash结构存储，否则每个Session一个String key
+     */
+    private SessionStore store() {
+        if (sessionStore == null) {
+            if (hashRepository != null) {
+                sessionStore = hashRepository;
+            } else {
+                RedisSessionStore redisSessionStore = new RedisSessionStore(redisTemplate);
+                redisSessionStore.setRedisShiroSessionPrefix(redisShiroSessionPrefix);
+                redisSessionStore.setRedisShiroSessionTimeout(redisShiroSessionTimeout);
+                redisSessionStore.setExpiryIndex(expiryIndex);
+                sessionStore = redisSessionStore;
+            }
+        }
+        return sessionStore;
+    }
+
+    /**
+     * 尚未写回Redis的Session以本地为准
+     */
+    private Session getPendingSession(final Serializable id) {
+        Session degraded = degradedWrites.get(id);
+        if (degraded != null) {
+            return degraded;
+        }
+        // 队列为空时不必拼接key
+        if (writeBehindFlusher == null || writeBehindFlusher.size() == 0) {
+            return null;
+        }
+        return writeBehindFlusher.getPending(buildRedisSessionKey(id));
+    }
+
+    private byte[] rawKey(final Serializable sessionId) {
+        return keyEncoder.encode(sessionId);
     }
 
     /**
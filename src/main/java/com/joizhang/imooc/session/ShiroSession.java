@@ -1,9 +1,15 @@
 package com.joizhang.imooc.session;
 
+import com.joizhang.imooc.session.codec.EncodedValue;
 import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -16,6 +22,26 @@ public class ShiroSession extends SimpleSession implements Serializable {
      */
     private boolean isChanged;
 
+    /**
+     * 本节点最近一次与Redis同步(读取或写入)该Session的时间
+     */
+    private transient long syncTimestamp;
+
+    /**
+     * 本节点读取或写入该Session时版本表中的版本号
+     */
+    private transient volatile long version;
+
+    /**
+     * 上次写回Redis后被修改过的字段，用于只写回发生变化的部分
+     */
+    private transient SessionDelta delta = SessionDelta.full();
+
+    /**
+     * 登录信息自上次写回后被设置或移除，写回时需要更新按用户的Session索引
+     */
+    private transient boolean principalsChanged;
+
     ShiroSession() {
         super();
         this.setChanged(true);
@@ -31,65 +57,131 @@ public class ShiroSession extends SimpleSession implements Serializable {
     public void setId(final Serializable id) {
         super.setId(id);
         this.setChanged(true);
+        delta().markFull();
     }
 
     @Override
     public void setStopTimestamp(final Date stopTimestamp) {
         super.setStopTimestamp(stopTimestamp);
         this.setChanged(true);
+        delta().markMeta();
     }
 
     @Override
     public void setExpired(final boolean expired) {
         super.setExpired(expired);
         this.setChanged(true);
+        delta().markMeta();
     }
 
     @Override
     public void setTimeout(final long timeout) {
         super.setTimeout(timeout);
         this.setChanged(true);
+        delta().markMeta();
     }
 
     @Override
     public void setHost(final String host) {
         super.setHost(host);
         this.setChanged(true);
+        delta().markMeta();
     }
 
     @Override
     public void setAttributes(final Map<Object, Object> attributes) {
         super.setAttributes(attributes);
         this.setChanged(true);
+        delta().markFull();
     }
 
-    @Override
-    public void setLastAccessTime(final Date lastAccessTime) {
-        if (getLastAccessTime() != null) {
-            long last = getLastAccessTime().getTime();
-            long now = lastAccessTime.getTime();
-            //如果10s内访问 则不更新session,否则需要更新远端过期时间
-            if ((last - now) / 1000 >= 10) {
-                //发送通知
-                //设置为已改变，更新到redis
-                this.setChanged(true);
-            }
-        }
-        super.setLastAccessTime(lastAccessTime);
-    }
-
-
     @Override
     public void setAttribute(final Object key,
                              final Object value) {
-        super.setAttribute(key, value);
+        if (value == null) {
+            // SimpleSession中设置null等同于删除
+            removeAttribute(key);
+            return;
+        }
+        // 直接写入属性Map，避免SimpleSession经由getAttributes()解码全部属性
+        Map<Object, Object> attributes = super.getAttributes();
+        if (attributes == null) {
+            attributes = new HashMap<>();
+            super.setAttributes(attributes);
+        }
+        attributes.put(key, value);
         this.setChanged(true);
+        delta().markAttribute(key);
+        markPrincipalsChanged(key);
     }
 
     @Override
     public Object removeAttribute(final Object key) {
         this.setChanged(true);
-        return super.removeAttribute(key);
+        delta().markRemoved(key);
+        markPrincipalsChanged(key);
+        Map<Object, Object> attributes = super.getAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        return decoded(attributes.remove(key));
+    }
+
+    /**
+     * 属性值在第一次访问时才解码，解码结果替换原始字节保存在Session中
+     */
+    @Override
+    public Object getAttribute(final Object key) {
+        Map<Object, Object> attributes = super.getAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Object value = attributes.get(key);
+        if (value instanceof EncodedValue) {
+            value = ((EncodedValue) value).decode();
+            attributes.put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Collection<Object> getAttributeKeys() {
+        Map<Object, Object> attributes = super.getAttributes();
+        if (attributes == null) {
+            return Collections.emptySet();
+        }
+        return attributes.keySet();
+    }
+
+    /**
+     * 返回所有属性，尚未解码的属性会在此全部解码
+     */
+    @Override
+    public Map<Object, Object> getAttributes() {
+        Map<Object, Object> attributes = super.getAttributes();
+        if (attributes != null) {
+            attributes.replaceAll((key, value) -> decoded(value));
+        }
+        return attributes;
+    }
+
+    /**
+     * 返回属性Map本身，其中可能包含尚未解码的{@link EncodedValue}
+     */
+    public Map<Object, Object> getRawAttributes() {
+        return super.getAttributes();
+    }
+
+    /**
+     * 写回Redis前记录访问时间，不标记为已改变；Hash存储时随meta一起写回
+     */
+    void markAccessed(final Date lastAccessTime) {
+        super.setLastAccessTime(lastAccessTime);
+        delta().markMeta();
+    }
+
+    private static Object decoded(final Object value) {
+        return value instanceof EncodedValue ? ((EncodedValue) value).decode() : value;
     }
 
     /**
@@ -99,6 +191,7 @@ public class ShiroSession extends SimpleSession implements Serializable {
     public void stop() {
         super.stop();
         this.setChanged(true);
+        delta().markMeta();
     }
 
     /**
@@ -119,4 +212,76 @@ public class ShiroSession extends SimpleSession implements Serializable {
         this.isChanged = isChanged;
     }
 
+    /**
+     * 反序列化得到的对象不会执行字段初始化
+     */
+    private SessionDelta delta() {
+        if (delta == null) {
+            delta = SessionDelta.full();
+        }
+        return delta;
+    }
+
+    /**
+     * 取出上次写回后累积的修改并重新开始记录
+     */
+    public SessionDelta drainDelta() {
+        SessionDelta drained = delta();
+        delta = new SessionDelta();
+        return drained;
+    }
+
+    private void markPrincipalsChanged(final Object key) {
+        if (DefaultSubjectContext.PRINCIPALS_SESSION_KEY.equals(key)) {
+            principalsChanged = true;
+        }
+    }
+
+    /**
+     * 取出并清除登录信息的修改标记
+     */
+    boolean drainPrincipalsChanged() {
+        boolean changed = principalsChanged;
+        principalsChanged = false;
+        return changed;
+    }
+
+    /**
+     * 登录用户名，即主要principal，未登录时返回null
+     */
+    public String getUserName() {
+        Object principals = getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+        if (principals instanceof PrincipalCollection && !((PrincipalCollection) principals).isEmpty()) {
+            return String.valueOf(((PrincipalCollection) principals).getPrimaryPrincipal());
+        }
+        return null;
+    }
+
+    public long getSyncTimestamp() {
+        return syncTimestamp;
+    }
+
+    /**
+     * 记录本节点刚与Redis同步过该Session
+     */
+    void markSynced() {
+        this.syncTimestamp = System.currentTimeMillis();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 从本地缓存中解码出的Session恢复不参与序列化的同步状态
+     */
+    public void restoreLocalState(final long syncTimestamp, final long version) {
+        this.syncTimestamp = syncTimestamp;
+        this.version = version;
+    }
+
+    void setVersion(final long version) {
+        this.version = version;
+    }
+
 }
@@ -0,0 +1,278 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.codec.ShiroSessionCodec;
+import com.joizhang.imooc.session.store.SessionStore;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以Redis Hash存储Session：固定字段为一个field，每个属性各占一个field，
+ * 更新时只写回发生变化的field(HMSET/HDEL)
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class ShiroSessionHashRepository implements SessionStore {
+
+    private static final String REDIS_SHIRO_SESSION = "shiro-session:";
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    /**
+     * 固定字段所在的field
+     */
+    private static final byte[] META_FIELD = {'m'};
+
+    /**
+     * 属性field的前缀，后接编码后的属性key
+     */
+    private static final byte ATTRIBUTE_FIELD_PREFIX = 'a';
+
+    /**
+     * 设置会话的过期时间
+     */
+    private int redisShiroSessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 保存到Redis中key的前缀 prefix+sessionId，已预先编码
+     */
+    private SessionKeyEncoder keyEncoder = new SessionKeyEncoder(REDIS_SHIRO_SESSION);
+
+    private byte[] timeoutArg = String.valueOf(SESSION_VAL_TIME_SPAN).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 设置后写入Session时在同一pipeline中更新按过期时间排序的索引
+     */
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    @NonNull
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @NonNull
+    private ShiroSessionCodec codec;
+
+    /**
+     * 整体写入session
+     */
+    public void saveSession(final ShiroSession session) {
+        session.drainDelta();
+        final byte[] key = rawKey(session.getId());
+        final Map<byte[], byte[]> fields = new LinkedHashMap<>();
+        fields.put(META_FIELD, codec.encodeMeta(session));
+        Map<Object, Object> attributes = session.getRawAttributes();
+        if (attributes != null) {
+            for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                fields.put(attributeField(entry.getKey()), codec.encodeValue(entry.getValue()));
+            }
+        }
+        final long timeout = redisShiroSessionTimeout;
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.del(key);
+            connection.hMSet(key, fields);
+            connection.expire(key, timeout);
+            if (expiryIndex != null) {
+                expiryIndex.written(connection, session.getId());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写回上次写回后发生变化的field
+     */
+    public void updateSession(final ShiroSession session) {
+        SessionDelta delta = session.drainDelta();
+        if (delta.isFull()) {
+            saveSession(session);
+            return;
+        }
+        final byte[] key = rawKey(session.getId());
+        final Map<byte[], byte[]> changed = new LinkedHashMap<>();
+        if (delta.isMetaChanged()) {
+            changed.put(META_FIELD, codec.encodeMeta(session));
+        }
+        for (Object attributeKey : delta.getChangedAttributes()) {
+            changed.put(attributeField(attributeKey), codec.encodeValue(session.getAttribute(attributeKey)));
+        }
+        Set<Object> removedKeys = delta.getRemovedAttributes();
+        final byte[][] removed = new byte[removedKeys.size()][];
+        Iterator<Object> iterator = removedKeys.iterator();
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = attributeField(iterator.next());
+        }
+        final long timeout = redisShiroSessionTimeout;
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (!changed.isEmpty()) {
+                connection.hMSet(key, changed);
+            }
+            if (removed.length > 0) {
+                connection.hDel(key, removed);
+            }
+            connection.expire(key, timeout);
+            if (expiryIndex != null) {
+                expiryIndex.written(connection, session.getId());
+            }
+            return null;
+        });
+    }
+
+    public void setRedisShiroSessionPrefix(final String redisShiroSessionPrefix) {
+        this.keyEncoder = new SessionKeyEncoder(redisShiroSessionPrefix);
+    }
+
+    public void setRedisShiroSessionTimeout(final int redisShiroSessionTimeout) {
+        this.redisShiroSessionTimeout = redisShiroSessionTimeout;
+        this.timeoutArg = String.valueOf(redisShiroSessionTimeout).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 获取session并刷新过期时间，只需一次网络往返
+     */
+    public ShiroSession getAndRefreshSession(final Serializable id) {
+        final byte[] key = rawKey(id);
+        final byte[] timeout = timeoutArg;
+        List<byte[]> fields = redisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                SessionRedisScripts.getAllAndExpire(connection, key, timeout));
+        Map<byte[], byte[]> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            map.put(fields.get(i), fields.get(i + 1));
+        }
+        return toSession(map);
+    }
+
+    /**
+     * 获取session，不重置过期时间
+     */
+    public ShiroSession getSession(final Serializable id) {
+        final byte[] key = rawKey(id);
+        return toSession(redisTemplate.execute((RedisCallback<Map<byte[], byte[]>>) connection ->
+                connection.hGetAll(key)));
+    }
+
+    /**
+     * 在给定的连接上以pipeline批量读取多个Session，已不存在的Session被跳过
+     */
+    @SuppressWarnings("unchecked")
+    public List<ShiroSession> getSessions(final RedisConnection connection, final List<byte[]> keys) {
+        connection.openPipeline();
+        for (byte[] key : keys) {
+            connection.hGetAll(key);
+        }
+        List<ShiroSession> sessions = new ArrayList<>(keys.size());
+        for (Object fields : connection.closePipeline()) {
+            ShiroSession session = fields instanceof Map ? toSession((Map<byte[], byte[]>) fields) : null;
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    public void deleteSession(final Serializable id) {
+        final byte[] key = rawKey(id);
+        if (expiryIndex == null) {
+            redisTemplate.execute((RedisCallback<Long>) connection -> connection.del(key));
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.del(key);
+            expiryIndex.removed(connection, id);
+            return null;
+        });
+    }
+
+    @Override
+    public void create(final Session session) {
+        saveSession((ShiroSession) session);
+    }
+
+    @Override
+    public void update(final Session session) {
+        updateSession((ShiroSession) session);
+    }
+
+    @Override
+    public Session read(final Serializable sessionId) {
+        return getSession(sessionId);
+    }
+
+    @Override
+    public Session readAndRefresh(final Serializable sessionId) {
+        return getAndRefreshSession(sessionId);
+    }
+
+    @Override
+    public void touch(final Serializable sessionId, final long lastAccessTime) {
+        final long ttl = lastAccessTime + TimeUnit.SECONDS.toMillis(redisShiroSessionTimeout) - System.currentTimeMillis();
+        if (ttl <= 0) {
+            return;
+        }
+        final byte[] key = rawKey(sessionId);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.pExpire(key, ttl);
+            if (expiryIndex != null) {
+                expiryIndex.touched(connection, sessionId, lastAccessTime);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(final Serializable sessionId) {
+        deleteSession(sessionId);
+    }
+
+    private ShiroSession toSession(final Map<byte[], byte[]> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        byte[] meta = null;
+        Map<byte[], byte[]> attributes = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+            byte[] field = entry.getKey();
+            if (Arrays.equals(field, META_FIELD)) {
+                meta = entry.getValue();
+            } else if (field.length > 0 && field[0] == ATTRIBUTE_FIELD_PREFIX) {
+                attributes.put(Arrays.copyOfRange(field, 1, field.length), entry.getValue());
+            }
+        }
+        if (meta == null) {
+            // 只剩属性没有固定字段，说明Session已被删除
+            log.debug("session hash without meta field ignored");
+            return null;
+        }
+        return codec.decode(meta, attributes);
+    }
+
+    private byte[] attributeField(final Object attributeKey) {
+        byte[] encoded = codec.encodeAttributeKey(attributeKey);
+        byte[] field = new byte[encoded.length + 1];
+        field[0] = ATTRIBUTE_FIELD_PREFIX;
+        System.arraycopy(encoded, 0, field, 1, encoded.length);
+        return field;
+    }
+
+    private byte[] rawKey(final Serializable sessionId) {
+        return keyEncoder.encode(sessionId);
+    }
+
+}
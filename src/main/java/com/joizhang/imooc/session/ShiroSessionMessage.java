@@ -1,36 +1,112 @@
 package com.joizhang.imooc.session;
 
-import lombok.AllArgsConstructor;
-import lombok.ToString;
 import org.springframework.data.redis.connection.DefaultMessage;
-import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * 缓存失效消息，一条消息携带一批sessionId：
+ * <pre>
+ * magic(1) version(1) nodeId(utf) count(int) { sessionId(utf) }*
+ * </pre>
+ * count为-1时表示清除全部Session的本地缓存
+ * 不使用JDK序列化，解码不经过ObjectInputStream
+ *
+ * @author joizhang
+ */
 public class ShiroSessionMessage extends DefaultMessage {
 
-    public final MessageBody msgBody;
+    private static final long serialVersionUID = 7952846013265078139L;
 
-    public ShiroSessionMessage(byte[] channel, byte[] body) {
-        super(channel, body);
-        msgBody = (MessageBody) new JdkSerializationRedisSerializer().deserialize(body);
-    }
+    private static final int MAGIC = 0x49;
 
+    private static final int VERSION = 1;
 
-    @SuppressWarnings("unused")
-    @ToString
-    @AllArgsConstructor
-    public static class MessageBody implements Serializable {
+    private static final int FLUSH_ALL = -1;
 
-        public final Serializable sessionId;
+    /**
+     * 发送消息的节点
+     */
+    public final String nodeId;
 
-        public final String nodeId;
+    /**
+     * 需要失效的sessionId
+     */
+    public final List<String> sessionIds;
 
-        public String msg = "";
+    /**
+     * 是否清除全部Session
+     */
+    public final boolean flushAll;
 
-        public MessageBody(Serializable sessionId, String nodeId) {
-            this.sessionId = sessionId;
-            this.nodeId = nodeId;
+    public ShiroSessionMessage(byte[] channel, byte[] body) {
+        super(channel, body);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            if (in.readUnsignedByte() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IllegalArgumentException("Not a session invalidation message");
+            }
+            nodeId = in.readUTF();
+            int count = in.readInt();
+            flushAll = count == FLUSH_ALL;
+            if (count < 0 && !flushAll) {
+                throw new IllegalArgumentException("Negative session count " + count);
+            }
+            List<String> ids = new ArrayList<>(Math.max(0, Math.min(count, body.length)));
+            for (int i = 0; i < count; i++) {
+                ids.add(in.readUTF());
+            }
+            sessionIds = Collections.unmodifiableList(ids);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed session invalidation message", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 编码一批sessionId，sessionId以字符串形式传递
+     */
+    public static byte[] encode(String nodeId, Collection<? extends Serializable> sessionIds) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + sessionIds.size() * 40);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(nodeId);
+            out.writeInt(sessionIds.size());
+            for (Serializable sessionId : sessionIds) {
+                out.writeUTF(sessionId.toString());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 编码清除全部Session的消息
+     */
+    public static byte[] encodeFlushAll(String nodeId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(nodeId);
+            out.writeInt(FLUSH_ALL);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "ShiroSessionMessage(nodeId=" + nodeId + ", flushAll=" + flushAll + ", sessionIds=" + sessionIds + ")";
+    }
+}
@@ -4,13 +4,18 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
 import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.RedisTemplate;
 
 import java.io.Serializable;
-import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author joizhang
@@ -24,16 +29,62 @@ public class ShiroSessionService implements MessageListener {
     @Setter
     private RedisTemplate<String, Session> redisTemplate;
 
+    /**
+     * 集群内的缓存失效通知，未设置时只清除本节点的缓存
+     */
+    @Setter
+    private SessionInvalidationBus invalidationBus;
+
+    /**
+     * 遍历Redis中的Session
+     */
+    @Setter
+    private SessionScanner sessionScanner;
+
+    /**
+     * 按过期时间排序的Session索引
+     */
+    @Setter
+    private SessionExpiryIndex expiryIndex;
+
+    /**
+     * 按用户的Session索引
+     */
     @Setter
-    private String unCacheChannel = "shiro.session.uncache";
+    private SessionUserIndex userIndex;
 
     /**
-     * 发送缓存失效的消息
+     * 每个用户最多同时登录的Session个数，0表示不限制
+     */
+    @Setter
+    private int maxSessionsPerUser = 0;
+
+    /**
+     * Session的版本表，清空Session时一并删除
+     */
+    @Setter
+    private SessionVersionTable versionTable;
+
+    /**
+     * 清空Session时每次SCAN取出的key个数
+     */
+    @Setter
+    private int purgeScanSize = 1000;
+
+    /**
+     * 清空Session时每条DEL命令删除的key个数，较小的批次避免单条命令长时间阻塞Redis
+     */
+    @Setter
+    private int purgeDeleteBatchSize = 100;
+
+    /**
+     * 清除本节点缓存的Session，并通知其他节点清除；本节点不再处理自己发出的消息
      */
     public void sendUnCacheSessionMessage(Serializable sessionId) {
-        String nodeId = ManagementFactory.getRuntimeMXBean().getName();
-        ShiroSessionMessage.MessageBody messageBody = new ShiroSessionMessage.MessageBody(sessionId, nodeId);
-        redisTemplate.convertAndSend(unCacheChannel, messageBody);
+        sessionDao.deleteCache(sessionId);
+        if (invalidationBus != null) {
+            invalidationBus.publish(sessionId);
+        }
     }
 
 
@@ -43,52 +94,60 @@ public class ShiroSessionService implements MessageListener {
         );
     }
 
-    public void setId(final Serializable id) {
-        ShiroSession session = this.getSession();
-        session.setId(id);
-        this.sessionDao.update(session);
+    /**
+     * 批量修改当前Session：只读取一次，changes中的所有修改以一个pipeline写回Redis，
+     * 并只发送一次缓存失效通知
+     */
+    public void mutate(final Consumer<ShiroSession> changes) {
+        mutate(SecurityUtils.getSubject().getSession().getId(), changes);
+    }
+
+    /**
+     * 批量修改指定的Session
+     *
+     * @see ShiroSessionService#mutate(Consumer)
+     */
+    public void mutate(final Serializable sessionId, final Consumer<ShiroSession> changes) {
+        apply(sessionId, session -> {
+            changes.accept(session);
+            return null;
+        });
+    }
+
+    private <T> T apply(final Serializable sessionId, final Function<ShiroSession, T> changes) {
+        ShiroSession session = (ShiroSession) this.sessionDao.doReadSessionWithoutExpire(sessionId);
+        if (session == null) {
+            throw new UnknownSessionException("There is no session with id [" + sessionId + "]");
+        }
+        T result = changes.apply(session);
+        this.sessionDao.commit(session);
         // 通过发布消息通知其他节点取消本地对session的缓存
         sendUnCacheSessionMessage(session.getId());
+        return result;
+    }
+
+    public void setId(final Serializable id) {
+        mutate(session -> session.setId(id));
     }
 
     public void setStopTimestamp(final Date stopTimestamp) {
-        ShiroSession session = this.getSession();
-        session.setStopTimestamp(stopTimestamp);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setStopTimestamp(stopTimestamp));
     }
 
     public void setExpired(final boolean expired) {
-        ShiroSession session = this.getSession();
-        session.setExpired(expired);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setExpired(expired));
     }
 
     public void setTimeout(final long timeout) {
-        ShiroSession session = this.getSession();
-        session.setTimeout(timeout);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setTimeout(timeout));
     }
 
     public void setHost(final String host) {
-        ShiroSession session = this.getSession();
-        session.setHost(host);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setHost(host));
     }
 
     public void setAttributes(final Map<Object, Object> attributes) {
-        ShiroSession session = this.getSession();
-        session.setAttributes(attributes);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setAttributes(attributes));
     }
 
     public Map<Object, Object> getAttributes() {
@@ -96,11 +155,7 @@ public class ShiroSessionService implements MessageListener {
     }
 
     public void setAttribute(final Object key, final Object value) {
-        ShiroSession session = this.getSession();
-        session.setAttribute(key, value);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
+        mutate(session -> session.setAttribute(key, value));
     }
 
     public Object getAttribute(final Object key) {
@@ -112,44 +167,77 @@ public class ShiroSessionService implements MessageListener {
     }
 
     public Object removeAttribute(final Object key) {
-        ShiroSession session = this.getSession();
-        Object res = session.removeAttribute(key);
-        this.sessionDao.update(session);
-        // 通过发布消息通知其他节点取消本地对session的缓存
-        sendUnCacheSessionMessage(session.getId());
-        return res;
-    }
-
-    /**
-     * 在线会话的简单实现
-     * 后续可以通过 keys统计数量，在通过SCAN 增量迭代取Session
-     */
-    /*@SuppressWarnings("unchecked")
-    public List<Map<String, Object>> getActiveSessions() {
-        //List<Map<String, Object>> sessions = Lists.newLinkedList();
-        List<Map<String, Object>> sessions = new LinkedList<>();
-//        Collection<Session> activeSession = sessionDao.getActiveSessions();
-//        for (Session session : activeSession) {
-//            Map<String, Object> map = Maps.newHashMap();
-//            SimplePrincipalCollection principalCollection = (SimplePrincipalCollection) session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
-//
-//            if (principalCollection != null) {
-//                List<Object> listPrincipals = principalCollection.asList();
-//                Map<String, Object> attributes = (Map<String, Object>) listPrincipals.get(1);
-//                map.put("loginName", listPrincipals.get(0));
-//                map.put("name", attributes.get("name"));
-//                map.put("ip", attributes.get("ip"));
-//            } else {
-//                map.put("loginName", "未登录");
-//                map.put("name", "未登录");
-//                map.put("ip", "未登录");
-//            }
-//            map.put("startTimestamp", session.getStartTimestamp());
-//            map.put("lastAccessTime", session.getLastAccessTime());
-//            sessions.add(map);
-//        }
-        return sessions;
-    }*/
+        return apply(SecurityUtils.getSubject().getSession().getId(), session -> session.removeAttribute(key));
+    }
+
+    /**
+     * 用户当前登录的所有Session，按登录时间从早到晚排列
+     */
+    public List<String> getUserSessionIds(final String userName) {
+        return userIndex.getSessionIds(userName);
+    }
+
+    /**
+     * 踢出用户的所有Session，返回踢出的Session个数
+     */
+    public int kickOut(final String userName) {
+        return kickOut(userName, userIndex.getSessionIds(userName));
+    }
+
+    /**
+     * 登录后调用，用户的Session超过maxSessionsPerUser时踢出最早登录的Session
+     */
+    public int enforceMaxSessions(final String userName) {
+        if (maxSessionsPerUser <= 0) {
+            return 0;
+        }
+        return kickOut(userName, userIndex.getOverflow(userName, maxSessionsPerUser));
+    }
+
+    /**
+     * 以一个pipeline删除Session，并以一条消息通知其他节点清除本地缓存
+     */
+    private int kickOut(final String userName, final List<String> sessionIds) {
+        if (sessionIds.isEmpty()) {
+            return 0;
+        }
+        sessionDao.deleteSessions(sessionIds, userName);
+        if (invalidationBus != null) {
+            invalidationBus.publish(sessionIds);
+        }
+        log.info("user {} kicked out {} sessions", userName, sessionIds.size());
+        return sessionIds.size();
+    }
+
+    /**
+     * 尚未过期的Session个数，由索引计算，不遍历Session
+     */
+    public long getActiveSessionCount() {
+        return expiryIndex.countActive();
+    }
+
+    /**
+     * 在线会话的分页查询，以SCAN增量遍历Redis中的Session，不使用KEYS也不一次取出全部Session
+     *
+     * @param cursor   上一页返回的游标，第一页为null
+     * @param pageSize 每页大约的Session个数
+     */
+    public SessionPage<Map<String, Object>> getActiveSessions(final String cursor, final int pageSize) {
+        SessionPage<Session> page = sessionScanner.scan(cursor, pageSize);
+        List<Map<String, Object>> sessions = new ArrayList<>(page.getItems().size());
+        for (Session session : page.getItems()) {
+            Map<String, Object> map = new HashMap<>(8);
+            PrincipalCollection principals =
+                    (PrincipalCollection) session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+            map.put("id", session.getId());
+            map.put("loginName", principals != null ? principals.getPrimaryPrincipal() : "未登录");
+            map.put("ip", session.getHost());
+            map.put("startTimestamp", session.getStartTimestamp());
+            map.put("lastAccessTime", session.getLastAccessTime());
+            sessions.add(map);
+        }
+        return new SessionPage<>(sessions, page.getNextCursor());
+    }
 
 
     /**
@@ -159,16 +247,7 @@ public class ShiroSessionService implements MessageListener {
      */
     @Deprecated
     public void flushRedis() {
-        Collection<Session> activeSession = sessionDao.getActiveSessions();
-        if (activeSession != null) {
-            for (Session session : activeSession) {
-                try {
-                    sessionDao.doDelete(session);
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                }
-            }
-        }
+        purgeAll();
     }
 
     /**
@@ -205,15 +284,50 @@ public class ShiroSessionService implements MessageListener {
      * 同时清除Redis和EhCache中的session
      */
     public void flushAll() {
-        Collection<Session> activeSession = sessionDao.getActiveSessions();
-        if (activeSession != null) {
-            for (Session session : activeSession) {
-                try {
-                    sessionDao.delete(session);
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                }
+        purgeAll();
+    }
+
+    /**
+     * 清空所有Session及其索引：以SCAN逐页取出key，每页的DEL在一个pipeline中发送，
+     * 最后只发布一条消息通知其他节点清除全部本地缓存；不触发SessionListener
+     *
+     * @return 删除的key个数
+     */
+    public long purgeAll() {
+        long start = System.currentTimeMillis();
+        List<String> patterns = new ArrayList<>();
+        patterns.add(sessionScanner.getRedisShiroSessionPrefix() + "*");
+        if (expiryIndex != null) {
+            patterns.add(expiryIndex.getIndexKeyPrefix() + "*");
+        }
+        if (versionTable != null) {
+            patterns.add(versionTable.getVersionKeyPrefix() + "*");
+        }
+        if (userIndex != null) {
+            patterns.add(userIndex.getUserKeyPrefix() + "*");
+            patterns.add(userIndex.getOwnerKeyPrefix() + "*");
+        }
+        long removed = 0;
+        for (String pattern : patterns) {
+            removed += sessionScanner.forEachKeys(pattern, purgeScanSize, this::deleteKeys);
+        }
+        sessionDao.clearLocal();
+        if (invalidationBus != null) {
+            invalidationBus.publishFlushAll();
+        }
+        log.info("purged {} session keys in {} ms", removed, System.currentTimeMillis() - start);
+        return removed;
+    }
+
+    private void deleteKeys(final RedisConnection connection, final List<byte[]> keys) {
+        connection.openPipeline();
+        try {
+            for (int from = 0; from < keys.size(); from += purgeDeleteBatchSize) {
+                List<byte[]> batch = keys.subList(from, Math.min(keys.size(), from + purgeDeleteBatchSize));
+                connection.del(batch.toArray(new byte[batch.size()][]));
             }
+        } finally {
+            connection.closePipeline();
         }
     }
 
@@ -222,10 +336,9 @@ public class ShiroSessionService implements MessageListener {
      */
     @Override
     public void onMessage(final Message message, byte[] bytes) {
-        ShiroSessionMessage shiroSessionMessage =
-                new ShiroSessionMessage(message.getChannel(), message.getBody());
-        log.debug("channel {} , message {} ", shiroSessionMessage.getChannel(), shiroSessionMessage.msgBody);
-        sessionDao.deleteCache(shiroSessionMessage.msgBody.sessionId);
+        if (invalidationBus != null) {
+            invalidationBus.onMessage(message, bytes);
+        }
     }
 }
 
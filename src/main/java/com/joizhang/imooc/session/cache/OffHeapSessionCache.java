@@ -0,0 +1,372 @@
+package com.joizhang.imooc.session.cache;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.joizhang.imooc.session.ShiroSession;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外Session缓存：编码后的Session保存在直接内存的slab中，堆上只保留key到chunk位置的索引。
+ * slab按2的幂划分为若干大小级别，每个级别按需从总预算中领取固定大小的页并切分为chunk，
+ * 预算用尽后在本级别内以CLOCK算法淘汰；每次读取都解码出新的Session对象，用完即可回收
+ *
+ * @author joizhang
+ */
+public class OffHeapSessionCache implements Cache<Serializable, Session> {
+
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    private final ConcurrentMap<Serializable, Slot> index = new ConcurrentHashMap<>();
+
+    private final SizeClass[] sizeClasses;
+
+    private final int pageSize;
+
+    private final int maxPages;
+
+    private final AtomicInteger allocatedPages = new AtomicInteger();
+
+    private final long timeToLiveMillis;
+
+    private final RedisSerializer<Object> serializer;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumBytes     直接内存的总预算
+     * @param pageSize         每页的字节数，也是可缓存的最大Session编码长度
+     * @param timeToLiveMillis 条目最长存活时间，应与Redis中的过期时间一致
+     * @param serializer       Session的编码方式
+     */
+    OffHeapSessionCache(long maximumBytes, int pageSize, long timeToLiveMillis, RedisSerializer<Object> serializer) {
+        this.pageSize = Integer.highestOneBit(Math.max(MIN_CHUNK_SIZE, pageSize));
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, maximumBytes / this.pageSize);
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.serializer = serializer;
+        List<SizeClass> classes = new ArrayList<>();
+        for (int chunkSize = MIN_CHUNK_SIZE; chunkSize <= this.pageSize; chunkSize <<= 1) {
+            classes.add(new SizeClass(chunkSize));
+        }
+        this.sizeClasses = classes.toArray(new SizeClass[0]);
+    }
+
+    @Override
+    public Session get(Serializable key) {
+        Slot slot = key == null ? null : index.get(key);
+        if (slot == null) {
+            misses.increment();
+            return null;
+        }
+        if (slot.expireAt <= System.currentTimeMillis()) {
+            remove(key, slot);
+            misses.increment();
+            return null;
+        }
+        byte[] bytes = slot.sizeClass.read(slot);
+        if (bytes == null) {
+            // 读取前已被淘汰或替换
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        Session session = (Session) serializer.deserialize(bytes);
+        if (session instanceof ShiroSession) {
+            ((ShiroSession) session).restoreLocalState(slot.syncTimestamp, slot.version);
+        }
+        if (session instanceof ShiroSession && slot.lastAccessTime > 0) {
+            ((ShiroSession) session).setLastAccessTime(new Date(slot.lastAccessTime));
+        }
+        return session;
+    }
+
+    @Override
+    public Session put(Serializable key, Session value) {
+        byte[] bytes = serializer.serialize(value);
+        SizeClass sizeClass = sizeClassFor(bytes.length);
+        Slot slot = sizeClass == null ? null : sizeClass.write(key, bytes, expireAt(value), value);
+        Slot old = slot == null ? index.remove(key) : index.put(key, slot);
+        if (old != null) {
+            old.sizeClass.release(old);
+        }
+        // 与Redis一样只返回旧值是否存在，不为此解码
+        return null;
+    }
+
+    @Override
+    public Session remove(Serializable key) {
+        Slot old = key == null ? null : index.remove(key);
+        if (old != null) {
+            old.sizeClass.release(old);
+        }
+        return null;
+    }
+
+    private void remove(Serializable key, Slot slot) {
+        if (index.remove(key, slot)) {
+            slot.sizeClass.release(slot);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Serializable key : new ArrayList<>(index.keySet())) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Set<Serializable> keys() {
+        return new HashSet<>(index.keySet());
+    }
+
+    @Override
+    public Collection<Session> values() {
+        List<Session> sessions = new ArrayList<>(index.size());
+        for (Serializable key : index.keySet()) {
+            Session session = get(key);
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * 未变化的Session被访问时只更新索引中的最后访问时间，不重新编码
+     */
+    public void touch(Serializable key, long lastAccessTime) {
+        Slot slot = index.get(key);
+        if (slot != null) {
+            slot.lastAccessTime = lastAccessTime;
+        }
+    }
+
+    /**
+     * 记录缓存中的Session刚与Redis确认过版本
+     */
+    public void markSynced(Serializable key, long syncTimestamp) {
+        Slot slot = index.get(key);
+        if (slot != null) {
+            slot.syncTimestamp = syncTimestamp;
+        }
+    }
+
+    public CacheStats stats() {
+        return CacheStats.of(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum(), 0);
+    }
+
+    /**
+     * 已领取的直接内存字节数
+     */
+    public long allocatedBytes() {
+        return (long) allocatedPages.get() * pageSize;
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (length <= sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private long expireAt(Session session) {
+        long now = System.currentTimeMillis();
+        long expireAt = now + timeToLiveMillis;
+        Date lastAccessTime = session.getLastAccessTime();
+        if (lastAccessTime != null && session.getTimeout() >= 0) {
+            expireAt = Math.min(expireAt, lastAccessTime.getTime() + session.getTimeout());
+        }
+        return expireAt;
+    }
+
+    private boolean reservePage() {
+        while (true) {
+            int pages = allocatedPages.get();
+            if (pages >= maxPages) {
+                return false;
+            }
+            if (allocatedPages.compareAndSet(pages, pages + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 缓存条目在堆上的索引，记录编码后字节所在的chunk以及不参与编码的本地状态
+     */
+    private static final class Slot {
+
+        final Serializable key;
+
+        final SizeClass sizeClass;
+
+        final int chunk;
+
+        final int length;
+
+        final long expireAt;
+
+        final long version;
+
+        volatile long syncTimestamp;
+
+        volatile long lastAccessTime;
+
+        Slot(Serializable key, SizeClass sizeClass, int chunk, int length, long expireAt, Session session) {
+            this.key = key;
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+            this.expireAt = expireAt;
+            ShiroSession shiroSession = session instanceof ShiroSession ? (ShiroSession) session : null;
+            this.version = shiroSession == null ? 0 : shiroSession.getVersion();
+            this.syncTimestamp = shiroSession == null ? 0 : shiroSession.getSyncTimestamp();
+            this.lastAccessTime = session.getLastAccessTime() == null ? 0 : session.getLastAccessTime().getTime();
+        }
+    }
+
+    /**
+     * 同一大小的chunk，读写和淘汰都在本级别的锁内进行
+     */
+    private final class SizeClass {
+
+        final int chunkSize;
+
+        final int chunksPerPage;
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final List<ByteBuffer> pages = new ArrayList<>();
+
+        final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+        Slot[] owners = new Slot[0];
+
+        boolean[] referenced = new boolean[0];
+
+        int hand;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = pageSize / chunkSize;
+        }
+
+        Slot write(Serializable key, byte[] bytes, long expireAt, Session session) {
+            lock.lock();
+            try {
+                int chunk = allocate();
+                if (chunk < 0) {
+                    return null;
+                }
+                ByteBuffer page = pages.get(chunk / chunksPerPage).duplicate();
+                page.position((chunk % chunksPerPage) * chunkSize);
+                page.put(bytes);
+                Slot slot = new Slot(key, this, chunk, bytes.length, expireAt, session);
+                owners[chunk] = slot;
+                referenced[chunk] = true;
+                return slot;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        byte[] read(Slot slot) {
+            lock.lock();
+            try {
+                if (owners[slot.chunk] != slot) {
+                    return null;
+                }
+                referenced[slot.chunk] = true;
+                byte[] bytes = new byte[slot.length];
+                ByteBuffer page = pages.get(slot.chunk / chunksPerPage).duplicate();
+                page.position((slot.chunk % chunksPerPage) * chunkSize);
+                page.get(bytes);
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(Slot slot) {
+            lock.lock();
+            try {
+                if (owners[slot.chunk] == slot) {
+                    owners[slot.chunk] = null;
+                    free.push(slot.chunk);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 依次从空闲链表、新页和CLOCK淘汰中取得一个chunk，都不可用时返回-1
+         */
+        private int allocate() {
+            Integer chunk = free.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+            if (reservePage()) {
+                int first = pages.size() * chunksPerPage;
+                pages.add(ByteBuffer.allocateDirect(pageSize));
+                owners = Arrays.copyOf(owners, first + chunksPerPage);
+                referenced = Arrays.copyOf(referenced, first + chunksPerPage);
+                for (int i = first + chunksPerPage - 1; i > first; i--) {
+                    free.push(i);
+                }
+                return first;
+            }
+            return owners.length == 0 ? -1 : evict();
+        }
+
+        private int evict() {
+            long now = System.currentTimeMillis();
+            while (true) {
+                int chunk = hand;
+                hand = (hand + 1) % owners.length;
+                Slot victim = owners[chunk];
+                if (victim == null) {
+                    return chunk;
+                }
+                if (referenced[chunk] && victim.expireAt > now) {
+                    referenced[chunk] = false;
+                    continue;
+                }
+                owners[chunk] = null;
+                index.remove(victim.key, victim);
+                evictions.increment();
+                return chunk;
+            }
+        }
+    }
+
+}
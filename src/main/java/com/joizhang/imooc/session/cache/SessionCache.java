@@ -0,0 +1,208 @@
+package com.joizhang.imooc.session.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.joizhang.imooc.session.ShiroSession;
+import com.joizhang.imooc.session.codec.EncodedValue;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Caffeine(W-TinyLFU)的本地Session缓存，同时按条目数与权重限制大小，
+ * 条目的存活时间不超过该Session在Redis中的剩余过期时间
+ *
+ * @author joizhang
+ */
+public class SessionCache implements Cache<Serializable, Session> {
+
+    /**
+     * Session对象本身的估算字节数
+     */
+    private static final int SESSION_BASE_WEIGHT = 256;
+
+    /**
+     * 每个属性条目的估算字节数(不含key和value)
+     */
+    private static final int ATTRIBUTE_ENTRY_WEIGHT = 48;
+
+    /**
+     * 无法估算的属性值按此字节数计算
+     */
+    private static final int UNKNOWN_VALUE_WEIGHT = 128;
+
+    /**
+     * 单个条目权重的上限
+     */
+    private static final long MAX_ENTRY_WEIGHT = 1 << 20;
+
+    private final com.github.benmanes.caffeine.cache.Cache<Serializable, Session> cache;
+
+    private final long timeToLiveMillis;
+
+    /**
+     * @param maximumSize      最多缓存的Session个数
+     * @param maximumWeight    所有Session的估算字节数上限
+     * @param timeToLiveMillis 条目最长存活时间，应与Redis中的过期时间一致
+     */
+    SessionCache(long maximumSize, long maximumWeight, long timeToLiveMillis) {
+        this(maximumSize, maximumWeight, timeToLiveMillis, Ticker.systemTicker());
+    }
+
+    SessionCache(long maximumSize, long maximumWeight, long timeToLiveMillis, Ticker ticker) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        // Caffeine不能同时设置maximumSize和maximumWeight，
+        // 这里让每个条目的权重至少为 maximumWeight / maximumSize，两个上限便同时成立；
+        // 权重以unit字节为单位，避免单个条目的权重超出int范围
+        long perEntry = (maximumWeight + maximumSize - 1) / Math.max(1, maximumSize);
+        final long unit = Math.max(1, (perEntry + MAX_ENTRY_WEIGHT - 1) / MAX_ENTRY_WEIGHT);
+        final int minimumWeight = (int) Math.max(1, perEntry / unit);
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight / unit)
+                .weigher((Serializable key, Session session) ->
+                        Math.max(minimumWeight, (int) ((weigh(session) + unit - 1) / unit)))
+                .expireAfter(new SessionExpiry())
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public Session get(Serializable key) {
+        return key == null ? null : cache.getIfPresent(key);
+    }
+
+    @Override
+    public Session put(Serializable key, Session value) {
+        return cache.asMap().put(key, value);
+    }
+
+    @Override
+    public Session remove(Serializable key) {
+        return key == null ? null : cache.asMap().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, cache.estimatedSize());
+    }
+
+    @Override
+    public Set<Serializable> keys() {
+        return new HashSet<>(cache.asMap().keySet());
+    }
+
+    @Override
+    public Collection<Session> values() {
+        return new ArrayList<>(cache.asMap().values());
+    }
+
+    /**
+     * 命中、未命中、淘汰次数等统计信息
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * 执行挂起的淘汰等维护工作
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    /**
+     * 粗略估算Session占用的字节数，只用于淘汰时的权重比较，不会触发属性解码
+     */
+    static int weigh(Session session) {
+        int weight = SESSION_BASE_WEIGHT;
+        if (session instanceof ShiroSession) {
+            Map<Object, Object> attributes = ((ShiroSession) session).getRawAttributes();
+            if (attributes != null) {
+                for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                    weight += ATTRIBUTE_ENTRY_WEIGHT + weighValue(entry.getKey()) + weighValue(entry.getValue());
+                }
+            }
+            return weight;
+        }
+        Collection<Object> keys = session.getAttributeKeys();
+        if (keys == null) {
+            return weight;
+        }
+        for (Object key : keys) {
+            weight += ATTRIBUTE_ENTRY_WEIGHT + weighValue(key) + weighValue(session.getAttribute(key));
+        }
+        return weight;
+    }
+
+    private static int weighValue(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof EncodedValue) {
+            return 16 + ((EncodedValue) value).size();
+        }
+        if (value instanceof CharSequence) {
+            return 40 + 2 * ((CharSequence) value).length();
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Date) {
+            return 24;
+        }
+        if (value instanceof Collection) {
+            return 32 + ((Collection<?>) value).size() * UNKNOWN_VALUE_WEIGHT / 2;
+        }
+        if (value instanceof Map) {
+            return 48 + ((Map<?, ?>) value).size() * UNKNOWN_VALUE_WEIGHT;
+        }
+        return UNKNOWN_VALUE_WEIGHT;
+    }
+
+    /**
+     * 条目按Session剩余的有效时间过期；touch只更新缓存中Session的lastAccessTime而不重新放入，
+     * 因此读取时也按lastAccessTime重新计算，使用中的Session不会按放入时的时间被淘汰
+     */
+    private class SessionExpiry implements Expiry<Serializable, Session> {
+
+        @Override
+        public long expireAfterCreate(Serializable key, Session session, long currentTime) {
+            return remainingNanos(session);
+        }
+
+        @Override
+        public long expireAfterUpdate(Serializable key, Session session, long currentTime, long currentDuration) {
+            return remainingNanos(session);
+        }
+
+        @Override
+        public long expireAfterRead(Serializable key, Session session, long currentTime, long currentDuration) {
+            return remainingNanos(session);
+        }
+
+        private long remainingNanos(Session session) {
+            long remaining = timeToLiveMillis;
+            Date lastAccessTime = session.getLastAccessTime();
+            long timeout = session.getTimeout();
+            if (lastAccessTime != null && timeout >= 0) {
+                long idle = System.currentTimeMillis() - lastAccessTime.getTime();
+                remaining = Math.min(remaining, timeout - idle);
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remaining));
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.joizhang.imooc.session.cache;
+
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import lombok.Setter;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.util.Destroyable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 为CachingSessionDAO提供有界的本地Session缓存，替代默认无上限的MapCache
+ *
+ * @author joizhang
+ */
+public class SessionCacheManager implements CacheManager, Destroyable {
+
+    private static final long DEFAULT_MAXIMUM_SIZE = 100_000;
+
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 256L * 1024 * 1024;
+
+    private static final long DEFAULT_TIME_TO_LIVE_SECONDS = 1800;
+
+    private static final int DEFAULT_OFF_HEAP_PAGE_SIZE = 1024 * 1024;
+
+    /**
+     * 最多缓存的Session个数
+     */
+    @Setter
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+    /**
+     * 缓存Session的估算字节数上限
+     */
+    @Setter
+    private long maximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+
+    /**
+     * 条目最长存活时间，应与Redis中Session的过期时间保持一致
+     */
+    @Setter
+    private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+
+    /**
+     * 为true时使用堆外slab缓存，maximumWeight作为直接内存预算，maximumSize不再生效
+     */
+    @Setter
+    private boolean offHeap;
+
+    /**
+     * 堆外缓存每页的字节数，也是可缓存的最大Session编码长度
+     */
+    @Setter
+    private int offHeapPageSize = DEFAULT_OFF_HEAP_PAGE_SIZE;
+
+    /**
+     * 堆外缓存编码Session使用的序列化器，应与RedisTemplate使用的相同，否则自定义编码的属性无法解码；未设置时使用默认配置
+     */
+    @Setter
+    private ShiroSessionRedisSerializer serializer;
+
+    private final ConcurrentMap<String, Cache<?, ?>> caches = new ConcurrentHashMap<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> Cache<K, V> getCache(String name) throws CacheException {
+        if (name == null) {
+            throw new CacheException("Cache name cannot be null");
+        }
+        return (Cache<K, V>) caches.computeIfAbsent(name, key -> {
+            long timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+            if (offHeap) {
+                return new OffHeapSessionCache(maximumWeight, offHeapPageSize, timeToLiveMillis,
+                        serializer == null ? new ShiroSessionRedisSerializer() : serializer);
+            }
+            return new SessionCache(maximumSize, maximumWeight, timeToLiveMillis);
+        });
+    }
+
+    @Override
+    public void destroy() {
+        caches.values().forEach(Cache::clear);
+        caches.clear();
+    }
+
+}
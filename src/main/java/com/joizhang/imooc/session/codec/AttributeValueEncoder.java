@@ -0,0 +1,26 @@
+package com.joizhang.imooc.session.codec;
+
+/**
+ * Session属性值的编码器，通过{@link ShiroSessionCodec#registerEncoder(AttributeValueEncoder)}注册。
+ * 类型标记会写入Redis，一经使用便不能更改
+ *
+ * @param <T> 属性值类型，按精确类型匹配
+ * @author joizhang
+ */
+public interface AttributeValueEncoder<T> {
+
+    /**
+     * 写入Redis的类型标记，1~126，不能与已注册的编码器重复
+     */
+    int tag();
+
+    /**
+     * 可编码的属性值类型
+     */
+    Class<T> type();
+
+    void encode(T value, CodecOutput out);
+
+    T decode(CodecInput in);
+
+}
@@ -0,0 +1,142 @@
+package com.joizhang.imooc.session.codec;
+
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * 内置的属性值编码器，类型标记1~31保留给内置编码器
+ *
+ * @author joizhang
+ */
+final class AttributeValueEncoders {
+
+    static final AttributeValueEncoder<String> STRING = new SimpleEncoder<String>(1, String.class) {
+        @Override
+        public void encode(String value, CodecOutput out) {
+            out.writeString(value);
+        }
+
+        @Override
+        public String decode(CodecInput in) {
+            return in.readString();
+        }
+    };
+
+    static final AttributeValueEncoder<Integer> INTEGER = new SimpleEncoder<Integer>(2, Integer.class) {
+        @Override
+        public void encode(Integer value, CodecOutput out) {
+            out.writeSignedVarLong(value);
+        }
+
+        @Override
+        public Integer decode(CodecInput in) {
+            return (int) in.readSignedVarLong();
+        }
+    };
+
+    static final AttributeValueEncoder<Long> LONG = new SimpleEncoder<Long>(3, Long.class) {
+        @Override
+        public void encode(Long value, CodecOutput out) {
+            out.writeSignedVarLong(value);
+        }
+
+        @Override
+        public Long decode(CodecInput in) {
+            return in.readSignedVarLong();
+        }
+    };
+
+    static final AttributeValueEncoder<Boolean> BOOLEAN = new SimpleEncoder<Boolean>(4, Boolean.class) {
+        @Override
+        public void encode(Boolean value, CodecOutput out) {
+            out.writeByte(value ? 1 : 0);
+        }
+
+        @Override
+        public Boolean decode(CodecInput in) {
+            return in.readByte() != 0;
+        }
+    };
+
+    static final AttributeValueEncoder<Date> DATE = new SimpleEncoder<Date>(5, Date.class) {
+        @Override
+        public void encode(Date value, CodecOutput out) {
+            out.writeSignedVarLong(value.getTime());
+        }
+
+        @Override
+        public Date decode(CodecInput in) {
+            return new Date(in.readSignedVarLong());
+        }
+    };
+
+    /**
+     * 登录后Shiro放入Session的身份信息，按realm分组写入，principal本身按属性值递归编码
+     */
+    static final AttributeValueEncoder<SimplePrincipalCollection> PRINCIPALS =
+            new SimpleEncoder<SimplePrincipalCollection>(6, SimplePrincipalCollection.class) {
+                @Override
+                public void encode(SimplePrincipalCollection value, CodecOutput out) {
+                    // 空集合的getRealmNames()返回null
+                    Set<String> realmNames = value.isEmpty() ? null : value.getRealmNames();
+                    if (realmNames == null) {
+                        out.writeVarInt(0);
+                        return;
+                    }
+                    out.writeVarInt(realmNames.size());
+                    for (String realmName : realmNames) {
+                        Collection<?> principals = value.fromRealm(realmName);
+                        out.writeString(realmName);
+                        out.writeVarInt(principals.size());
+                        for (Object principal : principals) {
+                            out.writeValue(principal);
+                        }
+                    }
+                }
+
+                @Override
+                public SimplePrincipalCollection decode(CodecInput in) {
+                    SimplePrincipalCollection principals = new SimplePrincipalCollection();
+                    int realmCount = in.readVarInt();
+                    for (int i = 0; i < realmCount; i++) {
+                        String realmName = in.readString();
+                        int count = in.readVarInt();
+                        for (int j = 0; j < count; j++) {
+                            principals.add(in.readValue(), realmName);
+                        }
+                    }
+                    return principals;
+                }
+            };
+
+    static final AttributeValueEncoder<?>[] BUILTIN = {STRING, INTEGER, LONG, BOOLEAN, DATE, PRINCIPALS};
+
+    private AttributeValueEncoders() {
+    }
+
+    private abstract static class SimpleEncoder<T> implements AttributeValueEncoder<T> {
+
+        private final int tag;
+
+        private final Class<T> type;
+
+        SimpleEncoder(int tag, Class<T> type) {
+            this.tag = tag;
+            this.type = type;
+        }
+
+        @Override
+        public int tag() {
+            return tag;
+        }
+
+        @Override
+        public Class<T> type() {
+            return type;
+        }
+    }
+
+}
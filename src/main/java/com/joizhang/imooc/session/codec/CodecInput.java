@@ -0,0 +1,90 @@
+package com.joizhang.imooc.session.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 解码Session时使用的字节读取器，与{@link CodecOutput}对应
+ *
+ * @author joizhang
+ */
+public final class CodecInput {
+
+    private final ShiroSessionCodec codec;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    private final int limit;
+
+    CodecInput(ShiroSessionCodec codec, byte[] buffer, int offset, int limit) {
+        this.codec = codec;
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = limit;
+    }
+
+    private void require(int length) {
+        if (length < 0 || position + length > limit) {
+            throw new SessionCodecException("Truncated session payload at " + position);
+        }
+    }
+
+    public int readByte() {
+        require(1);
+        return buffer[position++] & 0xFF;
+    }
+
+    public byte[] readBytes(int length) {
+        require(length);
+        byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new SessionCodecException("Malformed varint at " + position);
+    }
+
+    public int readVarInt() {
+        return (int) readVarLong();
+    }
+
+    public long readSignedVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() {
+        int length = readVarInt();
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public byte[] readLengthPrefixed() {
+        return readBytes(readVarInt());
+    }
+
+    /**
+     * 按值前的类型标记读取任意值，可在编码器中递归调用
+     */
+    public Object readValue() {
+        return codec.readValue(this);
+    }
+
+    public int position() {
+        return position;
+    }
+
+}
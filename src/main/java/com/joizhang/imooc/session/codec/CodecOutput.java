@@ -0,0 +1,109 @@
+package com.joizhang.imooc.session.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 编码Session时使用的字节缓冲区，支持varint与长度前缀字符串
+ *
+ * @author joizhang
+ */
+public final class CodecOutput {
+
+    private final ShiroSessionCodec codec;
+
+    private byte[] buffer;
+
+    private int position;
+
+    CodecOutput(ShiroSessionCodec codec, int initialCapacity) {
+        this.codec = codec;
+        this.buffer = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + extra));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] bytes) {
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * 无符号varint，每字节7位
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * zigzag编码的有符号varint，适合可能为负数的差值
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * 写入带长度前缀的字节数组
+     */
+    public void writeLengthPrefixed(byte[] bytes) {
+        writeVarInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * 按注册的AttributeValueEncoder写入任意值，可在编码器中递归调用
+     */
+    public void writeValue(Object value) {
+        codec.writeValue(value, this);
+    }
+
+    void reset() {
+        position = 0;
+    }
+
+    /**
+     * 将本缓冲区的内容以长度前缀的形式写入另一个缓冲区
+     */
+    void writeLengthPrefixedTo(CodecOutput other) {
+        other.writeVarInt(position);
+        other.writeBytes(buffer, 0, position);
+    }
+
+    public int size() {
+        return position;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+}
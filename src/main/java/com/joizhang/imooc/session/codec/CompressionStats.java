@@ -0,0 +1,58 @@
+package com.joizhang.imooc.session.codec;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Session数据压缩的累计统计
+ *
+ * @author joizhang
+ */
+@Getter
+@RequiredArgsConstructor
+@ToString
+public class CompressionStats {
+
+    private final int threshold;
+
+    /**
+     * 压缩后保存的数据个数
+     */
+    private final long compressedCount;
+
+    /**
+     * 达到阈值但压缩后没有变小、按原样保存的数据个数
+     */
+    private final long skippedCount;
+
+    private final long bytesBeforeCompression;
+
+    private final long bytesAfterCompression;
+
+    /**
+     * 压缩耗时，包括压缩后放弃的数据
+     */
+    private final long compressNanos;
+
+    private final long decompressedCount;
+
+    private final long decompressNanos;
+
+    /**
+     * 压缩后与压缩前的字节数之比，越小越好
+     */
+    public double compressionRatio() {
+        return bytesBeforeCompression == 0 ? 1.0 : (double) bytesAfterCompression / bytesBeforeCompression;
+    }
+
+    public double averageCompressNanos() {
+        long count = compressedCount + skippedCount;
+        return count == 0 ? 0.0 : (double) compressNanos / count;
+    }
+
+    public double averageDecompressNanos() {
+        return decompressedCount == 0 ? 0.0 : (double) decompressNanos / decompressedCount;
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.joizhang.imooc.session.codec;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * 尚未解码的属性值，保留从Redis读出的原始字节，第一次访问时才解码；
+ * 未被访问过的属性写回Redis时直接使用原始字节
+ *
+ * @author joizhang
+ */
+public final class EncodedValue implements Serializable {
+
+    private static final long serialVersionUID = 4620197385731946205L;
+
+    private final transient ShiroSessionCodec codec;
+
+    private final byte[] bytes;
+
+    EncodedValue(ShiroSessionCodec codec, byte[] bytes) {
+        this.codec = codec;
+        this.bytes = bytes;
+    }
+
+    public Object decode() {
+        return codec.decodeValue(bytes);
+    }
+
+    /**
+     * 编码后的字节，包含类型标记
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * 使用JDK序列化时写入解码后的值
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return decode();
+    }
+
+}
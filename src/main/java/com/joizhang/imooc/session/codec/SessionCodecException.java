@@ -0,0 +1,22 @@
+package com.joizhang.imooc.session.codec;
+
+import org.apache.shiro.session.SessionException;
+
+/**
+ * Session编解码失败
+ *
+ * @author joizhang
+ */
+public class SessionCodecException extends SessionException {
+
+    private static final long serialVersionUID = -3385962147092367418L;
+
+    public SessionCodecException(String message) {
+        super(message);
+    }
+
+    public SessionCodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.joizhang.imooc.session.codec;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 超过阈值的数据以Deflate(BEST_SPEED，不带zlib头)压缩，格式为 magic(1) originalLength(varint) deflated；
+ * magic与{@link ShiroSessionCodec}和JDK序列化的首字节都不同，压缩前写入的数据可以原样读取。
+ * Deflater和Inflater按线程复用，压缩后没有变小的数据按原样保存
+ *
+ * @author joizhang
+ */
+public class SessionPayloadCompressor {
+
+    static final int MAGIC = 0x5A;
+
+    /**
+     * 小于该字节数的数据不压缩，0表示不压缩；读取压缩数据不受影响
+     */
+    @Getter
+    @Setter
+    private volatile int threshold = 0;
+
+    private final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final LongAdder compressedCount = new LongAdder();
+
+    private final LongAdder skippedCount = new LongAdder();
+
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+
+    private final LongAdder bytesAfterCompression = new LongAdder();
+
+    private final LongAdder compressNanos = new LongAdder();
+
+    private final LongAdder decompressedCount = new LongAdder();
+
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public static boolean isCompressed(byte[] bytes) {
+        return bytes != null && bytes.length > 1 && (bytes[0] & 0xFF) == MAGIC;
+    }
+
+    /**
+     * 达到阈值时返回压缩后的数据，否则返回原数组
+     */
+    public byte[] compress(byte[] bytes) {
+        int limit = threshold;
+        if (limit <= 0 || bytes.length < limit) {
+            return bytes;
+        }
+        long start = System.nanoTime();
+        // 输出不超过原大小，放不下说明不值得压缩
+        byte[] out = new byte[bytes.length];
+        out[0] = (byte) MAGIC;
+        int position = writeVarInt(out, 1, bytes.length);
+        Deflater deflater = deflaters.get();
+        boolean finished;
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            while (!deflater.finished() && position < out.length) {
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            finished = deflater.finished();
+        } finally {
+            deflater.reset();
+        }
+        compressNanos.add(System.nanoTime() - start);
+        if (!finished) {
+            skippedCount.increment();
+            return bytes;
+        }
+        compressedCount.increment();
+        bytesBeforeCompression.add(bytes.length);
+        bytesAfterCompression.add(position);
+        return Arrays.copyOf(out, position);
+    }
+
+    public byte[] decompress(byte[] bytes) {
+        long start = System.nanoTime();
+        int length = 0;
+        int position = 1;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= bytes.length || shift > 28) {
+                throw new SessionCodecException("Malformed compressed session header");
+            }
+            int b = bytes[position++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] out = new byte[length];
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(bytes, position, bytes.length - position);
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(out, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != length) {
+                throw new SessionCodecException("Truncated compressed session: " + offset + " of " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new SessionCodecException("Corrupt compressed session", e);
+        } finally {
+            inflater.reset();
+        }
+        decompressedCount.increment();
+        decompressNanos.add(System.nanoTime() - start);
+        return out;
+    }
+
+    public CompressionStats stats() {
+        return new CompressionStats(threshold, compressedCount.sum(), skippedCount.sum(),
+                bytesBeforeCompression.sum(), bytesAfterCompression.sum(), compressNanos.sum(),
+                decompressedCount.sum(), decompressNanos.sum());
+    }
+
+    private static int writeVarInt(byte[] out, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+}
@@ -0,0 +1,380 @@
+package com.joizhang.imooc.session.codec;
+
+import com.joizhang.imooc.session.ShiroSession;
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import org.apache.shiro.session.mgt.SessionFactory;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.web.util.WebUtils;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ShiroSession的紧凑二进制编码，格式如下：
+ * <pre>
+ * magic(1) version(1) flags(1) id(value)
+ * [startTimestamp(varint)] [lastAccessTime(zigzag, 相对start)] [stopTimestamp(zigzag, 相对start)]
+ * timeout(zigzag) [host(string)]
+ * attributeCount(varint) { key valueLength(varint) value }*
+ * </pre>
+ * 属性key优先使用字典下标，属性值以类型标记开头，由{@link AttributeValueEncoder}编码，
+ * 没有对应编码器的类型使用JDK序列化。属性值带有长度前缀，解码时保留为{@link EncodedValue}，
+ * 第一次访问时才真正解码
+ *
+ * @author joizhang
+ */
+public class ShiroSessionCodec {
+
+    static final int MAGIC = 0x53;
+
+    static final int VERSION = 2;
+
+    /**
+     * 版本1中属性值没有长度前缀，只能在读取时全部解码
+     */
+    private static final int VERSION_EAGER_ATTRIBUTES = 1;
+
+    private static final int FLAG_EXPIRED = 1;
+
+    private static final int FLAG_START = 1 << 1;
+
+    private static final int FLAG_LAST_ACCESS = 1 << 2;
+
+    private static final int FLAG_STOP = 1 << 3;
+
+    private static final int FLAG_HOST = 1 << 4;
+
+    private static final int TAG_NULL = 0;
+
+    private static final int TAG_JDK = 127;
+
+    private static final int MIN_CUSTOM_TAG = 32;
+
+    /**
+     * 属性key: 0表示后跟字符串，1表示后跟任意值，n>=2表示字典中第n-2个key
+     */
+    private static final int KEY_LITERAL_STRING = 0;
+
+    private static final int KEY_LITERAL_VALUE = 1;
+
+    private static final int KEY_DICTIONARY_OFFSET = 2;
+
+    /**
+     * 内置的属性key字典，下标会写入Redis，只能在末尾追加
+     */
+    private static final List<String> DEFAULT_ATTRIBUTE_KEYS = Arrays.asList(
+            DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+            DefaultSubjectContext.AUTHENTICATED_SESSION_KEY,
+            WebUtils.SAVED_REQUEST_KEY,
+            "org.apache.shiro.subject.support.DelegatingSubject.RUN_AS_PRINCIPALS_SESSION_KEY",
+            "User"
+    );
+
+    private final List<Object> attributeKeys = new CopyOnWriteArrayList<>(DEFAULT_ATTRIBUTE_KEYS);
+
+    private final Map<Object, Integer> attributeKeyIndex = new HashMap<>();
+
+    private final Map<Class<?>, AttributeValueEncoder<?>> encodersByType = new HashMap<>();
+
+    private final AttributeValueEncoder<?>[] encodersByTag = new AttributeValueEncoder<?>[TAG_JDK];
+
+    private final JdkSerializationRedisSerializer jdkSerializer;
+
+    private final SessionFactory sessionFactory = new ShiroSessionFactory();
+
+    public ShiroSessionCodec() {
+        this(new JdkSerializationRedisSerializer());
+    }
+
+    public ShiroSessionCodec(JdkSerializationRedisSerializer jdkSerializer) {
+        this.jdkSerializer = jdkSerializer;
+        for (AttributeValueEncoder<?> encoder : AttributeValueEncoders.BUILTIN) {
+            addEncoder(encoder);
+        }
+        for (int i = 0; i < attributeKeys.size(); i++) {
+            attributeKeyIndex.put(attributeKeys.get(i), i);
+        }
+    }
+
+    /**
+     * 注册自定义属性值编码器，需在使用前完成，类型标记取值32~126
+     */
+    public void registerEncoder(AttributeValueEncoder<?> encoder) {
+        if (encoder.tag() < MIN_CUSTOM_TAG || encoder.tag() >= TAG_JDK) {
+            throw new IllegalArgumentException("Custom encoder tag must be in [" + MIN_CUSTOM_TAG + ", "
+                    + (TAG_JDK - 1) + "]: " + encoder.tag());
+        }
+        addEncoder(encoder);
+    }
+
+    private void addEncoder(AttributeValueEncoder<?> encoder) {
+        if (encodersByTag[encoder.tag()] != null) {
+            throw new IllegalArgumentException("Duplicate encoder tag " + encoder.tag());
+        }
+        encodersByTag[encoder.tag()] = encoder;
+        encodersByType.put(encoder.type(), encoder);
+    }
+
+    /**
+     * 在内置字典后追加常用的属性key，需在使用前完成，且所有节点的配置必须一致
+     */
+    public void setAttributeKeys(Collection<?> keys) {
+        for (Object key : keys) {
+            if (!attributeKeyIndex.containsKey(key)) {
+                attributeKeyIndex.put(key, attributeKeys.size());
+                attributeKeys.add(key);
+            }
+        }
+    }
+
+    /**
+     * 是否为本编码器生成的数据
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length > 1 && (bytes[0] & 0xFF) == MAGIC;
+    }
+
+    public byte[] encode(ShiroSession session) {
+        CodecOutput out = new CodecOutput(this, 128);
+        writeMeta(session, out);
+        Map<Object, Object> attributes = session.getRawAttributes();
+        if (attributes == null || attributes.isEmpty()) {
+            out.writeVarInt(0);
+        } else {
+            out.writeVarInt(attributes.size());
+            CodecOutput value = new CodecOutput(this, 64);
+            for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                writeAttributeKey(entry.getKey(), out);
+                if (entry.getValue() instanceof EncodedValue) {
+                    // 未访问过的属性直接写回原始字节
+                    out.writeLengthPrefixed(((EncodedValue) entry.getValue()).bytes());
+                } else {
+                    value.reset();
+                    writeValue(entry.getValue(), value);
+                    value.writeLengthPrefixedTo(out);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 只编码属性以外的固定字段，用于按字段存储
+     */
+    public byte[] encodeMeta(ShiroSession session) {
+        CodecOutput out = new CodecOutput(this, 64);
+        writeMeta(session, out);
+        return out.toByteArray();
+    }
+
+    public byte[] encodeAttributeKey(Object key) {
+        CodecOutput out = new CodecOutput(this, 16);
+        writeAttributeKey(key, out);
+        return out.toByteArray();
+    }
+
+    public byte[] encodeValue(Object value) {
+        if (value instanceof EncodedValue) {
+            return ((EncodedValue) value).bytes();
+        }
+        CodecOutput out = new CodecOutput(this, 32);
+        writeValue(value, out);
+        return out.toByteArray();
+    }
+
+    private void writeMeta(ShiroSession session, CodecOutput out) {
+        Date start = session.getStartTimestamp();
+        Date lastAccess = session.getLastAccessTime();
+        Date stop = session.getStopTimestamp();
+        String host = session.getHost();
+        int flags = (session.isExpired() ? FLAG_EXPIRED : 0)
+                | (start != null ? FLAG_START : 0)
+                | (lastAccess != null ? FLAG_LAST_ACCESS : 0)
+                | (stop != null ? FLAG_STOP : 0)
+                | (host != null ? FLAG_HOST : 0);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeValue(session.getId());
+        long base = start == null ? 0 : start.getTime();
+        if (start != null) {
+            out.writeVarLong(base);
+        }
+        if (lastAccess != null) {
+            out.writeSignedVarLong(lastAccess.getTime() - base);
+        }
+        if (stop != null) {
+            out.writeSignedVarLong(stop.getTime() - base);
+        }
+        out.writeSignedVarLong(session.getTimeout());
+        if (host != null) {
+            out.writeString(host);
+        }
+    }
+
+    public ShiroSession decode(byte[] bytes) {
+        CodecInput in = new CodecInput(this, bytes, 0, bytes.length);
+        int version = readHeader(bytes, in);
+        ShiroSession session = readMeta(in);
+        int attributeCount = in.readVarInt();
+        if (attributeCount > 0) {
+            Map<Object, Object> attributes = new HashMap<>(attributeCount * 4 / 3 + 1);
+            for (int i = 0; i < attributeCount; i++) {
+                Object key = readAttributeKey(in);
+                if (version == VERSION_EAGER_ATTRIBUTES) {
+                    attributes.put(key, in.readValue());
+                } else {
+                    attributes.put(key, new EncodedValue(this, in.readLengthPrefixed()));
+                }
+            }
+            session.setAttributes(attributes);
+        }
+        return loaded(session);
+    }
+
+    /**
+     * 由固定字段和各属性还原Session，与{@link #encodeMeta}、{@link #encodeAttributeKey}、{@link #encodeValue}对应
+     *
+     * @param meta       固定字段
+     * @param attributes 编码后的属性key到编码后的属性值
+     */
+    public ShiroSession decode(byte[] meta, Map<byte[], byte[]> attributes) {
+        CodecInput in = new CodecInput(this, meta, 0, meta.length);
+        readHeader(meta, in);
+        ShiroSession session = readMeta(in);
+        if (!attributes.isEmpty()) {
+            Map<Object, Object> encoded = new HashMap<>(attributes.size() * 4 / 3 + 1);
+            for (Map.Entry<byte[], byte[]> entry : attributes.entrySet()) {
+                encoded.put(decodeAttributeKey(entry.getKey()), new EncodedValue(this, entry.getValue()));
+            }
+            session.setAttributes(encoded);
+        }
+        return loaded(session);
+    }
+
+    public Object decodeAttributeKey(byte[] bytes) {
+        return readAttributeKey(new CodecInput(this, bytes, 0, bytes.length));
+    }
+
+    public Object decodeValue(byte[] bytes) {
+        return readValue(new CodecInput(this, bytes, 0, bytes.length));
+    }
+
+    private int readHeader(byte[] bytes, CodecInput in) {
+        if (!isEncoded(bytes)) {
+            throw new SessionCodecException("Not an encoded session");
+        }
+        in.readByte();
+        int version = in.readByte();
+        if (version != VERSION && version != VERSION_EAGER_ATTRIBUTES) {
+            throw new SessionCodecException("Unsupported session codec version " + version);
+        }
+        return version;
+    }
+
+    private ShiroSession readMeta(CodecInput in) {
+        int flags = in.readByte();
+        ShiroSession session = (ShiroSession) sessionFactory.createSession(null);
+        session.setId((Serializable) in.readValue());
+        long base = 0;
+        // createSession填入的是当前时间，没有写入的时间戳应为null
+        session.setStartTimestamp(null);
+        session.setLastAccessTime(null);
+        if ((flags & FLAG_START) != 0) {
+            base = in.readVarLong();
+            session.setStartTimestamp(new Date(base));
+        }
+        if ((flags & FLAG_LAST_ACCESS) != 0) {
+            session.setLastAccessTime(new Date(base + in.readSignedVarLong()));
+        }
+        if ((flags & FLAG_STOP) != 0) {
+            session.setStopTimestamp(new Date(base + in.readSignedVarLong()));
+        }
+        session.setTimeout(in.readSignedVarLong());
+        if ((flags & FLAG_HOST) != 0) {
+            session.setHost(in.readString());
+        }
+        session.setExpired((flags & FLAG_EXPIRED) != 0);
+        return session;
+    }
+
+    /**
+     * 刚从Redis读出的Session与Redis一致，清除修改标记
+     */
+    private static ShiroSession loaded(ShiroSession session) {
+        session.setChanged(false);
+        session.drainDelta();
+        return session;
+    }
+
+    private void writeAttributeKey(Object key, CodecOutput out) {
+        Integer index = attributeKeyIndex.get(key);
+        if (index != null) {
+            out.writeVarInt(index + KEY_DICTIONARY_OFFSET);
+        } else if (key instanceof String) {
+            out.writeVarInt(KEY_LITERAL_STRING);
+            out.writeString((String) key);
+        } else {
+            out.writeVarInt(KEY_LITERAL_VALUE);
+            out.writeValue(key);
+        }
+    }
+
+    private Object readAttributeKey(CodecInput in) {
+        int header = in.readVarInt();
+        if (header == KEY_LITERAL_STRING) {
+            return in.readString();
+        }
+        if (header == KEY_LITERAL_VALUE) {
+            return in.readValue();
+        }
+        int index = header - KEY_DICTIONARY_OFFSET;
+        if (index >= attributeKeys.size()) {
+            throw new SessionCodecException("Unknown attribute key index " + index);
+        }
+        return attributeKeys.get(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeValue(Object value, CodecOutput out) {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+        if (value instanceof EncodedValue) {
+            out.writeBytes(((EncodedValue) value).bytes());
+            return;
+        }
+        AttributeValueEncoder<Object> encoder = (AttributeValueEncoder<Object>) encodersByType.get(value.getClass());
+        if (encoder != null) {
+            out.writeByte(encoder.tag());
+            encoder.encode(value, out);
+        } else {
+            out.writeByte(TAG_JDK);
+            out.writeLengthPrefixed(jdkSerializer.serialize(value));
+        }
+    }
+
+    Object readValue(CodecInput in) {
+        int tag = in.readByte();
+        if (tag == TAG_NULL) {
+            return null;
+        }
+        if (tag == TAG_JDK) {
+            return jdkSerializer.deserialize(in.readLengthPrefixed());
+        }
+        AttributeValueEncoder<?> encoder = tag < encodersByTag.length ? encodersByTag[tag] : null;
+        if (encoder == null) {
+            throw new SessionCodecException("No encoder registered for tag " + tag);
+        }
+        return encoder.decode(in);
+    }
+
+}
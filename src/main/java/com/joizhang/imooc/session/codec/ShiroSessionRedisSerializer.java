@@ -0,0 +1,80 @@
+package com.joizhang.imooc.session.codec;
+
+import com.joizhang.imooc.session.ShiroSession;
+import lombok.Getter;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * ShiroSession使用{@link ShiroSessionCodec}编码，其余对象及旧的JDK序列化数据仍使用JDK序列化；
+ * 设置了压缩阈值时较大的数据再经{@link SessionPayloadCompressor}压缩，读取时按首字节区分
+ *
+ * @author joizhang
+ */
+public class ShiroSessionRedisSerializer implements RedisSerializer<Object> {
+
+    private static final byte[] EMPTY_ARRAY = new byte[0];
+
+    private final JdkSerializationRedisSerializer jdkSerializer;
+
+    @Getter
+    private final ShiroSessionCodec codec;
+
+    @Getter
+    private final SessionPayloadCompressor compressor = new SessionPayloadCompressor();
+
+    public ShiroSessionRedisSerializer() {
+        this(new JdkSerializationRedisSerializer());
+    }
+
+    public ShiroSessionRedisSerializer(JdkSerializationRedisSerializer jdkSerializer) {
+        this.jdkSerializer = jdkSerializer;
+        this.codec = new ShiroSessionCodec(jdkSerializer);
+    }
+
+    /**
+     * 编码后达到该字节数的数据压缩保存，0表示不压缩；滚动升级时应在所有节点都能读取压缩数据后再开启
+     */
+    public void setCompressThreshold(int compressThreshold) {
+        compressor.setThreshold(compressThreshold);
+    }
+
+    @Override
+    public byte[] serialize(Object object) throws SerializationException {
+        if (object == null) {
+            return EMPTY_ARRAY;
+        }
+        if (object instanceof ShiroSession) {
+            try {
+                return compressor.compress(codec.encode((ShiroSession) object));
+            } catch (RuntimeException e) {
+                throw new SerializationException("Cannot encode session", e);
+            }
+        }
+        return compressor.compress(jdkSerializer.serialize(object));
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (SessionPayloadCompressor.isCompressed(bytes)) {
+            try {
+                bytes = compressor.decompress(bytes);
+            } catch (RuntimeException e) {
+                throw new SerializationException("Cannot decompress session", e);
+            }
+        }
+        if (ShiroSessionCodec.isEncoded(bytes)) {
+            try {
+                return codec.decode(bytes);
+            } catch (RuntimeException e) {
+                throw new SerializationException("Cannot decode session", e);
+            }
+        }
+        return jdkSerializer.deserialize(bytes);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.joizhang.imooc.session.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * 带虚拟节点的一致性hash环，不可变；增删节点时只有约1/N的key改变归属
+ *
+ * @param <T> 节点类型
+ * @author joizhang
+ */
+public final class ConsistentHashRing<T> {
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    private final Map<String, T> nodes;
+
+    /**
+     * @param nodes        节点名称到节点的映射，节点名称决定虚拟节点在环上的位置
+     * @param virtualNodes 每个节点的虚拟节点个数
+     */
+    public ConsistentHashRing(Map<String, T> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        for (String name : nodes.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash((name + "#" + i).getBytes(StandardCharsets.UTF_8)), name);
+            }
+        }
+    }
+
+    /**
+     * key所属节点的名称
+     */
+    public String nodeName(byte[] key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * key所属的节点
+     */
+    public T node(byte[] key) {
+        return nodes.get(nodeName(key));
+    }
+
+    public Map<String, T> nodes() {
+        return nodes;
+    }
+
+    /**
+     * 64位FNV-1a，再经过murmur3的fmix64打散
+     */
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.joizhang.imooc.session.shard;
+
+/**
+ * 分片变化后已有Session的处理方式
+ *
+ * @author joizhang
+ */
+public enum RebalanceMode {
+
+    /**
+     * 不迁移，归属改变的Session视为丢失，用户需要重新登录
+     */
+    NONE,
+
+    /**
+     * 迁移窗口内访问到归属改变的key时，先从原分片DUMP/RESTORE到新分片再执行命令
+     */
+    LAZY
+}
@@ -0,0 +1,532 @@
+package com.joizhang.imooc.session.shard;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按key的一致性hash把命令分发到多个Redis节点，RedisTemplate及其上的Session组件无需改动即可分片。
+ * <ul>
+ * <li>单key命令按第一个参数路由，EVAL/EVALSHA按第一个KEYS路由，脚本涉及的key必须在同一分片</li>
+ * <li>DEL/MGET在非pipeline模式下按分片拆分后合并结果，pipeline中的多key命令必须落在同一分片</li>
+ * <li>发布订阅固定使用pubSubShard</li>
+ * <li>pipeline跨分片时按命令顺序合并结果；Jedis会丢弃状态回复(如SET的OK)，此时改为按分片顺序拼接</li>
+ * </ul>
+ *
+ * @author joizhang
+ */
+@Slf4j
+public class ShardedRedisConnectionFactory implements RedisConnectionFactory, InitializingBean, DisposableBean {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final long DEFAULT_MIGRATION_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * 第一个参数不是key的命令
+     */
+    private static final Set<String> KEYLESS_COMMANDS = new HashSet<>(Arrays.asList(
+            "echo", "ping", "select", "info", "time", "scriptLoad", "scriptExists", "scriptFlush", "scriptKill"));
+
+    /**
+     * 每个分片的虚拟节点个数
+     */
+    @Setter
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+    /**
+     * 分片变化后的迁移方式
+     */
+    @Setter
+    private RebalanceMode rebalanceMode = RebalanceMode.LAZY;
+
+    /**
+     * 迁移窗口(毫秒)，应不小于Session的过期时间，窗口结束后不再访问原分片
+     */
+    @Setter
+    private long migrationWindowMillis = DEFAULT_MIGRATION_WINDOW_MILLIS;
+
+    /**
+     * 发布订阅使用的分片名称，默认为第一个分片
+     */
+    @Setter
+    private String pubSubShard;
+
+    private volatile Topology topology;
+
+    /**
+     * 重启前的hash环，首次setShards时作为上一个hash环
+     */
+    private ConsistentHashRing<RedisConnectionFactory> previousRing;
+
+    /**
+     * 设置分片，分片名称决定key的归属，扩容或替换节点时应保持已有分片的名称不变；
+     * 运行中重新设置时按rebalanceMode处理已有的key
+     */
+    public void setShards(Map<String, ? extends RedisConnectionFactory> shards) {
+        ConsistentHashRing<RedisConnectionFactory> ring = new ConsistentHashRing<>(
+                new LinkedHashMap<String, RedisConnectionFactory>(shards), virtualNodes);
+        Topology current = this.topology;
+        ConsistentHashRing<RedisConnectionFactory> previous = current == null ? previousRing : current.ring;
+        if (previous == null || rebalanceMode == RebalanceMode.NONE
+                || previous.nodes().keySet().equals(ring.nodes().keySet())) {
+            this.topology = new Topology(ring, null, 0);
+        } else {
+            this.topology = new Topology(ring, previous, System.currentTimeMillis() + migrationWindowMillis);
+            log.info("session shards changed from {} to {}, migrating lazily for {} ms",
+                    previous.nodes().keySet(), shards.keySet(), migrationWindowMillis);
+        }
+    }
+
+    /**
+     * 设置改变前的分片，用于改变分片后重启：进程内没有上一个hash环，LAZY模式据此在迁移窗口内迁移已有的key。
+     * 与新分片同名的节点应使用同一个连接工厂，须在setShards之前设置
+     */
+    public void setPreviousShards(Map<String, ? extends RedisConnectionFactory> previousShards) {
+        this.previousRing = new ConsistentHashRing<>(
+                new LinkedHashMap<String, RedisConnectionFactory>(previousShards), virtualNodes);
+    }
+
+    public Map<String, RedisConnectionFactory> getShards() {
+        return topology().ring.nodes();
+    }
+
+    /**
+     * key当前所属分片的名称
+     */
+    public String shardOf(byte[] key) {
+        return topology().ring.nodeName(key);
+    }
+
+    private Topology topology() {
+        Topology current = this.topology;
+        if (current == null) {
+            throw new IllegalStateException("shards are not set");
+        }
+        return current;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        for (RedisConnectionFactory factory : allFactories()) {
+            if (factory instanceof InitializingBean) {
+                ((InitializingBean) factory).afterPropertiesSet();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (RedisConnectionFactory factory : allFactories()) {
+            if (factory instanceof DisposableBean) {
+                ((DisposableBean) factory).destroy();
+            }
+        }
+    }
+
+    /**
+     * 当前分片和迁移窗口内上一个hash环中的所有连接工厂，同一个工厂只出现一次
+     */
+    private Set<RedisConnectionFactory> allFactories() {
+        Topology current = topology();
+        Set<RedisConnectionFactory> factories = Collections.newSetFromMap(new IdentityHashMap<>());
+        factories.addAll(current.ring.nodes().values());
+        if (current.previous != null) {
+            factories.addAll(current.previous.nodes().values());
+        }
+        return factories;
+    }
+
+    @Override
+    public RedisConnection getConnection() {
+        ShardedConnection connection = new ShardedConnection(topology());
+        return (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{RedisConnection.class}, connection::invoke);
+    }
+
+    @Override
+    public RedisClusterConnection getClusterConnection() {
+        throw new UnsupportedOperationException("Sharded connection does not support cluster mode");
+    }
+
+    @Override
+    public boolean getConvertPipelineAndTxResults() {
+        return true;
+    }
+
+    @Override
+    public RedisSentinelConnection getSentinelConnection() {
+        throw new UnsupportedOperationException("Sharded connection does not support sentinel mode");
+    }
+
+    @Override
+    public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+        for (RedisConnectionFactory factory : getShards().values()) {
+            DataAccessException translated = factory.translateExceptionIfPossible(ex);
+            if (translated != null) {
+                return translated;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 当前的hash环，以及迁移窗口内的上一个hash环
+     */
+    private static final class Topology {
+
+        final ConsistentHashRing<RedisConnectionFactory> ring;
+
+        final ConsistentHashRing<RedisConnectionFactory> previous;
+
+        final long migrationDeadline;
+
+        /**
+         * 迁移窗口内已检查过的key(已迁移、原分片上不存在或新分片上已有)，每个key只访问一次原分片
+         */
+        final Set<ByteBuffer> checkedKeys = ConcurrentHashMap.newKeySet();
+
+        Topology(ConsistentHashRing<RedisConnectionFactory> ring,
+                 ConsistentHashRing<RedisConnectionFactory> previous, long migrationDeadline) {
+            this.ring = ring;
+            this.previous = previous;
+            this.migrationDeadline = migrationDeadline;
+        }
+
+        boolean migrating() {
+            if (previous == null) {
+                return false;
+            }
+            if (System.currentTimeMillis() < migrationDeadline) {
+                return true;
+            }
+            checkedKeys.clear();
+            return false;
+        }
+    }
+
+    /**
+     * 一个逻辑连接，按需打开各分片的连接
+     */
+    private class ShardedConnection {
+
+        private final Topology topology;
+
+        private final Map<String, RedisConnection> connections = new LinkedHashMap<>();
+
+        /**
+         * pipeline中每条命令所在的分片连接
+         */
+        private List<RedisConnection> pipelineOrder;
+
+        private boolean closed;
+
+        ShardedConnection(Topology topology) {
+            this.topology = topology;
+        }
+
+        Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "isClosed":
+                    return closed;
+                case "close":
+                    close();
+                    return null;
+                case "isPipelined":
+                    return pipelineOrder != null;
+                case "isQueueing":
+                    return false;
+                case "openPipeline":
+                    if (pipelineOrder == null) {
+                        pipelineOrder = new ArrayList<>();
+                    }
+                    return null;
+                case "closePipeline":
+                    return closePipeline();
+                case "getNativeConnection":
+                    return this;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "ShardedRedisConnection" + topology.ring.nodes().keySet();
+                case "multi":
+                case "exec":
+                case "discard":
+                case "watch":
+                case "unwatch":
+                    throw new InvalidDataAccessApiUsageException("Transactions are not supported across shards");
+                case "publish":
+                case "subscribe":
+                case "pSubscribe":
+                case "getSubscription":
+                case "isSubscribed":
+                    return call(connection(pubSubShardName()), method, args);
+                case "evalSha":
+                case "eval":
+                    return invokeScript(method, args);
+                case "del":
+                    return invokeMultiKey(method, args, true);
+                case "mGet":
+                    return invokeMultiKey(method, args, false);
+                case "keys":
+                    return invokeKeys(method, args);
+                case "dbSize":
+                    long size = 0;
+                    for (String shard : topology.ring.nodes().keySet()) {
+                        size += (Long) call(connection(shard), method, args);
+                    }
+                    return size;
+                case "flushDb":
+                case "flushAll":
+                    for (String shard : topology.ring.nodes().keySet()) {
+                        call(connection(shard), method, args);
+                    }
+                    return null;
+                default:
+            }
+            if (args == null || args.length == 0 || !(args[0] instanceof byte[]) || KEYLESS_COMMANDS.contains(name)) {
+                throw new InvalidDataAccessApiUsageException("Command " + name + " cannot be routed to a shard");
+            }
+            return route((byte[]) args[0], method, args);
+        }
+
+        private String pubSubShardName() {
+            return pubSubShard != null ? pubSubShard : topology.ring.nodes().keySet().iterator().next();
+        }
+
+        private Object invokeScript(Method method, Object[] args) throws Throwable {
+            int numKeys = (Integer) args[2];
+            byte[][] keysAndArgs = (byte[][]) args[3];
+            if (numKeys == 0) {
+                return call(connection(pubSubShardName()), method, args);
+            }
+            String shard = topology.ring.nodeName(keysAndArgs[0]);
+            for (int i = 1; i < numKeys; i++) {
+                if (!shard.equals(topology.ring.nodeName(keysAndArgs[i]))) {
+                    throw new InvalidDataAccessApiUsageException("Script keys must belong to the same shard");
+                }
+            }
+            for (int i = 0; i < numKeys; i++) {
+                migrateIfMoved(keysAndArgs[i]);
+            }
+            return dispatch(connection(shard), method, args);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object invokeMultiKey(Method method, Object[] args, boolean sum) throws Throwable {
+            byte[][] keys = (byte[][]) args[0];
+            Map<String, List<Integer>> byShard = new LinkedHashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                migrateIfMoved(keys[i]);
+                byShard.computeIfAbsent(topology.ring.nodeName(keys[i]), k -> new ArrayList<>()).add(i);
+            }
+            if (byShard.size() == 1) {
+                return dispatch(connection(byShard.keySet().iterator().next()), method, args);
+            }
+            if (pipelineOrder != null) {
+                throw new InvalidDataAccessApiUsageException("Multi-key commands in a pipeline must belong to one shard");
+            }
+            long total = 0;
+            Object[] values = new Object[keys.length];
+            for (Map.Entry<String, List<Integer>> entry : byShard.entrySet()) {
+                List<Integer> indexes = entry.getValue();
+                byte[][] shardKeys = new byte[indexes.size()][];
+                for (int i = 0; i < shardKeys.length; i++) {
+                    shardKeys[i] = keys[indexes.get(i)];
+                }
+                Object result = call(connection(entry.getKey()), method, new Object[]{shardKeys});
+                if (sum) {
+                    total += result == null ? 0 : (Long) result;
+                } else {
+                    List<Object> list = (List<Object>) result;
+                    for (int i = 0; i < shardKeys.length; i++) {
+                        values[indexes.get(i)] = list.get(i);
+                    }
+                }
+            }
+            if (sum) {
+                return total;
+            }
+            List<Object> merged = new ArrayList<>(keys.length);
+            Collections.addAll(merged, values);
+            return merged;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object invokeKeys(Method method, Object[] args) throws Throwable {
+            Set<byte[]> keys = new HashSet<>();
+            for (String shard : topology.ring.nodes().keySet()) {
+                Set<byte[]> shardKeys = (Set<byte[]>) call(connection(shard), method, args);
+                if (shardKeys != null) {
+                    keys.addAll(shardKeys);
+                }
+            }
+            return keys;
+        }
+
+        private Object route(byte[] key, Method method, Object[] args) throws Throwable {
+            migrateIfMoved(key);
+            return dispatch(connection(topology.ring.nodeName(key)), method, args);
+        }
+
+        /**
+         * 执行命令，pipeline模式下记录命令所在的分片
+         */
+        private Object dispatch(RedisConnection connection, Method method, Object[] args) throws Throwable {
+            if (pipelineOrder != null) {
+                if (!connection.isPipelined()) {
+                    connection.openPipeline();
+                }
+                pipelineOrder.add(connection);
+            }
+            return call(connection, method, args);
+        }
+
+        private Object call(RedisConnection connection, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private RedisConnection connection(String shard) {
+            RedisConnection connection = connections.get(shard);
+            if (connection == null) {
+                RedisConnectionFactory factory = topology.ring.nodes().get(shard);
+                if (factory == null) {
+                    throw new InvalidDataAccessApiUsageException("Unknown shard " + shard);
+                }
+                connection = factory.getConnection();
+                connections.put(shard, connection);
+            }
+            return connection;
+        }
+
+        /**
+         * 迁移窗口内，key的归属发生变化时把原分片上的值移到新分片；新分片上已有的值较新，保留新分片的值。
+         * 检查过的key不再访问原分片，出错时下次再试
+         */
+        private void migrateIfMoved(byte[] key) {
+            if (!topology.migrating()) {
+                return;
+            }
+            RedisConnectionFactory from = topology.previous.node(key);
+            RedisConnectionFactory to = topology.ring.node(key);
+            if (from == to) {
+                return;
+            }
+            ByteBuffer checkedKey = ByteBuffer.wrap(key);
+            if (topology.checkedKeys.contains(checkedKey)) {
+                return;
+            }
+            RedisConnection source = from.getConnection();
+            try {
+                byte[] dump = source.dump(key);
+                if (dump == null) {
+                    topology.checkedKeys.add(checkedKey);
+                    return;
+                }
+                Long ttl = source.pTtl(key);
+                if (ttl != null && ttl == -2) {
+                    topology.checkedKeys.add(checkedKey);
+                    return;
+                }
+                RedisConnection target = to.getConnection();
+                try {
+                    if (!Boolean.TRUE.equals(target.exists(key))) {
+                        target.restore(key, ttl == null || ttl < 0 ? 0 : ttl, dump);
+                    }
+                } finally {
+                    target.close();
+                }
+                source.del(key);
+                topology.checkedKeys.add(checkedKey);
+            } catch (RuntimeException e) {
+                log.warn("migrate session key between shards error", e);
+            } finally {
+                source.close();
+            }
+        }
+
+        private List<Object> closePipeline() {
+            List<RedisConnection> order = pipelineOrder;
+            pipelineOrder = null;
+            if (order == null || order.isEmpty()) {
+                return new ArrayList<>();
+            }
+            Map<RedisConnection, List<Object>> results = new IdentityHashMap<>();
+            Map<RedisConnection, Integer> counts = new IdentityHashMap<>();
+            for (RedisConnection connection : order) {
+                counts.merge(connection, 1, Integer::sum);
+            }
+            for (RedisConnection connection : connections.values()) {
+                if (connection.isPipelined()) {
+                    results.put(connection, connection.closePipeline());
+                }
+            }
+            boolean aligned = true;
+            for (Map.Entry<RedisConnection, Integer> entry : counts.entrySet()) {
+                List<Object> shardResults = results.get(entry.getKey());
+                aligned &= shardResults != null && shardResults.size() == entry.getValue();
+            }
+            List<Object> merged = new ArrayList<>(order.size());
+            if (aligned) {
+                Map<RedisConnection, Iterator<Object>> iterators = new HashMap<>();
+                for (RedisConnection connection : order) {
+                    merged.add(iterators.computeIfAbsent(connection, c -> results.get(c).iterator()).next());
+                }
+            } else {
+                for (RedisConnection connection : connections.values()) {
+                    List<Object> shardResults = results.get(connection);
+                    if (shardResults != null) {
+                        merged.addAll(shardResults);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        private void close() {
+            closed = true;
+            pipelineOrder = null;
+            for (RedisConnection connection : connections.values()) {
+                try {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    log.warn("close shard connection error", e);
+                }
+            }
+            connections.clear();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.joizhang.imooc.session.store;
+
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import lombok.Setter;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单机部署使用的堆内存储：Session以编码后的字节保存在ConcurrentHashMap中，
+ * 每次读取都解码出新的对象，与Redis存储的语义一致；过期的Session在读取时或写入时顺带清理
+ *
+ * @author joizhang
+ */
+public class HeapSessionStore implements SessionStore {
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    private static final long DEFAULT_CLEANUP_INTERVAL_MILLIS = 60_000;
+
+    /**
+     * Session的过期时间(秒)
+     */
+    @Setter
+    private int sessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 两次清理过期Session之间的最短间隔(毫秒)
+     */
+    @Setter
+    private long cleanupIntervalMillis = DEFAULT_CLEANUP_INTERVAL_MILLIS;
+
+    @Setter
+    private RedisSerializer<Object> serializer = new ShiroSessionRedisSerializer();
+
+    private final Map<Serializable, Entry> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastCleanup = new AtomicLong(System.currentTimeMillis());
+
+    @Override
+    public void create(final Session session) {
+        long now = System.currentTimeMillis();
+        sessions.put(session.getId(), new Entry(serializer.serialize(session), now + timeoutMillis()));
+        cleanupIfDue(now);
+    }
+
+    @Override
+    public Session read(final Serializable sessionId) {
+        Entry entry = live(sessionId, System.currentTimeMillis());
+        return entry == null ? null : (Session) serializer.deserialize(entry.data);
+    }
+
+    @Override
+    public Session readAndRefresh(final Serializable sessionId) {
+        long now = System.currentTimeMillis();
+        Entry entry = live(sessionId, now);
+        if (entry == null) {
+            return null;
+        }
+        entry.expireAt = now + timeoutMillis();
+        return (Session) serializer.deserialize(entry.data);
+    }
+
+    @Override
+    public void touch(final Serializable sessionId, final long lastAccessTime) {
+        Entry entry = live(sessionId, System.currentTimeMillis());
+        if (entry != null) {
+            entry.expireAt = Math.max(entry.expireAt, lastAccessTime + timeoutMillis());
+        }
+    }
+
+    @Override
+    public void delete(final Serializable sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * 删除所有已过期的Session
+     */
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        sessions.entrySet().removeIf(entry -> entry.getValue().expireAt <= now);
+    }
+
+    private Entry live(final Serializable sessionId, final long now) {
+        Entry entry = sessionId == null ? null : sessions.get(sessionId);
+        if (entry != null && entry.expireAt <= now) {
+            sessions.remove(sessionId, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void cleanupIfDue(final long now) {
+        long last = lastCleanup.get();
+        if (now - last >= cleanupIntervalMillis && lastCleanup.compareAndSet(last, now)) {
+            evictExpired();
+        }
+    }
+
+    private long timeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(sessionTimeout);
+    }
+
+    private static final class Entry {
+
+        final byte[] data;
+
+        volatile long expireAt;
+
+        Entry(byte[] data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+
+}
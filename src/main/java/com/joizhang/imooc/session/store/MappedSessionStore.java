@@ -0,0 +1,464 @@
+package com.joizhang.imooc.session.store;
+
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的持久化存储，适用于不部署Redis的单机环境：Session编码后追加写入映射文件，
+ * 内存中只保留sessionId到偏移量的索引，重启时顺序扫描文件重建索引。文件格式：
+ * <pre>
+ * magic(int) formatVersion(int) reserved(long)
+ * record: length(int) crc(int) expireAt(long) idLength(short) id(utf8) data
+ * </pre>
+ * crc覆盖id和data，不含原地改写的expireAt；data为空的记录是删除标记。
+ * readAndRefresh和touch原地改写expireAt，只读不写的活跃Session在重启和压缩时同样保留。
+ * 记录先写内容最后写length，扫描遇到length为0或crc不符即视为文件末尾，崩溃时最多丢失未写完的记录。
+ * 后台线程在失效记录占比超过阈值时将有效记录复制到新文件并原子替换，文件写满时也会先压缩再重试
+ *
+ * @author joizhang
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class MappedSessionStore implements SessionStore, Initializable, Destroyable {
+
+    private static final int SESSION_VAL_TIME_SPAN = 1800;
+
+    private static final int DEFAULT_CAPACITY = 256 * 1024 * 1024;
+
+    private static final long DEFAULT_COMPACT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final double DEFAULT_COMPACT_THRESHOLD = 0.5;
+
+    private static final int MAGIC = 0x53485346;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FILE_HEADER = 16;
+
+    /**
+     * length之后、id之前的字节数
+     */
+    private static final int RECORD_HEADER = 4 + 8 + 2;
+
+    private static final int CRC_OFFSET = 4;
+
+    private static final int EXPIRE_AT_OFFSET = 8;
+
+    /**
+     * Session的过期时间(秒)
+     */
+    @Setter
+    private int sessionTimeout = SESSION_VAL_TIME_SPAN;
+
+    /**
+     * 映射区域的字节数，已有文件更大时以文件大小为准
+     */
+    @Setter
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * 两次检查是否需要压缩的间隔(毫秒)，不大于0时不启动后台压缩
+     */
+    @Setter
+    private long compactIntervalMillis = DEFAULT_COMPACT_INTERVAL_MILLIS;
+
+    /**
+     * 失效记录占已写字节的比例超过此值时压缩
+     */
+    @Setter
+    private double compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+    @Setter
+    private RedisSerializer<Object> serializer = new ShiroSessionRedisSerializer();
+
+    @NonNull
+    private File file;
+
+    /**
+     * sessionId到记录偏移量的索引
+     */
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+
+    /**
+     * 索引中记录的总字节数
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * 追加记录互斥，保证记录按偏移量顺序写完，扫描时不会遇到空洞
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * 读写当前映射区域时持有读锁，压缩替换文件时持有写锁
+     */
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+
+    /**
+     * 下一条记录的写入位置
+     */
+    private volatile int tail;
+
+    /**
+     * 映射建立后即关闭文件，映射在buffer被回收前一直有效
+     */
+    private volatile MappedByteBuffer buffer;
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init() {
+        long start = System.currentTimeMillis();
+        boolean exists = file.exists() && file.length() > 0;
+        buffer = map(file, (int) Math.max(capacity, exists ? file.length() : 0));
+        if (exists && buffer.getInt(0) != 0) {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IllegalStateException("Unrecognized session file " + file);
+            }
+            recover();
+        } else {
+            writeHeader(buffer);
+            tail = FILE_HEADER;
+        }
+        log.info("session file {} opened, {} sessions recovered in {} ms", file, index.size(),
+                System.currentTimeMillis() - start);
+        if (compactIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "shiro-session-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::compactQuietly, compactIntervalMillis, compactIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        mappingLock.writeLock().lock();
+        try {
+            if (buffer != null) {
+                buffer.force();
+            }
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void create(final Session session) {
+        String sessionId = session.getId().toString();
+        byte[] data = serializer.serialize(session);
+        long expireAt = System.currentTimeMillis() + timeoutMillis();
+        if (!tryAppend(sessionId, data, expireAt)) {
+            compact();
+            if (!tryAppend(sessionId, data, expireAt)) {
+                throw new IllegalStateException("Session file " + file + " is full");
+            }
+        }
+    }
+
+    @Override
+    public Session read(final Serializable sessionId) {
+        mappingLock.readLock().lock();
+        try {
+            Integer offset = live(sessionId, System.currentTimeMillis());
+            return offset == null ? null : decode(offset);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Session readAndRefresh(final Serializable sessionId) {
+        mappingLock.readLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Integer offset = live(sessionId, now);
+            if (offset == null) {
+                return null;
+            }
+            buffer.putLong(offset + EXPIRE_AT_OFFSET, now + timeoutMillis());
+            return decode(offset);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 原地改写记录的expireAt，不追加新记录
+     */
+    @Override
+    public void touch(final Serializable sessionId, final long lastAccessTime) {
+        mappingLock.readLock().lock();
+        try {
+            Integer offset = live(sessionId, System.currentTimeMillis());
+            if (offset == null) {
+                return;
+            }
+            long expireAt = lastAccessTime + timeoutMillis();
+            if (expireAt > buffer.getLong(offset + EXPIRE_AT_OFFSET)) {
+                buffer.putLong(offset + EXPIRE_AT_OFFSET, expireAt);
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(final Serializable sessionId) {
+        String id = sessionId.toString();
+        if (index.containsKey(id) && !tryAppend(id, null, 0)) {
+            // 没有空间写删除标记，压缩后的文件本身就不再包含该Session
+            index.computeIfPresent(id, (key, offset) -> {
+                liveBytes.addAndGet(-recordSize(offset));
+                return null;
+            });
+            compact();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * 已写入的字节数，包括被覆盖和删除的记录
+     */
+    public int usedBytes() {
+        return tail;
+    }
+
+    /**
+     * 失效记录占已写字节的比例
+     */
+    public double garbageRatio() {
+        int used = tail - FILE_HEADER;
+        return used <= 0 ? 0 : 1 - (double) liveBytes.get() / used;
+    }
+
+    private void compactQuietly() {
+        try {
+            if (garbageRatio() > compactThreshold) {
+                compact();
+            }
+        } catch (Exception e) {
+            log.error("session file compaction error", e);
+        }
+    }
+
+    /**
+     * 将未过期的有效记录按顺序复制到临时文件，刷盘后原子替换原文件并重新映射
+     */
+    public void compact() {
+        mappingLock.writeLock().lock();
+        try {
+            long start = System.currentTimeMillis();
+            int before = tail;
+            File compacted = new File(file.getPath() + ".compact");
+            Files.deleteIfExists(compacted.toPath());
+            MappedByteBuffer newBuffer = map(compacted, buffer.capacity());
+            writeHeader(newBuffer);
+            Map<String, Integer> newIndex = new HashMap<>(index.size() * 2);
+            int position = FILE_HEADER;
+            long now = System.currentTimeMillis();
+            ByteBuffer source = buffer.duplicate();
+            for (Map.Entry<String, Integer> entry : index.entrySet()) {
+                int offset = entry.getValue();
+                if (buffer.getLong(offset + EXPIRE_AT_OFFSET) <= now) {
+                    continue;
+                }
+                int size = recordSize(offset);
+                source.limit(offset + size).position(offset);
+                newBuffer.position(position);
+                newBuffer.put(source);
+                source.limit(source.capacity());
+                newIndex.put(entry.getKey(), position);
+                position += size;
+            }
+            newBuffer.force();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            buffer = newBuffer;
+            index.clear();
+            index.putAll(newIndex);
+            liveBytes.set(position - FILE_HEADER);
+            tail = position;
+            log.info("session file {} compacted from {} to {} bytes in {} ms", file, before, position,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot compact session file " + file, e);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 顺序扫描记录重建索引，只读取记录头并校验crc，不解码Session
+     */
+    private void recover() {
+        long now = System.currentTimeMillis();
+        int position = FILE_HEADER;
+        int limit = buffer.capacity();
+        ByteBuffer record = buffer.duplicate();
+        while (position + 4 + RECORD_HEADER <= limit) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER || position + 4 + length > limit) {
+                break;
+            }
+            int idLength = buffer.getShort(position + 4 + 12);
+            if (idLength <= 0 || RECORD_HEADER + idLength > length
+                    || checksum(record, position, length) != buffer.getInt(position + CRC_OFFSET)) {
+                log.warn("session file {} truncated at {}", file, position);
+                break;
+            }
+            byte[] id = new byte[idLength];
+            record.limit(limit).position(position + 4 + RECORD_HEADER);
+            record.get(id);
+            String sessionId = new String(id, StandardCharsets.UTF_8);
+            Integer previous;
+            if (length == RECORD_HEADER + idLength || buffer.getLong(position + EXPIRE_AT_OFFSET) <= now) {
+                previous = index.remove(sessionId);
+            } else {
+                previous = index.put(sessionId, position);
+                liveBytes.addAndGet(4 + length);
+            }
+            if (previous != null) {
+                liveBytes.addAndGet(-recordSize(previous));
+            }
+            position += 4 + length;
+        }
+        tail = position;
+    }
+
+    /**
+     * 在文件末尾追加一条记录，data为null时追加删除标记；空间不足时返回false
+     */
+    private boolean tryAppend(final String sessionId, final byte[] data, final long expireAt) {
+        byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        int dataLength = data == null ? 0 : data.length;
+        int length = RECORD_HEADER + id.length + dataLength;
+        mappingLock.readLock().lock();
+        appendLock.lock();
+        try {
+            int offset = tail;
+            if ((long) offset + 4 + length > buffer.capacity()) {
+                return false;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 4 + RECORD_HEADER);
+            record.put(id);
+            if (data != null) {
+                record.put(data);
+            }
+            buffer.putInt(offset + CRC_OFFSET, checksum(record, offset, length));
+            buffer.putLong(offset + EXPIRE_AT_OFFSET, expireAt);
+            buffer.putShort(offset + 4 + 12, (short) id.length);
+            // length最后写入，扫描时不会把未写完的记录当作有效记录
+            buffer.putInt(offset, length);
+            tail = offset + 4 + length;
+            Integer previous = data == null ? index.remove(sessionId) : index.put(sessionId, offset);
+            if (data != null) {
+                liveBytes.addAndGet(4 + length);
+            }
+            if (previous != null) {
+                liveBytes.addAndGet(-recordSize(previous));
+            }
+            return true;
+        } finally {
+            appendLock.unlock();
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    private Integer live(final Serializable sessionId, final long now) {
+        if (sessionId == null) {
+            return null;
+        }
+        String id = sessionId.toString();
+        Integer offset = index.get(id);
+        if (offset != null && buffer.getLong(offset + EXPIRE_AT_OFFSET) <= now) {
+            if (index.remove(id, offset)) {
+                liveBytes.addAndGet(-recordSize(offset));
+            }
+            return null;
+        }
+        return offset;
+    }
+
+    private Session decode(final int offset) {
+        int length = buffer.getInt(offset);
+        int idLength = buffer.getShort(offset + 4 + 12);
+        int dataOffset = offset + 4 + RECORD_HEADER + idLength;
+        byte[] data = new byte[length - RECORD_HEADER - idLength];
+        ByteBuffer record = buffer.duplicate();
+        record.position(dataOffset);
+        record.get(data);
+        return (Session) serializer.deserialize(data);
+    }
+
+    private long timeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(sessionTimeout);
+    }
+
+    private int recordSize(final int offset) {
+        return 4 + buffer.getInt(offset);
+    }
+
+    private static int checksum(final ByteBuffer record, final int offset, final int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = record.duplicate();
+        body.limit(offset + 4 + length).position(offset + 4 + RECORD_HEADER);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void writeHeader(final ByteBuffer target) {
+        target.putInt(0, MAGIC);
+        target.putInt(4, FORMAT_VERSION);
+        target.putLong(8, 0L);
+    }
+
+    private static MappedByteBuffer map(final File target, final int size) {
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map session file " + target, e);
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.joizhang.imooc.session.store;
+
+import org.apache.shiro.session.Session;
+
+import java.io.Serializable;
+
+/**
+ * Session的持久化存储，ShiroCachingSessionDao通过它读写Session；
+ * 存储中的Session在最后一次写入或刷新后经过过期时间即失效
+ *
+ * @author joizhang
+ */
+public interface SessionStore {
+
+    /**
+     * 写入新建的Session
+     */
+    void create(Session session);
+
+    /**
+     * 写回修改过的Session并重置过期时间，默认整体重写
+     */
+    default void update(Session session) {
+        create(session);
+    }
+
+    /**
+     * 读取Session，不重置过期时间，不存在或已过期时返回null
+     */
+    Session read(Serializable sessionId);
+
+    /**
+     * 读取Session并重置过期时间，不存在或已过期时返回null
+     */
+    Session readAndRefresh(Serializable sessionId);
+
+    /**
+     * Session被访问但没有修改时调用，将过期时间延长到lastAccessTime加过期时间，不重写Session；
+     * Session不存在或已过期时忽略
+     */
+    void touch(Serializable sessionId, long lastAccessTime);
+
+    void delete(Serializable sessionId);
+
+}
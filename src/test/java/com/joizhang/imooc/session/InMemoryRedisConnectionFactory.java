@@ -0,0 +1,621 @@
+package com.joizhang.imooc.session;
+
+import com.lambdaworks.redis.KeyScanCursor;
+import com.lambdaworks.redis.ScanArgs;
+import com.lambdaworks.redis.ScanCursor;
+import com.lambdaworks.redis.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * 测试用的内存版Redis，只实现Session相关的命令，并统计命令数和网络往返次数
+ */
+public class InMemoryRedisConnectionFactory implements RedisConnectionFactory {
+
+    /**
+     * 字符串的值为byte[]，Hash的值为Map&lt;String, byte[]&gt;，有序集合的值为ZSet
+     */
+    final Map<String, Object> values = new ConcurrentHashMap<>();
+
+    final Map<String, Long> expireAt = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> commands = new ConcurrentHashMap<>();
+
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    private final Map<Long, String> scanCursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextScanCursor = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * 每条命令(或每个pipeline)的额外延迟，模拟Redis变慢
+     */
+    private volatile long latencyMillis;
+
+    /**
+     * 为true时所有命令抛出连接失败，模拟Redis宕机
+     */
+    private volatile boolean down;
+
+    /**
+     * 发布过的消息，依次为channel和body
+     */
+    final List<byte[][]> published = new CopyOnWriteArrayList<>();
+
+    private final Map<String, BiFunction<InMemoryRedisConnectionFactory, byte[][], Object>> scripts =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 为true时模拟LettuceConnection：原生连接为异步命令接口，execute没有返回类型提示，SCAN只返回byte[]
+     */
+    private volatile boolean lettuce;
+
+    /**
+     * 以Java实现代替Lua脚本，按脚本的SHA1匹配
+     */
+    public void registerScript(String sha1, BiFunction<InMemoryRedisConnectionFactory, byte[][], Object> script) {
+        scripts.put(sha1, script);
+    }
+
+    /**
+     * 注册{@link SessionRedisScripts}中各脚本的Java实现
+     */
+    public InMemoryRedisConnectionFactory withSessionScripts() {
+        registerScript(SessionRedisScripts.GET_AND_EXPIRE.getSha1(), (redis, keysAndArgs) -> {
+            byte[] value = redis.get(keysAndArgs[0]);
+            if (value != null) {
+                redis.expire(keysAndArgs[0], seconds(keysAndArgs[1]) * 1000);
+            }
+            return value;
+        });
+        registerScript(SessionRedisScripts.HGETALL_AND_EXPIRE.getSha1(), (redis, keysAndArgs) -> {
+            List<byte[]> result = new ArrayList<>();
+            redis.hGetAll(keysAndArgs[0]).forEach((field, value) -> {
+                result.add(field);
+                result.add(value);
+            });
+            if (!result.isEmpty()) {
+                redis.expire(keysAndArgs[0], seconds(keysAndArgs[1]) * 1000);
+            }
+            return result;
+        });
+        registerScript(SessionRedisScripts.ACQUIRE_LEASE.getSha1(), (redis, keysAndArgs) -> {
+            byte[] owner = redis.get(keysAndArgs[0]);
+            if (owner == null || Arrays.equals(owner, keysAndArgs[1])) {
+                redis.set(keysAndArgs[0], keysAndArgs[1], seconds(keysAndArgs[2]));
+                return 1L;
+            }
+            return 0L;
+        });
+        registerScript(SessionRedisScripts.RELEASE_LEASE.getSha1(), (redis, keysAndArgs) ->
+                Arrays.equals(redis.get(keysAndArgs[0]), keysAndArgs[1]) ? redis.del(new byte[][]{keysAndArgs[0]}) : 0L);
+        return this;
+    }
+
+    /**
+     * 模拟LettuceConnection，原生连接只实现scan
+     */
+    public InMemoryRedisConnectionFactory withLettuceNativeConnection() {
+        lettuce = true;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisClusterAsyncCommands<byte[], byte[]> lettuceCommands() {
+        return (RedisClusterAsyncCommands<byte[], byte[]>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{RedisClusterAsyncCommands.class}, (proxy, method, args) -> {
+                    if (!"scan".equals(method.getName()) || args == null || args.length != 2) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    if (down) {
+                        throw new RedisConnectionFailureException("Redis is down");
+                    }
+                    commands.computeIfAbsent("scan", key -> new AtomicLong()).incrementAndGet();
+                    roundTrips.incrementAndGet();
+                    ScanArgs scanArgs = (ScanArgs) args[1];
+                    List<Object> reply = scan(Long.parseLong(((ScanCursor) args[0]).getCursor()),
+                            (String) field(scanArgs, "match"), ((Long) field(scanArgs, "count")).intValue());
+                    KeyScanCursor<byte[]> cursor = new KeyScanCursor<>();
+                    cursor.setCursor(new String((byte[]) reply.get(0), StandardCharsets.US_ASCII));
+                    cursor.setFinished("0".equals(cursor.getCursor()));
+                    cursor.getKeys().addAll((List<byte[]>) reply.get(1));
+                    return TestRedisFuture.completed(cursor);
+                });
+    }
+
+    private static Object field(Object target, String name) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static long seconds(byte[] arg) {
+        return Long.parseLong(new String(arg, StandardCharsets.UTF_8));
+    }
+
+    public long commandCount(String command) {
+        AtomicLong count = commands.get(command);
+        return count == null ? 0 : count.get();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    public long commandCount() {
+        return commands.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public long roundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * 写命令(SET/SETEX/HMSET)发送的value字节数
+     */
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public int keyCount() {
+        return values.size();
+    }
+
+    public void resetCounters() {
+        commands.clear();
+        roundTrips.set(0);
+        bytesWritten.set(0);
+    }
+
+    static String key(byte[] raw) {
+        return new String(raw, StandardCharsets.ISO_8859_1);
+    }
+
+    private Object lookup(byte[] rawKey) {
+        String key = key(rawKey);
+        Long deadline = expireAt.get(key);
+        if (deadline != null && deadline <= System.currentTimeMillis()) {
+            values.remove(key);
+            expireAt.remove(key);
+        }
+        return values.get(key);
+    }
+
+    byte[] get(byte[] rawKey) {
+        Object value = lookup(rawKey);
+        if (value != null && !(value instanceof byte[])) {
+            throw new IllegalStateException("WRONGTYPE");
+        }
+        return (byte[]) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, byte[]> hash(byte[] rawKey, boolean create) {
+        Object value = lookup(rawKey);
+        if (value == null && create) {
+            value = new ConcurrentHashMap<String, byte[]>();
+            values.put(key(rawKey), value);
+        }
+        if (value != null && !(value instanceof Map)) {
+            throw new IllegalStateException("WRONGTYPE");
+        }
+        return (Map<String, byte[]>) value;
+    }
+
+    void set(byte[] rawKey, byte[] value, long millis) {
+        String key = key(rawKey);
+        values.put(key, value);
+        bytesWritten.addAndGet(value.length);
+        if (millis > 0) {
+            expireAt.put(key, System.currentTimeMillis() + millis);
+        } else {
+            expireAt.remove(key);
+        }
+    }
+
+    void hMSet(byte[] rawKey, Map<byte[], byte[]> fields) {
+        Map<String, byte[]> hash = hash(rawKey, true);
+        for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+            hash.put(key(entry.getKey()), entry.getValue());
+            bytesWritten.addAndGet(entry.getKey().length + entry.getValue().length);
+        }
+    }
+
+    long hDel(byte[] rawKey, byte[]... fields) {
+        Map<String, byte[]> hash = hash(rawKey, false);
+        long removed = 0;
+        if (hash != null) {
+            for (byte[] field : fields) {
+                if (hash.remove(key(field)) != null) {
+                    removed++;
+                }
+            }
+            if (hash.isEmpty()) {
+                del(rawKey);
+            }
+        }
+        return removed;
+    }
+
+    byte[] hGet(byte[] rawKey, byte[] field) {
+        Map<String, byte[]> hash = hash(rawKey, false);
+        return hash == null ? null : hash.get(key(field));
+    }
+
+    long hIncrBy(byte[] rawKey, byte[] field, long delta) {
+        Map<String, byte[]> hash = hash(rawKey, true);
+        byte[] current = hash.get(key(field));
+        long value = (current == null ? 0 : Long.parseLong(key(current))) + delta;
+        hash.put(key(field), Long.toString(value).getBytes(StandardCharsets.ISO_8859_1));
+        return value;
+    }
+
+    Map<byte[], byte[]> hGetAll(byte[] rawKey) {
+        Map<String, byte[]> hash = hash(rawKey, false);
+        Map<byte[], byte[]> result = new LinkedHashMap<>();
+        if (hash != null) {
+            hash.forEach((field, value) -> result.put(field.getBytes(StandardCharsets.ISO_8859_1), value));
+        }
+        return result;
+    }
+
+    boolean expire(byte[] rawKey, long millis) {
+        if (lookup(rawKey) == null) {
+            return false;
+        }
+        expireAt.put(key(rawKey), System.currentTimeMillis() + millis);
+        return true;
+    }
+
+    ZSet zSet(byte[] rawKey, boolean create) {
+        Object value = lookup(rawKey);
+        if (value == null && create) {
+            value = new ZSet();
+            values.put(key(rawKey), value);
+        }
+        if (value != null && !(value instanceof ZSet)) {
+            throw new IllegalStateException("WRONGTYPE");
+        }
+        return (ZSet) value;
+    }
+
+    Set<byte[]> zRange(byte[] rawKey, double min, double max, long offset, long count) {
+        Set<byte[]> result = new LinkedHashSet<>();
+        ZSet zSet = zSet(rawKey, false);
+        if (zSet == null) {
+            return result;
+        }
+        zSet.scores.entrySet().stream()
+                .filter(entry -> entry.getValue() >= min && entry.getValue() <= max)
+                .sorted(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .skip(offset)
+                .limit(count < 0 ? Long.MAX_VALUE : count)
+                .forEach(entry -> result.add(entry.getKey().getBytes(StandardCharsets.ISO_8859_1)));
+        return result;
+    }
+
+    /**
+     * 按排名取出成员，负数的排名从末尾开始计算
+     */
+    Set<byte[]> zRangeByRank(byte[] rawKey, long start, long end) {
+        ZSet zSet = zSet(rawKey, false);
+        long size = zSet == null ? 0 : zSet.scores.size();
+        long from = start < 0 ? Math.max(0, size + start) : start;
+        long to = end < 0 ? size + end : Math.min(end, size - 1);
+        if (from > to) {
+            return new LinkedHashSet<>();
+        }
+        return zRange(rawKey, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, from, to - from + 1);
+    }
+
+    /**
+     * 以JDK序列化代替Redis的DUMP格式，只在各个InMemoryRedisConnectionFactory之间使用
+     */
+    byte[] dump(byte[] rawKey) {
+        Object value = lookup(rawKey);
+        if (value == null) {
+            return null;
+        }
+        return new JdkSerializationRedisSerializer().serialize(
+                value instanceof Map ? new HashMap<>((Map<?, ?>) value) : value);
+    }
+
+    @SuppressWarnings("unchecked")
+    void restore(byte[] rawKey, long ttlMillis, byte[] dump) {
+        if (lookup(rawKey) != null) {
+            throw new IllegalStateException("BUSYKEY");
+        }
+        Object value = new JdkSerializationRedisSerializer().deserialize(dump);
+        String key = key(rawKey);
+        values.put(key, value instanceof Map ? new ConcurrentHashMap<>((Map<String, byte[]>) value) : value);
+        if (ttlMillis > 0) {
+            expireAt.put(key, System.currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    long pTtl(byte[] rawKey) {
+        if (lookup(rawKey) == null) {
+            return -2;
+        }
+        Long deadline = expireAt.get(key(rawKey));
+        return deadline == null ? -1 : Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * 游标为按key排序后的下标，MATCH只支持前缀*
+     */
+    /**
+     * 游标记录上一页最后一个key，遍历期间删除key不会跳过其他key，与Redis的SCAN保证一致
+     */
+    List<Object> scan(long cursor, String match, int count) {
+        String prefix = match.endsWith("*") ? match.substring(0, match.length() - 1) : match;
+        TreeSet<String> keys = new TreeSet<>(values.keySet());
+        String after = cursor == 0 ? null : scanCursors.remove(cursor);
+        Iterator<String> iterator = (after == null ? keys : keys.tailSet(after, false)).iterator();
+        List<byte[]> page = new ArrayList<>();
+        String last = null;
+        for (int visited = 0; visited < count && iterator.hasNext(); visited++) {
+            last = iterator.next();
+            if (last.startsWith(prefix) && lookup(last.getBytes(StandardCharsets.ISO_8859_1)) != null) {
+                page.add(last.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        long next = 0;
+        if (iterator.hasNext()) {
+            next = nextScanCursor.incrementAndGet();
+            scanCursors.put(next, last);
+        }
+        List<Object> reply = new ArrayList<>();
+        reply.add(Long.toString(next).getBytes(StandardCharsets.US_ASCII));
+        reply.add(page);
+        return reply;
+    }
+
+    long del(byte[]... rawKeys) {
+        long removed = 0;
+        for (byte[] rawKey : rawKeys) {
+            if (lookup(rawKey) != null) {
+                removed++;
+            }
+            values.remove(key(rawKey));
+            expireAt.remove(key(rawKey));
+        }
+        return removed;
+    }
+
+    @Override
+    public RedisConnection getConnection() {
+        return (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{RedisConnection.class}, new Connection()::invoke);
+    }
+
+    @Override
+    public RedisClusterConnection getClusterConnection() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean getConvertPipelineAndTxResults() {
+        return true;
+    }
+
+    @Override
+    public RedisSentinelConnection getSentinelConnection() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+        return new InvalidDataAccessApiUsageException(ex.getMessage(), ex);
+    }
+
+    static final class ZSet implements Serializable {
+
+        final Map<String, Double> scores = new ConcurrentHashMap<>();
+    }
+
+    private class Connection {
+
+        private List<Object> pipelineResults;
+
+        private boolean closed;
+
+        Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "isPipelined":
+                    return pipelineResults != null;
+                case "isQueueing":
+                    return false;
+                case "isClosed":
+                    return closed;
+                case "close":
+                    closed = true;
+                    return null;
+                case "getNativeConnection":
+                    return lettuce ? lettuceCommands() : this;
+                case "openPipeline":
+                    pipelineResults = new ArrayList<>();
+                    return null;
+                case "closePipeline":
+                    List<Object> results = pipelineResults;
+                    pipelineResults = null;
+                    if (results != null && !results.isEmpty()) {
+                        roundTrips.incrementAndGet();
+                    }
+                    return results == null ? new ArrayList<>() : results;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "InMemoryRedisConnection";
+                default:
+            }
+            if (down) {
+                throw new RedisConnectionFailureException("Redis is down");
+            }
+            if (latencyMillis > 0 && pipelineResults == null) {
+                Thread.sleep(latencyMillis);
+            }
+            commands.computeIfAbsent(name, key -> new AtomicLong()).incrementAndGet();
+            Object result;
+            try {
+                result = execute(name, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (pipelineResults != null) {
+                pipelineResults.add(result);
+                return null;
+            }
+            roundTrips.incrementAndGet();
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object execute(String name, Object[] args) throws InvocationTargetException {
+            InMemoryRedisConnectionFactory redis = InMemoryRedisConnectionFactory.this;
+            switch (name) {
+                case "ping":
+                    return "PONG";
+                case "get":
+                    return redis.get((byte[]) args[0]);
+                case "set":
+                    redis.set((byte[]) args[0], (byte[]) args[1], 0);
+                    return null;
+                case "setEx":
+                    redis.set((byte[]) args[0], (byte[]) args[2], (Long) args[1] * 1000);
+                    return null;
+                case "pSetEx":
+                    redis.set((byte[]) args[0], (byte[]) args[2], (Long) args[1]);
+                    return null;
+                case "expire":
+                    return redis.expire((byte[]) args[0], (Long) args[1] * 1000);
+                case "pExpire":
+                    return redis.expire((byte[]) args[0], (Long) args[1]);
+                case "execute":
+                    byte[][] commandArgs = (byte[][]) args[1];
+                    if (!"SCAN".equalsIgnoreCase((String) args[0])) {
+                        throw new InvocationTargetException(new UnsupportedOperationException((String) args[0]));
+                    }
+                    List<Object> reply = redis.scan(Long.parseLong(key(commandArgs[0])), key(commandArgs[2]),
+                            Integer.parseInt(key(commandArgs[4])));
+                    return lettuce ? reply.get(0) : reply;
+                case "zAdd":
+                    return redis.zSet((byte[]) args[0], true).scores.put(key((byte[]) args[2]), (Double) args[1]) == null;
+                case "zRem":
+                    ZSet zSet = redis.zSet((byte[]) args[0], false);
+                    long removed = 0;
+                    if (zSet != null) {
+                        for (byte[] member : (byte[][]) args[1]) {
+                            removed += zSet.scores.remove(key(member)) == null ? 0 : 1;
+                        }
+                        if (zSet.scores.isEmpty()) {
+                            redis.del((byte[]) args[0]);
+                        }
+                    }
+                    return removed;
+                case "zCard":
+                    ZSet cardinality = redis.zSet((byte[]) args[0], false);
+                    return cardinality == null ? 0L : (long) cardinality.scores.size();
+                case "zScore":
+                    ZSet scored = redis.zSet((byte[]) args[0], false);
+                    return scored == null ? null : scored.scores.get(key((byte[]) args[1]));
+                case "zRange":
+                    return redis.zRangeByRank((byte[]) args[0], (Long) args[1], (Long) args[2]);
+                case "zRemRangeByScore":
+                    Set<byte[]> inRange = redis.zRange((byte[]) args[0], (Double) args[1], (Double) args[2],
+                            0, Long.MAX_VALUE);
+                    ZSet ranged = redis.zSet((byte[]) args[0], false);
+                    inRange.forEach(member -> ranged.scores.remove(key(member)));
+                    return (long) inRange.size();
+                case "zCount":
+                    return (long) redis.zRange((byte[]) args[0], (Double) args[1], (Double) args[2],
+                            0, Long.MAX_VALUE).size();
+                case "zRangeByScore":
+                    return redis.zRange((byte[]) args[0], (Double) args[1], (Double) args[2],
+                            args.length > 3 ? (Long) args[3] : 0, args.length > 4 ? (Long) args[4] : Long.MAX_VALUE);
+                case "mGet":
+                    List<byte[]> result = new ArrayList<>();
+                    for (byte[] rawKey : (byte[][]) args[0]) {
+                        result.add(redis.get(rawKey));
+                    }
+                    return result;
+                case "dump":
+                    return redis.dump((byte[]) args[0]);
+                case "restore":
+                    redis.restore((byte[]) args[0], (Long) args[1], (byte[]) args[2]);
+                    return null;
+                case "pTtl":
+                    return redis.pTtl((byte[]) args[0]);
+                case "del":
+                    return redis.del((byte[][]) args[0]);
+                case "exists":
+                    return redis.lookup((byte[]) args[0]) != null;
+                case "hMSet":
+                    redis.hMSet((byte[]) args[0], (Map<byte[], byte[]>) args[1]);
+                    return null;
+                case "hSet":
+                    Map<byte[], byte[]> field = new HashMap<>();
+                    field.put((byte[]) args[1], (byte[]) args[2]);
+                    redis.hMSet((byte[]) args[0], field);
+                    return true;
+                case "hDel":
+                    return redis.hDel((byte[]) args[0], (byte[][]) args[1]);
+                case "hGet":
+                    return redis.hGet((byte[]) args[0], (byte[]) args[1]);
+                case "hIncrBy":
+                    return redis.hIncrBy((byte[]) args[0], (byte[]) args[1], (Long) args[2]);
+                case "hGetAll":
+                    return redis.hGetAll((byte[]) args[0]);
+                case "publish":
+                    redis.published.add(new byte[][]{(byte[]) args[0], (byte[]) args[1]});
+                    return 0L;
+                case "evalSha":
+                    String sha1 = args[0] instanceof byte[] ? key((byte[]) args[0]) : (String) args[0];
+                    BiFunction<InMemoryRedisConnectionFactory, byte[][], Object> script = scripts.get(sha1);
+                    if (script == null) {
+                        throw new InvocationTargetException(new UnsupportedOperationException("NOSCRIPT " + sha1));
+                    }
+                    return script.apply(redis, (byte[][]) args[3]);
+                default:
+                    throw new InvocationTargetException(new UnsupportedOperationException(name));
+            }
+        }
+    }
+
+}
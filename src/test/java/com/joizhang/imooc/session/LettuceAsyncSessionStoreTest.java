@@ -0,0 +1,183 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.lambdaworks.redis.cluster.api.async.RedisClusterAsyncCommands;
+import org.apache.shiro.session.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class LettuceAsyncSessionStoreTest {
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private SessionExpiryIndex expiryIndex;
+
+    /**
+     * 模拟Lettuce的事件循环：命令按发送顺序在单个线程上执行
+     */
+    private ExecutorService eventLoop;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new ShiroSessionRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        expiryIndex = new SessionExpiryIndex(redisTemplate);
+        eventLoop = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        eventLoop.shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisClusterAsyncCommands<byte[], byte[]> asyncCommands() {
+        RedisConnection connection = redis.getConnection();
+        return (RedisClusterAsyncCommands<byte[], byte[]>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{RedisClusterAsyncCommands.class}, (proxy, method, args) -> {
+                    TestRedisFuture<Object> future = new TestRedisFuture<>();
+                    eventLoop.execute(() -> {
+                        try {
+                            future.complete(execute(connection, method.getName(), args));
+                        } catch (Exception e) {
+                            future.completeExceptionally(e);
+                        }
+                    });
+                    return future;
+                });
+    }
+
+    private static Object execute(RedisConnection connection, String name, Object[] args) {
+        switch (name) {
+            case "setex":
+                connection.setEx((byte[]) args[0], (Long) args[1], (byte[]) args[2]);
+                return "OK";
+            case "zadd":
+                return connection.zAdd((byte[]) args[0], (Double) args[1], (byte[]) args[2]) ? 1L : 0L;
+            case "del":
+                return connection.del((byte[][]) args[0]);
+            case "zrem":
+                return connection.zRem((byte[]) args[0], (byte[][]) args[1]);
+            case "hincrby":
+                return connection.hIncrBy((byte[]) args[0], (byte[]) args[1], (Long) args[2]);
+            case "expire":
+                return connection.expire((byte[]) args[0], (Long) args[1]);
+            default:
+                throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private LettuceAsyncSessionStore newStore() {
+        LettuceAsyncSessionStore store = new LettuceAsyncSessionStore(redisTemplate, asyncCommands());
+        store.setExpiryIndex(expiryIndex);
+        return store;
+    }
+
+    private static List<Session> newSessions(int count) {
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ShiroSession session = new ShiroSession();
+            session.setId("s" + i);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    @Test
+    public void writesCompleteOffRequestThread() throws Exception {
+        int count = 50;
+        // 事件循环被占住时，请求线程上的create仍立即返回，命令全部处于已发出未应答的状态
+        CountDownLatch release = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        LettuceAsyncSessionStore store = newStore();
+        List<Session> sessions = newSessions(count);
+        for (Session session : sessions) {
+            store.create(session);
+        }
+        assertEquals(2 * count, store.getInFlightCount());
+        assertEquals(0, redis.keyCount());
+
+        release.countDown();
+        assertTrue(store.awaitPending(5000));
+        assertEquals(0, store.getInFlightCount());
+        assertEquals(count, expiryIndex.count());
+        for (Session session : sessions) {
+            assertNotNull(store.read(session.getId()));
+        }
+        store.delete(sessions.get(0).getId());
+        assertTrue(store.awaitPending(1000));
+        assertNull(store.read(sessions.get(0).getId()));
+        assertEquals(count - 1, expiryIndex.count());
+    }
+
+    @Test
+    public void versionIsIncrementedOnTheAsyncConnection() throws Exception {
+        SessionVersionTable versionTable = new SessionVersionTable(redisTemplate);
+        LettuceAsyncSessionStore store = newStore();
+        store.setVersionTable(versionTable);
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        sessionDao.setSessionStore(store);
+        sessionDao.setVersionTable(versionTable);
+
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        sessionDao.create(session);
+        session.setAttribute("k", "v");
+        sessionDao.update(session);
+        assertTrue(store.awaitPending(1000));
+
+        assertEquals(2, session.getVersion());
+        assertEquals(2, versionTable.getVersion("shiro-session:" + session.getId()));
+        // HINCRBY只在异步连接上发出一次，请求线程上没有同步的版本号写入
+        assertEquals(2, redis.commandCount("hIncrBy"));
+    }
+
+    @Test
+    public void failedWritesAreCountedAndReleased() throws Exception {
+        LettuceAsyncSessionStore store = newStore();
+        redis.setDown(true);
+        store.create(newSessions(1).get(0));
+        assertTrue(store.awaitPending(1000));
+        assertEquals(2, store.getFailedWriteCount());
+        assertEquals(0, store.getInFlightCount());
+    }
+
+    @Test(expected = QueryTimeoutException.class)
+    public void boundsWritesInFlight() {
+        LettuceAsyncSessionStore store = newStore();
+        store.setMaxInFlight(2);
+        store.setAcquireTimeoutMillis(10);
+        redis.setLatencyMillis(200);
+        List<Session> sessions = newSessions(2);
+        store.create(sessions.get(0));
+        store.create(sessions.get(1));
+    }
+
+}
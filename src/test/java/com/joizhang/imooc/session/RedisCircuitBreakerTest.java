@@ -0,0 +1,105 @@
+package com.joizhang.imooc.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class RedisCircuitBreakerTest {
+
+    private RedisCircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() {
+        circuitBreaker = new RedisCircuitBreaker();
+        circuitBreaker.setFailureThreshold(3);
+        circuitBreaker.setOpenMillis(100);
+        circuitBreaker.setLatencyBudgetMillis(50);
+        circuitBreaker.init();
+    }
+
+    @After
+    public void tearDown() {
+        circuitBreaker.destroy();
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            try {
+                circuitBreaker.execute(() -> {
+                    throw new RedisConnectionFailureException("down");
+                });
+            } catch (RedisConnectionFailureException expected) {
+                // ignore
+            }
+        }
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailuresAndFailsFast() {
+        fail(2);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        fail(1);
+        assertEquals(RedisCircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        AtomicBoolean invoked = new AtomicBoolean();
+        try {
+            circuitBreaker.execute(() -> invoked.getAndSet(true));
+            org.junit.Assert.fail();
+        } catch (RedisConnectionFailureException expected) {
+            assertFalse(invoked.get());
+        }
+        assertEquals(1, circuitBreaker.getRejectedCount());
+    }
+
+    @Test
+    public void slowCallFailsWithinBudget() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        AtomicBoolean completed = new AtomicBoolean();
+        try {
+            circuitBreaker.execute(() -> {
+                try {
+                    release.await();
+                    completed.set(true);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            });
+            org.junit.Assert.fail();
+        } catch (QueryTimeoutException expected) {
+            // 调用仍未返回时请求线程已放弃等待，并中断了该调用
+            assertFalse(completed.get());
+            assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void successfulProbeClosesAndNotifiesListeners() throws Exception {
+        CountDownLatch recovered = new CountDownLatch(1);
+        circuitBreaker.addRecoveryListener(recovered::countDown);
+        fail(3);
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(150);
+        // 探测失败重新熔断
+        fail(1);
+        assertEquals(RedisCircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(150);
+        assertEquals("ok", circuitBreaker.execute(() -> "ok"));
+        assertEquals(RedisCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(recovered.await(1, TimeUnit.SECONDS));
+    }
+
+}
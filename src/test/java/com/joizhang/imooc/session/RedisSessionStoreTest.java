@@ -0,0 +1,25 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.joizhang.imooc.session.store.SessionStore;
+import com.joizhang.imooc.session.store.SessionStoreContract;
+import org.apache.shiro.session.Session;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+public class RedisSessionStoreTest extends SessionStoreContract {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected SessionStore newStore(int timeoutSeconds) {
+        RedisTemplate<String, Session> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(new InMemoryRedisConnectionFactory().withSessionScripts());
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new ShiroSessionRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        RedisSessionStore store = new RedisSessionStore(redisTemplate);
+        store.setRedisShiroSessionTimeout(timeoutSeconds);
+        return store;
+    }
+
+}
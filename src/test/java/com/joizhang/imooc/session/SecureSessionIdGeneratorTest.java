@@ -0,0 +1,67 @@
+package com.joizhang.imooc.session;
+
+import org.apache.shiro.session.mgt.eis.JavaUuidSessionIdGenerator;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SecureSessionIdGeneratorTest {
+
+    private static final int THREADS = 32;
+
+    private static final int IDS_PER_THREAD = 2_000;
+
+    private final SecureSessionIdGenerator generator = new SecureSessionIdGenerator();
+
+    @Test
+    public void idsAreCompactAndUrlSafe() {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String id = (String) generator.generateId(null);
+            assertTrue(id, id.matches("[A-Za-z0-9_-]{22}"));
+            ids.add(id);
+        }
+        assertEquals(100_000, ids.size());
+        assertEquals(36, new JavaUuidSessionIdGenerator().generateId(null).toString().length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLessEntropyThanUuid() {
+        new SecureSessionIdGenerator(8, "SHA1PRNG");
+    }
+
+    /**
+     * 多线程同时生成id，不应重复
+     */
+    @Test
+    public void idsAreUniqueUnderManyThreads() throws Exception {
+        Set<Object> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < THREADS; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < IDS_PER_THREAD; i++) {
+                    ids.add(generator.generateId(null));
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+}
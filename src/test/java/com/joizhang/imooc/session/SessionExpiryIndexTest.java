@@ -0,0 +1,129 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionExpiryIndexTest {
+
+    private static final int SESSIONS = 200;
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private SessionExpiryIndex expiryIndex;
+
+    private ShiroCachingSessionDao sessionDao;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        expiryIndex = new SessionExpiryIndex(redisTemplate);
+        sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        sessionDao.setExpiryIndex(expiryIndex);
+    }
+
+    private List<ShiroSession> createSessions() {
+        List<ShiroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+            sessionDao.create(session);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private void expireInIndex(List<ShiroSession> sessions, long expireAt) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            sessions.forEach(session -> expiryIndex.expireAt(connection, session.getId(), expireAt));
+            return null;
+        });
+    }
+
+    @Test
+    public void indexUpdatedInSameRoundTripAsWrite() {
+        redis.resetCounters();
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        sessionDao.create(session);
+        assertEquals(1, redis.roundTrips());
+        assertEquals(1, redis.commandCount("zAdd"));
+
+        redis.resetCounters();
+        sessionDao.delete(session);
+        assertEquals(1, redis.roundTrips());
+        assertEquals(0, expiryIndex.count());
+    }
+
+    @Test
+    public void countsAndFindsExpiredSessions() {
+        List<ShiroSession> sessions = createSessions();
+        assertEquals(SESSIONS, expiryIndex.count());
+        assertEquals(SESSIONS, expiryIndex.countActive());
+
+        List<ShiroSession> expired = sessions.subList(0, 50);
+        expireInIndex(expired, System.currentTimeMillis() - 1000);
+        redis.resetCounters();
+        assertEquals(SESSIONS - 50, expiryIndex.countActive());
+        // 每个分片一条ZCOUNT，与Session个数无关
+        assertEquals(expiryIndex.getShards(), redis.commandCount());
+
+        HashSet<Serializable> expiredIds = new HashSet<>();
+        expired.forEach(session -> expiredIds.add(session.getId()));
+        assertEquals(expiredIds, new HashSet<>(expiryIndex.findExpired(System.currentTimeMillis(), SESSIONS)));
+
+        expiryIndex.remove(expiredIds);
+        assertEquals(SESSIONS - 50, expiryIndex.count());
+        assertTrue(expiryIndex.findExpired(System.currentTimeMillis(), SESSIONS).isEmpty());
+    }
+
+    @Test
+    public void findsIdleSessions() {
+        List<ShiroSession> sessions = createSessions();
+        SessionTouchBatcher touchBatcher = new SessionTouchBatcher(redisTemplate);
+        touchBatcher.setExpiryIndex(expiryIndex);
+        long tenMinutesAgo = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        for (ShiroSession session : sessions.subList(0, 30)) {
+            touchBatcher.touch("shiro-session:" + session.getId(), session.getId(), tenMinutesAgo);
+        }
+        touchBatcher.flush();
+        assertEquals(30, expiryIndex.findIdle(TimeUnit.MINUTES.toMillis(5), SESSIONS).size());
+        assertEquals(30, expiryIndex.countIdle(TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(15)));
+        assertEquals(SESSIONS - 30, expiryIndex.countIdle(0, TimeUnit.MINUTES.toMillis(1)));
+    }
+
+    @Test
+    public void writeBehindUpdatesIndex() {
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        flusher.setExpiryIndex(expiryIndex);
+        sessionDao.setWriteBehindFlusher(flusher);
+        List<ShiroSession> sessions = createSessions();
+        expireInIndex(sessions, System.currentTimeMillis() - 1000);
+        for (ShiroSession session : sessions) {
+            session.setAttribute("key", "value");
+            sessionDao.update(session);
+        }
+        flusher.flush();
+        assertEquals(SESSIONS, expiryIndex.countActive());
+    }
+
+}
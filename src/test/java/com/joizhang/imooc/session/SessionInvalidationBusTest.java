@@ -0,0 +1,118 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionInvalidationBusTest {
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+    }
+
+    private ShiroCachingSessionDao newSessionDao() {
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        return sessionDao;
+    }
+
+    private SessionInvalidationBus newBus(ShiroCachingSessionDao sessionDao, String nodeId) {
+        SessionInvalidationBus bus = new SessionInvalidationBus(redisTemplate, sessionDao);
+        bus.setNodeId(nodeId);
+        return bus;
+    }
+
+    private void deliver(SessionInvalidationBus... buses) {
+        for (byte[][] message : redis.published) {
+            for (SessionInvalidationBus bus : buses) {
+                bus.onMessage(new DefaultMessage(message[0], message[1]), null);
+            }
+        }
+    }
+
+    @Test
+    public void batchesIdsWithinWindow() throws InterruptedException {
+        ShiroCachingSessionDao nodeA = newSessionDao();
+        ShiroCachingSessionDao nodeB = newSessionDao();
+        SessionInvalidationBus busA = newBus(nodeA, "a");
+        SessionInvalidationBus busB = newBus(nodeB, "b");
+        busA.setBatchWindowMillis(60_000);
+        busA.init();
+
+        List<Serializable> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ShiroSession session = new ShiroSession();
+            Serializable sessionId = nodeA.create(session);
+            nodeB.readSession(sessionId);
+            ids.add(sessionId);
+        }
+        assertEquals(100, nodeB.getEhCacheActiveSessions().size());
+
+        ids.forEach(busA::publish);
+        assertTrue(redis.published.isEmpty());
+        busA.destroy();
+        assertEquals(1, redis.published.size());
+
+        deliver(busA, busB);
+        assertEquals(0, nodeB.getEhCacheActiveSessions().size());
+        // 本节点跳过自己发出的消息
+        assertEquals(100, nodeA.getEhCacheActiveSessions().size());
+    }
+
+    @Test
+    public void splitsLargeBatches() {
+        SessionInvalidationBus bus = newBus(newSessionDao(), "a");
+        bus.setBatchSize(10);
+        bus.setBatchWindowMillis(0);
+        bus.init();
+        for (int i = 0; i < 25; i++) {
+            bus.publish("id-" + i);
+        }
+        assertEquals(25, redis.published.size());
+
+        redis.published.clear();
+        bus.setBatchWindowMillis(60_000);
+        bus.init();
+        for (int i = 0; i < 25; i++) {
+            bus.publish("id-" + i);
+        }
+        bus.destroy();
+        assertEquals(3, redis.published.size());
+    }
+
+    @Test
+    public void messageRoundTrip() {
+        byte[] body = ShiroSessionMessage.encode("1234@host", Arrays.asList("a", "b"));
+        ShiroSessionMessage message = new ShiroSessionMessage("c".getBytes(), body);
+        assertEquals("1234@host", message.nodeId);
+        assertEquals(Arrays.asList("a", "b"), message.sessionIds);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJdkSerializedBody() {
+        new ShiroSessionMessage("c".getBytes(), new JdkSerializationRedisSerializer().serialize("id"));
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SessionKeyEncoderTest {
+
+    private static final int ITERATIONS = 20_000;
+
+    private static final String PREFIX = "shiro-session:";
+
+    private final StringRedisSerializer keySerializer = new StringRedisSerializer();
+
+    private final SessionKeyEncoder encoder = new SessionKeyEncoder(PREFIX);
+
+    @Test
+    public void sameBytesAsStringRedisSerializer() {
+        for (Serializable id : new Serializable[]{"7c9e6679-7425-40de-944b-e07fc1f90ae7",
+                "Xb3_kQ9-zZ1aaBcD0e1F2g", "会话-1", 42L}) {
+            byte[] key = encoder.encode(id);
+            assertArrayEquals(keySerializer.serialize(PREFIX + id), key);
+            assertEquals((PREFIX + id).hashCode(), SessionKeyEncoder.hash(key));
+        }
+    }
+
+    /**
+     * 构造一次读取所需的key(Session key、版本表field)前后的分配量
+     */
+    @Test
+    public void keyConstructionAllocation() {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        String id = (String) new SecureSessionIdGenerator().generateId(null);
+        long before = allocatedPerOp(threads, () -> {
+            String key = PREFIX + id;
+            keySerializer.serialize(key);
+            key.getBytes(StandardCharsets.UTF_8);
+            ("shiro-session-version:" + (key.hashCode() & Integer.MAX_VALUE) % 256).getBytes(StandardCharsets.UTF_8);
+        });
+        long after = allocatedPerOp(threads, () -> SessionKeyEncoder.hash(encoder.encode(id)));
+        assertTrue(after < before);
+    }
+
+    /**
+     * 读取路径的Redis往返：缓存命中只做版本检查，未缓存时才重新加载
+     */
+    @Test
+    public void readPathRoundTrips() {
+        InMemoryRedisConnectionFactory redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        RedisTemplate<String, Session> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(keySerializer);
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+
+        ShiroCachingSessionDao cached = new ShiroCachingSessionDao(redisTemplate);
+        cached.setCacheManager(new SessionCacheManager());
+        cached.setVersionTable(new SessionVersionTable(redisTemplate));
+        Serializable cachedId = cached.create(new ShiroSessionFactory().createSession(null));
+
+        ShiroCachingSessionDao uncached = new ShiroCachingSessionDao(redisTemplate);
+        uncached.setVersionTable(new SessionVersionTable(redisTemplate));
+        Serializable uncachedId = uncached.create(new ShiroSessionFactory().createSession(null));
+
+        redis.resetCounters();
+        assertNotNull(cached.readSession(cachedId));
+        assertEquals(1, redis.roundTrips());
+        assertEquals(1, redis.commandCount("hGet"));
+        redis.resetCounters();
+        assertNotNull(uncached.readSession(uncachedId));
+        assertEquals(2, redis.roundTrips());
+        assertEquals(1, redis.commandCount("hGet"));
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static long allocatedPerOp(com.sun.management.ThreadMXBean threads, Runnable runnable) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            runnable.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            runnable.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+    }
+
+}
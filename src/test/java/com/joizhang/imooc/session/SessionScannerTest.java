@@ -0,0 +1,130 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import com.joizhang.imooc.session.shard.ShardedRedisConnectionFactory;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SessionScannerTest {
+
+    private static final int SESSIONS = 1050;
+
+    private static final int PAGE_SIZE = 100;
+
+    private final ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer();
+
+    private RedisTemplate<String, Session> redisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, Session> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(serializer);
+        redisTemplate.afterPropertiesSet();
+        return redisTemplate;
+    }
+
+    private Set<Serializable> createSessions(RedisTemplate<String, Session> redisTemplate,
+                                             ShiroSessionHashRepository hashRepository) {
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        sessionDao.setHashRepository(hashRepository);
+        sessionDao.setVersionTable(new SessionVersionTable(redisTemplate));
+        Set<Serializable> ids = new HashSet<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            ids.add(sessionDao.create(new ShiroSessionFactory().createSession(null)));
+        }
+        return ids;
+    }
+
+    private Set<Serializable> scanAll(SessionScanner scanner) {
+        Set<Serializable> ids = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            SessionPage<Session> page = scanner.scan(cursor, PAGE_SIZE);
+            assertTrue(page.getItems().size() <= PAGE_SIZE);
+            page.getItems().forEach(session -> assertTrue(ids.add(session.getId())));
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+        assertTrue(pages >= SESSIONS / PAGE_SIZE);
+        return ids;
+    }
+
+    @Test
+    public void scansAllSessionsPageByPage() {
+        InMemoryRedisConnectionFactory redis = new InMemoryRedisConnectionFactory();
+        RedisTemplate<String, Session> redisTemplate = redisTemplate(redis);
+        Set<Serializable> ids = createSessions(redisTemplate, null);
+        redis.resetCounters();
+        assertEquals(ids, scanAll(new SessionScanner(redisTemplate)));
+        assertEquals(0, redis.commandCount("keys"));
+    }
+
+    @Test
+    public void scansThroughNativeLettuceScan() {
+        InMemoryRedisConnectionFactory redis = new InMemoryRedisConnectionFactory().withLettuceNativeConnection();
+        RedisTemplate<String, Session> redisTemplate = redisTemplate(redis);
+        Set<Serializable> ids = createSessions(redisTemplate, null);
+        redis.resetCounters();
+        assertEquals(ids, scanAll(new SessionScanner(redisTemplate)));
+        assertEquals(0, redis.commandCount("execute"));
+        assertTrue(redis.commandCount("scan") > 0);
+    }
+
+    @Test
+    public void scansHashSessions() {
+        InMemoryRedisConnectionFactory redis = new InMemoryRedisConnectionFactory();
+        RedisTemplate<String, Session> redisTemplate = redisTemplate(redis);
+        ShiroSessionHashRepository hashRepository = new ShiroSessionHashRepository(redisTemplate, serializer.getCodec());
+        Set<Serializable> ids = createSessions(redisTemplate, hashRepository);
+        SessionScanner scanner = new SessionScanner(redisTemplate);
+        scanner.setHashRepository(hashRepository);
+        assertEquals(ids, scanAll(scanner));
+    }
+
+    @Test
+    public void scansEveryShard() {
+        Map<String, InMemoryRedisConnectionFactory> shards = new LinkedHashMap<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            shards.put(name, new InMemoryRedisConnectionFactory());
+        }
+        ShardedRedisConnectionFactory factory = new ShardedRedisConnectionFactory();
+        factory.setShards(shards);
+        RedisTemplate<String, Session> redisTemplate = redisTemplate(factory);
+        Set<Serializable> ids = createSessions(redisTemplate, null);
+        assertEquals(ids, scanAll(new SessionScanner(redisTemplate)));
+    }
+
+    @Test
+    public void listsActiveSessionsForAdminView() {
+        InMemoryRedisConnectionFactory redis = new InMemoryRedisConnectionFactory();
+        RedisTemplate<String, Session> redisTemplate = redisTemplate(redis);
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        Session session = new ShiroSessionFactory().createSession(null);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("Mark", "realm"));
+        sessionDao.create(session);
+        ShiroSessionService shiroSessionService = new ShiroSessionService();
+        shiroSessionService.setSessionScanner(new SessionScanner(redisTemplate));
+        SessionPage<Map<String, Object>> page = shiroSessionService.getActiveSessions(null, PAGE_SIZE);
+        assertTrue(page.isFinished());
+        assertEquals(1, page.getItems().size());
+        assertEquals("Mark", page.getItems().get(0).get("loginName"));
+        assertEquals(session.getId(), page.getItems().get(0).get("id"));
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionUserIndexTest {
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private SessionUserIndex userIndex;
+
+    private ShiroCachingSessionDao sessionDao;
+
+    private ShiroSessionService sessionService;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        userIndex = new SessionUserIndex(redisTemplate);
+        sessionDao = newSessionDao();
+        sessionService = new ShiroSessionService();
+        sessionService.setSessionDao(sessionDao);
+        sessionService.setUserIndex(userIndex);
+        SessionInvalidationBus bus = new SessionInvalidationBus(redisTemplate, sessionDao);
+        bus.setNodeId("a");
+        sessionService.setInvalidationBus(bus);
+    }
+
+    private ShiroCachingSessionDao newSessionDao() {
+        ShiroCachingSessionDao dao = new ShiroCachingSessionDao(redisTemplate);
+        dao.setCacheManager(new SessionCacheManager());
+        dao.setUserIndex(userIndex);
+        return dao;
+    }
+
+    private ShiroSession login(String userName) throws InterruptedException {
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        sessionDao.create(session);
+        // 登录时间作为索引的score，保证先后顺序
+        Thread.sleep(2);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                new SimplePrincipalCollection(userName, "realm"));
+        sessionDao.update(session);
+        return session;
+    }
+
+    private static List<String> ids(List<ShiroSession> sessions) {
+        List<String> ids = new ArrayList<>();
+        sessions.forEach(session -> ids.add(session.getId().toString()));
+        return ids;
+    }
+
+    @Test
+    public void indexMaintainedOnLoginLogoutAndExpiry() throws InterruptedException {
+        ShiroSession first = login("alice");
+        ShiroSession second = login("alice");
+        ShiroSession other = login("bob");
+        assertEquals(ids(Arrays.asList(first, second)), userIndex.getSessionIds("alice"));
+        assertEquals(1, userIndex.count("bob"));
+
+        // 再次写回未改变登录信息的Session不再更新索引
+        redis.resetCounters();
+        second.setAttribute("k", "v");
+        sessionDao.update(second);
+        assertEquals(0, redis.commandCount("zAdd"));
+
+        // 退出
+        sessionDao.delete(first);
+        assertEquals(ids(Arrays.asList(second)), userIndex.getSessionIds("alice"));
+
+        // 过期清理时只有sessionId
+        ShiroSession expired = new ShiroSession();
+        expired.setId(other.getId());
+        sessionDao.delete(expired);
+        assertEquals(0, userIndex.count("bob"));
+        assertTrue(userIndex.getUserNames(Arrays.asList(first.getId(), other.getId())).isEmpty());
+    }
+
+    @Test
+    public void maxSessionsKicksOutOldest() throws InterruptedException {
+        List<ShiroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sessions.add(login("alice"));
+        }
+        ShiroCachingSessionDao nodeB = newSessionDao();
+        sessions.forEach(session -> nodeB.readSession(session.getId()));
+
+        sessionService.setMaxSessionsPerUser(3);
+        assertEquals(2, sessionService.enforceMaxSessions("alice"));
+        assertEquals(ids(sessions.subList(2, 5)), userIndex.getSessionIds("alice"));
+        assertEquals(0, sessionService.enforceMaxSessions("alice"));
+
+        for (ShiroSession kicked : sessions.subList(0, 2)) {
+            assertNull(sessionDao.doReadSessionWithoutExpire(kicked.getId()));
+        }
+        // 两个Session的失效通知合并为一条消息
+        assertEquals(1, redis.published.size());
+        SessionInvalidationBus busB = new SessionInvalidationBus(redisTemplate, nodeB);
+        busB.setNodeId("b");
+        byte[][] message = redis.published.get(0);
+        busB.onMessage(new DefaultMessage(message[0], message[1]), null);
+        HashSet<Serializable> cached = new HashSet<>();
+        nodeB.getEhCacheActiveSessions().forEach(session -> cached.add(session.getId()));
+        assertEquals(new HashSet<Serializable>(ids(sessions.subList(2, 5))), cached);
+    }
+
+    @Test
+    public void kickOutCostIsConstantPerSession() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            login("alice");
+        }
+        for (int i = 0; i < 100; i++) {
+            login("bob");
+        }
+
+        redis.resetCounters();
+        assertEquals(10, sessionService.kickOut("alice"));
+        long aliceRoundTrips = redis.roundTrips();
+        long aliceCommands = redis.commandCount();
+
+        redis.resetCounters();
+        assertEquals(100, sessionService.kickOut("bob"));
+        assertEquals(aliceRoundTrips, redis.roundTrips());
+        assertEquals((aliceCommands - 2) * 10, redis.commandCount() - 2);
+        assertEquals(0, userIndex.count("bob"));
+        assertEquals(0, redis.keyCount());
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListenerAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionValidationSweeperTest {
+
+    private static final int SESSIONS = 200;
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private SessionExpiryIndex expiryIndex;
+
+    private ShiroCachingSessionDao sessionDao;
+
+    private final Map<Serializable, AtomicInteger> expirations = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        expiryIndex = new SessionExpiryIndex(redisTemplate);
+        sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        sessionDao.setExpiryIndex(expiryIndex);
+    }
+
+    private SessionValidationSweeper sweeper(String nodeId) {
+        SessionValidationSweeper sweeper = new SessionValidationSweeper(redisTemplate, expiryIndex, sessionDao);
+        sweeper.setNodeId(nodeId);
+        sweeper.setBatchSize(16);
+        sweeper.setMaxSessionsPerSecond(1_000_000);
+        sweeper.setSessionListeners(Collections.singletonList(new SessionListenerAdapter() {
+            @Override
+            public void onExpiration(Session session) {
+                expirations.computeIfAbsent(session.getId(), id -> new AtomicInteger()).incrementAndGet();
+            }
+        }));
+        return sweeper;
+    }
+
+    /**
+     * 创建Session，其中一半在Redis中已过期，所有Session在索引中都已到期
+     */
+    private List<ShiroSession> createHalfExpired() {
+        List<ShiroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+            sessionDao.create(session);
+            sessions.add(session);
+        }
+        final long past = System.currentTimeMillis() - 1000;
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < sessions.size(); i++) {
+                expiryIndex.expireAt(connection, sessions.get(i).getId(), past);
+                if (i % 2 == 0) {
+                    connection.del(("shiro-session:" + sessions.get(i).getId()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return sessions;
+    }
+
+    @Test
+    public void leasesAreSplitDisjointlyBetweenNodes() {
+        SessionValidationSweeper a = sweeper("a");
+        SessionValidationSweeper b = sweeper("b");
+        a.sweep();
+        assertEquals(expiryIndex.getShards(), a.getLeasedShards().size());
+        b.sweep();
+        a.sweep();
+        b.sweep();
+
+        Set<Integer> union = new HashSet<>(a.getLeasedShards());
+        union.addAll(b.getLeasedShards());
+        assertEquals(expiryIndex.getShards() / 2, a.getLeasedShards().size());
+        assertEquals(expiryIndex.getShards() / 2, b.getLeasedShards().size());
+        assertEquals(expiryIndex.getShards(), union.size());
+
+        // 节点下线后释放租约，剩下的节点接管所有分片
+        a.destroy();
+        b.sweep();
+        assertEquals(expiryIndex.getShards(), b.getLeasedShards().size());
+    }
+
+    @Test
+    public void expiredSessionsFireOnceAcrossCluster() {
+        List<ShiroSession> sessions = createHalfExpired();
+        SessionValidationSweeper a = sweeper("a");
+        SessionValidationSweeper b = sweeper("b");
+        int expired = a.sweep() + b.sweep() + a.sweep() + b.sweep();
+
+        assertEquals(SESSIONS / 2, expired);
+        assertEquals(SESSIONS / 2, expirations.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            AtomicInteger fired = expirations.get(sessions.get(i).getId());
+            if (i % 2 == 0) {
+                assertEquals(1, fired.get());
+            } else {
+                assertNull(fired);
+            }
+        }
+        // 仍然存活的Session按Redis中的剩余时间重新登记
+        assertEquals(SESSIONS / 2, expiryIndex.count());
+        assertEquals(SESSIONS / 2, expiryIndex.countActive());
+    }
+
+    @Test
+    public void sweepCostDoesNotGrowWithNodes() {
+        createHalfExpired();
+        redis.resetCounters();
+        sweeper("a").sweep();
+        long single = redis.commandCount("pTtl");
+        assertEquals(SESSIONS, single);
+
+        setUp();
+        expirations.clear();
+        createHalfExpired();
+        List<SessionValidationSweeper> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(sweeper("node-" + i));
+        }
+        // 先让租约在4个节点间平衡，再开始计数
+        for (int round = 0; round < 3; round++) {
+            nodes.forEach(SessionValidationSweeper::sweep);
+        }
+        assertEquals(SESSIONS / 2, expirations.size());
+        // 每个到期Session在整个集群内只被检查一次
+        assertEquals(single, redis.commandCount("pTtl"));
+    }
+
+}
@@ -0,0 +1,417 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import com.joizhang.imooc.session.store.HeapSessionStore;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionException;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.session.UnknownSessionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShiroCachingSessionDaoTest {
+
+    private static final int REQUESTS = 100;
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+    }
+
+    private ShiroCachingSessionDao newSessionDao() {
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        return sessionDao;
+    }
+
+    /**
+     * 模拟未登录用户访问登录页：每个请求读取一次Session并touch一次
+     */
+    private long redisCommandsForAnonymousRequests(ShiroCachingSessionDao sessionDao) {
+        ShiroSession session = new ShiroSession("127.0.0.1");
+        session.setTimeout(1_800_000);
+        Serializable sessionId = sessionDao.create(session);
+        redis.resetCounters();
+        for (int i = 0; i < REQUESTS; i++) {
+            Session current = sessionDao.readSession(sessionId);
+            ((ShiroSession) current).touch();
+            sessionDao.update(current);
+        }
+        return redis.commandCount();
+    }
+
+    @Test
+    public void anonymousSessionReloadedOnEveryRequestByDefault() {
+        long commands = redisCommandsForAnonymousRequests(newSessionDao());
+        assertTrue(commands >= REQUESTS);
+    }
+
+    @Test
+    public void anonymousSessionServedFromCacheWithinValidity() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        sessionDao.setAnonymousSessionValidity(60_000);
+        long commands = redisCommandsForAnonymousRequests(sessionDao);
+        // 只有创建后的第一次update会写回Redis
+        assertEquals(1, commands);
+    }
+
+    @Test
+    public void anonymousSessionReloadedAfterValidity() throws InterruptedException {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        sessionDao.setAnonymousSessionValidity(50);
+        ShiroSession session = new ShiroSession();
+        session.setTimeout(1_800_000);
+        Serializable sessionId = sessionDao.create(session);
+        redis.resetCounters();
+        sessionDao.readSession(sessionId);
+        assertEquals(0, redis.commandCount());
+        Thread.sleep(100);
+        sessionDao.readSession(sessionId);
+        assertEquals(1, redis.commandCount());
+    }
+
+    /**
+     * 读取Session并重置过期时间只需一次网络往返，原先的GET+EXPIRE需要两次
+     */
+    @Test
+    public void readAndTouchTakesOneRoundTrip() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        ShiroSession session = new ShiroSession();
+        Serializable sessionId = sessionDao.create(session);
+        String key = "shiro-session:" + sessionId;
+
+        redis.resetCounters();
+        for (int i = 0; i < REQUESTS; i++) {
+            redisTemplate.boundValueOps(key).get();
+            redisTemplate.expire(key, 1800, TimeUnit.SECONDS);
+        }
+        long before = redis.roundTrips();
+
+        redis.resetCounters();
+        for (int i = 0; i < REQUESTS; i++) {
+            sessionDao.deleteCache(sessionId);
+            assertNotNull(sessionDao.readSession(sessionId));
+        }
+        long after = redis.roundTrips();
+        assertEquals(2 * REQUESTS, before);
+        assertEquals(REQUESTS, after);
+    }
+
+    private long burstyUpdates(ShiroCachingSessionDao sessionDao, SessionWriteBehindFlusher flusher) {
+        List<ShiroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ShiroSession session = new ShiroSession();
+            sessionDao.create(session);
+            sessions.add(session);
+        }
+        redis.resetCounters();
+        for (int i = 0; i < 20; i++) {
+            for (ShiroSession session : sessions) {
+                session.setAttribute("counter", i);
+                sessionDao.update(session);
+            }
+        }
+        if (flusher != null) {
+            flusher.destroy();
+        }
+        return redis.commandCount();
+    }
+
+    @Test
+    public void writeBehindCoalescesUpdates() {
+        long syncCommands = burstyUpdates(newSessionDao(), null);
+        long syncRoundTrips = redis.roundTrips();
+
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        sessionDao.setWriteBehindFlusher(flusher);
+        long writeBehindCommands = burstyUpdates(sessionDao, flusher);
+        long writeBehindRoundTrips = redis.roundTrips();
+        assertEquals(1000, syncCommands);
+        assertEquals(1000, syncRoundTrips);
+        assertEquals(50, writeBehindCommands);
+        assertEquals(1, writeBehindRoundTrips);
+        assertEquals(0, flusher.size());
+    }
+
+    @Test
+    public void updateAfterFlusherDestroyIsWrittenImmediately() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        sessionDao.setWriteBehindFlusher(flusher);
+        ShiroSession session = new ShiroSession();
+        Serializable sessionId = sessionDao.create(session);
+        flusher.destroy();
+        session.setAttribute("key", "value");
+        sessionDao.update(session);
+        assertEquals(0, flusher.size());
+        Session stored = redisTemplate.boundValueOps("shiro-session:" + sessionId).get();
+        assertEquals("value", stored.getAttribute("key"));
+    }
+
+    @Test
+    public void deleteCancelsPendingWrite() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        sessionDao.setWriteBehindFlusher(flusher);
+        ShiroSession session = new ShiroSession();
+        Serializable sessionId = sessionDao.create(session);
+        session.setAttribute("key", "value");
+        sessionDao.update(session);
+        assertEquals(1, flusher.size());
+        sessionDao.delete(session);
+        flusher.flush();
+        assertNull(redisTemplate.boundValueOps("shiro-session:" + sessionId).get());
+    }
+
+    /**
+     * 已登录用户的频繁访问：每个请求touch一次，Session本身没有改变
+     */
+    @Test
+    public void touchesAreBatchedIntoExpires() {
+        List<ShiroSession> sessions = new ArrayList<>();
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionTouchBatcher touchBatcher = new SessionTouchBatcher(redisTemplate);
+        sessionDao.setTouchBatcher(touchBatcher);
+        for (int i = 0; i < 50; i++) {
+            ShiroSession session = new ShiroSession();
+            sessionDao.create(session);
+            // 创建后的第一次update会写回Redis
+            sessionDao.update(session);
+            sessions.add(session);
+        }
+        redis.resetCounters();
+        for (int i = 0; i < 20; i++) {
+            for (ShiroSession session : sessions) {
+                session.touch();
+                sessionDao.update(session);
+            }
+        }
+        assertEquals(0, redis.commandCount());
+        assertEquals(50, touchBatcher.size());
+
+        touchBatcher.flush();
+        assertEquals(50, redis.commandCount("pExpire"));
+        assertEquals(1, redis.roundTrips());
+        assertEquals(0, touchBatcher.size());
+
+        ShiroSession session = sessions.get(0);
+        long expireAt = redis.expireAt.get("shiro-session:" + session.getId());
+        assertEquals(session.getLastAccessTime().getTime() + TimeUnit.SECONDS.toMillis(1800), expireAt, 1000);
+    }
+
+    /**
+     * 节点A修改了已登录的Session而失效消息丢失：没有版本表时节点B一直使用旧的本地缓存
+     */
+    @Test
+    public void staleCachedSessionReloadedWhenVersionChanges() {
+        SessionVersionTable versionTable = new SessionVersionTable(redisTemplate);
+        ShiroCachingSessionDao nodeA = newSessionDao();
+        ShiroCachingSessionDao nodeB = newSessionDao();
+        ShiroCachingSessionDao unversioned = newSessionDao();
+        nodeA.setVersionTable(versionTable);
+        nodeB.setVersionTable(versionTable);
+
+        ShiroSession session = new ShiroSession();
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("Mark", "realm"));
+        session.setAttribute("counter", 0);
+        Serializable sessionId = nodeA.create(session);
+        assertEquals(1, session.getVersion());
+        assertEquals(0, nodeB.readSession(sessionId).getAttribute("counter"));
+        assertEquals(0, unversioned.readSession(sessionId).getAttribute("counter"));
+
+        redis.resetCounters();
+        assertEquals(0, nodeB.readSession(sessionId).getAttribute("counter"));
+        assertEquals(1, redis.commandCount());
+        assertEquals(1, redis.commandCount("hGet"));
+
+        session.setAttribute("counter", 1);
+        nodeA.update(session);
+        assertEquals(2, session.getVersion());
+        assertEquals(0, unversioned.readSession(sessionId).getAttribute("counter"));
+        assertEquals(1, nodeB.readSession(sessionId).getAttribute("counter"));
+
+        nodeA.delete(session);
+        try {
+            nodeB.readSession(sessionId);
+            fail();
+        } catch (UnknownSessionException expected) {
+            // 版本号被删除，重读时发现Session已不存在
+        }
+    }
+
+    @Test
+    public void versionCheckSkippedWithinInterval() {
+        SessionVersionTable versionTable = new SessionVersionTable(redisTemplate);
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        sessionDao.setVersionTable(versionTable);
+        sessionDao.setVersionCheckInterval(60_000);
+        Serializable sessionId = sessionDao.create(new ShiroSession());
+        redis.resetCounters();
+        for (int i = 0; i < REQUESTS; i++) {
+            sessionDao.readSession(sessionId);
+        }
+        assertEquals(0, redis.commandCount());
+    }
+
+    @Test
+    public void writeBehindIncrementsVersionAfterFlush() {
+        SessionVersionTable versionTable = new SessionVersionTable(redisTemplate);
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        flusher.setVersionTable(versionTable);
+        sessionDao.setVersionTable(versionTable);
+        sessionDao.setWriteBehindFlusher(flusher);
+        ShiroSession session = new ShiroSession();
+        Serializable sessionId = sessionDao.create(session);
+        String key = "shiro-session:" + sessionId;
+        session.setAttribute("key", "value");
+        sessionDao.update(session);
+        assertEquals(1, versionTable.getVersion(key));
+        flusher.flush();
+        assertEquals(2, versionTable.getVersion(key));
+        assertEquals(2, session.getVersion());
+    }
+
+    @Test
+    public void writeBehindStampsEachFlushedSessionWithItsVersion() {
+        SessionVersionTable versionTable = new SessionVersionTable(redisTemplate);
+        SessionExpiryIndex expiryIndex = new SessionExpiryIndex(redisTemplate);
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        flusher.setVersionTable(versionTable);
+        flusher.setExpiryIndex(expiryIndex);
+        sessionDao.setVersionTable(versionTable);
+        sessionDao.setExpiryIndex(expiryIndex);
+        sessionDao.setWriteBehindFlusher(flusher);
+        List<ShiroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ShiroSession session = new ShiroSession();
+            Serializable sessionId = sessionDao.create(session);
+            // 其他节点的写入使各Session的版本号不同
+            for (int j = 0; j < i; j++) {
+                versionTable.increment("shiro-session:" + sessionId);
+            }
+            session.setAttribute("key", "value");
+            sessionDao.update(session);
+            sessions.add(session);
+        }
+        flusher.flush();
+        for (int i = 0; i < sessions.size(); i++) {
+            ShiroSession session = sessions.get(i);
+            assertEquals(i + 2, session.getVersion());
+            assertEquals(versionTable.getVersion("shiro-session:" + session.getId()), session.getVersion());
+        }
+    }
+
+    private RedisCircuitBreaker newCircuitBreaker() {
+        RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker();
+        circuitBreaker.setLatencyBudgetMillis(50);
+        circuitBreaker.setFailureThreshold(2);
+        circuitBreaker.setOpenMillis(100);
+        circuitBreaker.setHealthCheck(() -> redisTemplate.execute((RedisCallback<String>) RedisConnection::ping));
+        circuitBreaker.init();
+        return circuitBreaker;
+    }
+
+    @Test
+    public void redisOutageServesLocalCopyAndReplaysWrites() throws InterruptedException {
+        RedisCircuitBreaker circuitBreaker = newCircuitBreaker();
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        sessionDao.setCircuitBreaker(circuitBreaker);
+        ShiroSession session = new ShiroSession();
+        session.setTimeout(1_800_000);
+        Serializable sessionId = sessionDao.create(session);
+
+        redis.setDown(true);
+        for (int i = 0; i < 10; i++) {
+            // 未登录Session每次都会重读Redis，失败后使用本地缓存而不是抛出UnknownSessionException
+            assertSame(session, sessionDao.readSession(sessionId));
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        session.setAttribute("k", "v");
+        sessionDao.update(session);
+        assertEquals(1, sessionDao.getDegradedWriteCount());
+        try {
+            sessionDao.readSession("missing");
+            fail();
+        } catch (UnknownSessionException e) {
+            fail("user would be logged out");
+        } catch (SessionException expected) {
+            // 没有本地缓存时快速失败
+        }
+
+        redis.setDown(false);
+        // 读取只命中暂存的写入，由后台探测发现恢复并重放
+        assertSame(session, sessionDao.readSession(sessionId));
+        for (int i = 0; i < 300 && sessionDao.getDegradedWriteCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, sessionDao.getDegradedWriteCount());
+        assertEquals("v", newSessionDao().readSession(sessionId).getAttribute("k"));
+        circuitBreaker.destroy();
+    }
+
+    @Test
+    public void slowRedisReadFailsWithinLatencyBudget() {
+        RedisCircuitBreaker circuitBreaker = newCircuitBreaker();
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        sessionDao.setCircuitBreaker(circuitBreaker);
+        ShiroSession session = new ShiroSession();
+        session.setTimeout(1_800_000);
+        Serializable sessionId = sessionDao.create(session);
+
+        redis.setLatencyMillis(2000);
+        for (int i = 0; i < 10; i++) {
+            assertSame(session, sessionDao.readSession(sessionId));
+        }
+        // 两次超时后熔断，其余读取不再访问Redis
+        assertEquals(8, circuitBreaker.getRejectedCount());
+        redis.setLatencyMillis(0);
+        circuitBreaker.destroy();
+    }
+
+    @Test
+    public void activeSessionInLocalStoreOutlivesTimeoutWithoutWrites() throws InterruptedException {
+        HeapSessionStore store = new HeapSessionStore();
+        store.setSessionTimeout(1);
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(store);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        ShiroSession session = new ShiroSession();
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("Mark", "realm"));
+        Serializable sessionId = sessionDao.create(session);
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(250);
+            ShiroSession current = (ShiroSession) sessionDao.readSession(sessionId);
+            current.touch();
+            sessionDao.update(current);
+        }
+        // 本地缓存失效后仍能从存储中读到
+        sessionDao.deleteCache(sessionId);
+        assertNotNull(sessionDao.readSession(sessionId));
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import org.apache.shiro.session.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShiroSessionHashRepositoryTest {
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private ShiroSessionHashRepository repository;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(serializer);
+        redisTemplate.afterPropertiesSet();
+        repository = new ShiroSessionHashRepository(redisTemplate, serializer.getCodec());
+    }
+
+    private static ShiroSession largeSession() {
+        ShiroSession session = new ShiroSession("127.0.0.1");
+        session.setId("hash-session");
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            value.append('v');
+        }
+        for (int i = 0; i < 50; i++) {
+            session.setAttribute("attribute" + i, value.toString());
+        }
+        return session;
+    }
+
+    @Test
+    public void onlyChangedFieldsAreWritten() {
+        ShiroSession session = largeSession();
+        repository.saveSession(session);
+
+        redis.resetCounters();
+        redisTemplate.opsForValue().set("shiro-session:value", session, 1800, TimeUnit.SECONDS);
+        long fullWrite = redis.bytesWritten();
+
+        redis.resetCounters();
+        session.setAttribute("attribute7", "changed");
+        session.removeAttribute("attribute8");
+        repository.updateSession(session);
+        long deltaWrite = redis.bytesWritten();
+
+        assertTrue(deltaWrite * 50 < fullWrite);
+        assertEquals(1, redis.roundTrips());
+
+        ShiroSession loaded = repository.getAndRefreshSession("hash-session");
+        assertEquals("changed", loaded.getAttribute("attribute7"));
+        assertNull(loaded.getAttribute("attribute8"));
+        assertEquals(49, loaded.getAttributeKeys().size());
+        assertEquals(session.getLastAccessTime(), loaded.getLastAccessTime());
+        assertTrue(loaded.drainDelta().isEmpty());
+    }
+
+    @Test
+    public void metaChangesRewriteOnlyMetaField() {
+        ShiroSession session = largeSession();
+        repository.saveSession(session);
+        redis.resetCounters();
+        session.setTimeout(60_000);
+        repository.updateSession(session);
+        assertTrue(redis.bytesWritten() < 64);
+        assertEquals(60_000, repository.getSession("hash-session").getTimeout());
+    }
+
+    @Test
+    public void attributeOnlyUpdateWritesLastAccessTime() {
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        sessionDao.setHashRepository(repository);
+        ShiroSession session = largeSession();
+        session.setLastAccessTime(new Date(0));
+        Serializable sessionId = sessionDao.create(session);
+        assertEquals(new Date(0), repository.getSession(sessionId).getLastAccessTime());
+
+        session.setAttribute("attribute7", "changed");
+        sessionDao.update(session);
+        ShiroSession loaded = repository.getSession(sessionId);
+        assertEquals("changed", loaded.getAttribute("attribute7"));
+        assertNotEquals(new Date(0), loaded.getLastAccessTime());
+        assertEquals(session.getLastAccessTime(), loaded.getLastAccessTime());
+    }
+
+    @Test
+    public void deletedSessionIsGone() {
+        ShiroSession session = largeSession();
+        repository.saveSession(session);
+        repository.deleteSession("hash-session");
+        assertNull(repository.getAndRefreshSession("hash-session"));
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.joizhang.imooc.session;
+
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+
+import static org.junit.Assert.*;
+
+public class ShiroSessionServiceTest {
+
+    private static final int SESSIONS = 2000;
+
+    private InMemoryRedisConnectionFactory redis;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    private SessionExpiryIndex expiryIndex;
+
+    private SessionVersionTable versionTable;
+
+    private SessionUserIndex userIndex;
+
+    private ShiroCachingSessionDao sessionDao;
+
+    private ShiroSessionService sessionService;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedisConnectionFactory().withSessionScripts();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redis);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+        expiryIndex = new SessionExpiryIndex(redisTemplate);
+        versionTable = new SessionVersionTable(redisTemplate);
+        userIndex = new SessionUserIndex(redisTemplate);
+        sessionDao = newSessionDao();
+        SessionInvalidationBus bus = new SessionInvalidationBus(redisTemplate, sessionDao);
+        bus.setNodeId("a");
+        sessionService = new ShiroSessionService();
+        sessionService.setSessionDao(sessionDao);
+        sessionService.setInvalidationBus(bus);
+        sessionService.setSessionScanner(new SessionScanner(redisTemplate));
+        sessionService.setExpiryIndex(expiryIndex);
+        sessionService.setVersionTable(versionTable);
+        sessionService.setUserIndex(userIndex);
+    }
+
+    private ShiroCachingSessionDao newSessionDao() {
+        ShiroCachingSessionDao dao = new ShiroCachingSessionDao(redisTemplate);
+        dao.setCacheManager(new SessionCacheManager());
+        dao.setExpiryIndex(expiryIndex);
+        dao.setVersionTable(versionTable);
+        dao.setUserIndex(userIndex);
+        return dao;
+    }
+
+    @Test
+    public void purgeAllRemovesEverythingWithOneBroadcast() {
+        ShiroCachingSessionDao nodeB = newSessionDao();
+        for (int i = 0; i < SESSIONS; i++) {
+            ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+            sessionDao.create(session);
+            session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                    new SimplePrincipalCollection("user" + i % 100, "realm"));
+            sessionDao.update(session);
+            nodeB.readSession(session.getId());
+        }
+        assertEquals(SESSIONS, nodeB.getEhCacheActiveSessions().size());
+        int keys = redis.keyCount();
+
+        redis.resetCounters();
+        long removed = sessionService.purgeAll();
+
+        assertEquals(keys, removed);
+        assertEquals(0, redis.keyCount());
+        // 每页一次SCAN和一个DEL的pipeline，外加一条广播
+        assertTrue(redis.roundTrips() < 20);
+        assertEquals(1, redis.commandCount("publish"));
+        assertTrue(sessionDao.getEhCacheActiveSessions().isEmpty());
+
+        byte[][] message = redis.published.get(0);
+        SessionInvalidationBus busB = new SessionInvalidationBus(redisTemplate, nodeB);
+        busB.setNodeId("b");
+        busB.onMessage(new DefaultMessage(message[0], message[1]), null);
+        assertTrue(nodeB.getEhCacheActiveSessions().isEmpty());
+    }
+
+    @Test
+    public void purgeAllThroughNativeLettuceScan() {
+        redis.withLettuceNativeConnection();
+        for (int i = 0; i < SESSIONS; i++) {
+            sessionDao.create(new ShiroSessionFactory().createSession(null));
+        }
+        int keys = redis.keyCount();
+        redis.resetCounters();
+        assertEquals(keys, sessionService.purgeAll());
+        assertEquals(0, redis.keyCount());
+        assertEquals(0, redis.commandCount("execute"));
+    }
+
+    @Test
+    public void mutateAppliesChangesWithOneReadOneWriteAndOneBroadcast() {
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        sessionDao.create(session);
+        Serializable id = session.getId();
+
+        // 原来的做法：每个修改各自读取、写回并广播
+        redis.resetCounters();
+        for (int i = 0; i < 3; i++) {
+            ShiroSession current = (ShiroSession) sessionDao.doReadSessionWithoutExpire(id);
+            current.setAttribute("single" + i, i);
+            sessionDao.update(current);
+            sessionService.sendUnCacheSessionMessage(id);
+        }
+        long singleRoundTrips = redis.roundTrips();
+        long versionBefore = versionTable.getVersion("shiro-session:" + id);
+
+        redis.resetCounters();
+        sessionService.mutate(id, s -> {
+            s.setAttribute("a", 1);
+            s.setAttribute("b", 2);
+            s.removeAttribute("single0");
+        });
+        long batchRoundTrips = redis.roundTrips();
+
+        // 一次GET、一个写入pipeline、一条广播
+        assertEquals(3, batchRoundTrips);
+        assertEquals(1, redis.commandCount("publish"));
+        assertTrue(batchRoundTrips < singleRoundTrips);
+        assertEquals(versionBefore + 1, versionTable.getVersion("shiro-session:" + id));
+
+        Session stored = redisTemplate.opsForValue().get("shiro-session:" + id);
+        assertEquals(1, stored.getAttribute("a"));
+        assertEquals(2, stored.getAttribute("b"));
+        assertNull(stored.getAttribute("single0"));
+        assertEquals(2, stored.getAttribute("single2"));
+        assertEquals(1, expiryIndex.countActive());
+    }
+
+}
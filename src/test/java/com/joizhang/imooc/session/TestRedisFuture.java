@@ -0,0 +1,33 @@
+package com.joizhang.imooc.session;
+
+import com.lambdaworks.redis.RedisFuture;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的Lettuce异步应答
+ */
+final class TestRedisFuture<V> extends CompletableFuture<V> implements RedisFuture<V> {
+
+    static <V> TestRedisFuture<V> completed(V value) {
+        TestRedisFuture<V> future = new TestRedisFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    @Override
+    public String getError() {
+        return null;
+    }
+
+    @Override
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            get(timeout, unit);
+            return true;
+        } catch (Exception e) {
+            return isDone();
+        }
+    }
+}
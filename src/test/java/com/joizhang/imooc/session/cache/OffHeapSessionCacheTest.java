@@ -0,0 +1,169 @@
+package com.joizhang.imooc.session.cache;
+
+import com.joizhang.imooc.session.ShiroSession;
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import com.joizhang.imooc.session.codec.AttributeValueEncoder;
+import com.joizhang.imooc.session.codec.CodecInput;
+import com.joizhang.imooc.session.codec.CodecOutput;
+import com.joizhang.imooc.session.codec.ShiroSessionRedisSerializer;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class OffHeapSessionCacheTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private static OffHeapSessionCache newCache(long maximumBytes) {
+        return new OffHeapSessionCache(maximumBytes, PAGE_SIZE, 60_000, new ShiroSessionRedisSerializer());
+    }
+
+    private static ShiroSession newSession(String id, int payload) {
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        session.setId(id);
+        session.setTimeout(60_000);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < payload; i++) {
+            value.append('x');
+        }
+        session.setAttribute("payload", value.toString());
+        return session;
+    }
+
+    @Test
+    public void roundTripRestoresLocalState() {
+        OffHeapSessionCache cache = newCache(PAGE_SIZE);
+        ShiroSession session = newSession("s1", 100);
+        session.restoreLocalState(1234, 7);
+        cache.put("s1", session);
+
+        long lastAccessTime = System.currentTimeMillis() + 1000;
+        cache.touch("s1", lastAccessTime);
+        cache.markSynced("s1", 5678);
+        ShiroSession cached = (ShiroSession) cache.get("s1");
+        assertNotNull(cached);
+        assertNotSame(session, cached);
+        assertEquals(session.getAttribute("payload"), cached.getAttribute("payload"));
+        assertEquals(7, cached.getVersion());
+        assertEquals(5678, cached.getSyncTimestamp());
+        assertEquals(lastAccessTime, cached.getLastAccessTime().getTime());
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void evictsWithinBudget() {
+        // 两页：每页最多16个4KB的chunk
+        OffHeapSessionCache cache = newCache(2 * PAGE_SIZE);
+        for (int i = 0; i < 100; i++) {
+            cache.put("s" + i, newSession("s" + i, 3000));
+        }
+        assertEquals(2 * PAGE_SIZE, cache.allocatedBytes());
+        assertTrue(cache.size() <= 32);
+        assertEquals(100 - cache.size(), cache.stats().evictionCount());
+        assertNotNull(cache.get("s99"));
+    }
+
+    @Test
+    public void replaceAndRemoveReuseChunks() {
+        OffHeapSessionCache cache = newCache(PAGE_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("s1", newSession("s1", i % 200));
+            cache.put("s2", newSession("s2", i % 200));
+            cache.remove("s2");
+        }
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.stats().evictionCount());
+        assertNull(cache.get("s2"));
+        assertNotNull(cache.get("s1"));
+    }
+
+    @Test
+    public void expiresWithRemainingSessionTimeout() {
+        OffHeapSessionCache cache = newCache(PAGE_SIZE);
+        Session session = newSession("expired", 10);
+        session.setTimeout(1000);
+        ((ShiroSession) session).setLastAccessTime(new Date(System.currentTimeMillis() - 2000));
+        cache.put("expired", session);
+        assertNull(cache.get("expired"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void oversizedSessionIsNotCached() {
+        OffHeapSessionCache cache = newCache(PAGE_SIZE);
+        cache.put("large", newSession("large", 10));
+        cache.put("large", newSession("large", 2 * PAGE_SIZE));
+        assertNull(cache.get("large"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void managerUsesConfiguredSerializer() {
+        ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer();
+        serializer.getCodec().registerEncoder(new AttributeValueEncoder<Label>() {
+            @Override
+            public int tag() {
+                return 32;
+            }
+
+            @Override
+            public Class<Label> type() {
+                return Label.class;
+            }
+
+            @Override
+            public void encode(Label value, CodecOutput out) {
+                out.writeString(value.name);
+            }
+
+            @Override
+            public Label decode(CodecInput in) {
+                return new Label(in.readString());
+            }
+        });
+        SessionCacheManager cacheManager = new SessionCacheManager();
+        cacheManager.setOffHeap(true);
+        cacheManager.setMaximumWeight(PAGE_SIZE);
+        cacheManager.setOffHeapPageSize(PAGE_SIZE);
+        cacheManager.setSerializer(serializer);
+        Cache<Serializable, Session> cache = cacheManager.getCache("sessions");
+        ShiroSession session = newSession("s1", 10);
+        session.setAttribute("label", new Label("admin"));
+        cache.put("s1", session);
+        assertEquals("admin", ((Label) cache.get("s1").getAttribute("label")).name);
+        cacheManager.destroy();
+    }
+
+    /**
+     * 不可JDK序列化，只能由注册的编码器编码
+     */
+    private static final class Label {
+
+        final String name;
+
+        Label(String name) {
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void sessionsAreStoredInDirectPages() {
+        int sessions = 20_000;
+        OffHeapSessionCache offHeap = newCache(64L * 1024 * 1024);
+        for (int i = 0; i < sessions; i++) {
+            offHeap.put("s" + i, newSession("s" + i, 500));
+        }
+        assertEquals(sessions, offHeap.size());
+        assertTrue(offHeap.allocatedBytes() >= sessions * 500L);
+        assertTrue(offHeap.allocatedBytes() <= 64L * 1024 * 1024);
+        assertEquals(500, ((String) offHeap.get("s" + (sessions - 1)).getAttribute("payload")).length());
+        offHeap.clear();
+        assertEquals(0, offHeap.size());
+    }
+
+}
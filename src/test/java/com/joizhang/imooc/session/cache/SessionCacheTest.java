@@ -0,0 +1,90 @@
+package com.joizhang.imooc.session.cache;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SessionCacheTest {
+
+    private static Session newSession(String id) {
+        SimpleSession session = new SimpleSession();
+        session.setId(id);
+        session.setTimeout(60_000);
+        return session;
+    }
+
+    @Test
+    public void boundedByEntryCount() {
+        SessionCache cache = new SessionCache(100, Long.MAX_VALUE / 2, 60_000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("s" + i, newSession("s" + i));
+        }
+        cache.cleanUp();
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.stats().evictionCount() >= 900);
+    }
+
+    @Test
+    public void boundedByWeight() {
+        SessionCache cache = new SessionCache(100_000, 64 * 1024, 60_000);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            large.append('x');
+        }
+        for (int i = 0; i < 100; i++) {
+            Session session = newSession("s" + i);
+            session.setAttribute("payload", large.toString());
+            cache.put("s" + i, session);
+        }
+        cache.cleanUp();
+        // 每个Session约8KB，64KB最多容纳8个
+        assertTrue(cache.size() <= 8);
+    }
+
+    @Test
+    public void expiresWithRemainingSessionTimeout() {
+        SessionCache cache = new SessionCache(100, 1024 * 1024, 60_000);
+        Session session = newSession("expired");
+        session.setTimeout(1000);
+        ((SimpleSession) session).setLastAccessTime(new Date(System.currentTimeMillis() - 2000));
+        cache.put("expired", session);
+        cache.put("alive", newSession("alive"));
+        assertNull(cache.get("expired"));
+        assertNotNull(cache.get("alive"));
+    }
+
+    @Test
+    public void touchedSessionOutlivesItsInitialExpiry() {
+        AtomicLong nanos = new AtomicLong();
+        SessionCache cache = new SessionCache(100, 1024 * 1024, 600_000, nanos::get);
+        SimpleSession active = (SimpleSession) newSession("active");
+        cache.put("active", active);
+        cache.put("idle", newSession("idle"));
+        for (int i = 0; i < 3; i++) {
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(40));
+            // 与ShiroCachingSessionDao.touch一样只更新缓存中Session的访问时间
+            active.setLastAccessTime(new Date());
+            assertNotNull(cache.get("active"));
+        }
+        // 已超过放入时计算的60秒
+        assertNotNull(cache.get("active"));
+        assertNull(cache.get("idle"));
+    }
+
+    @Test
+    public void recordsHitsAndMisses() {
+        SessionCache cache = new SessionCache(100, 1024 * 1024, 60_000);
+        cache.put("s1", newSession("s1"));
+        cache.get("s1");
+        cache.get("s2");
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.joizhang.imooc.session.codec;
+
+import com.joizhang.imooc.session.ShiroSession;
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SessionPayloadCompressorTest {
+
+    private static final int ITERATIONS = 100;
+
+    private static ShiroSession largeSession() {
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        session.setId(UUID.randomUUID().toString());
+        List<String> recentSearches = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            recentSearches.add("category=books&page=" + i + "&sort=price");
+        }
+        session.setAttribute("recentSearches", recentSearches);
+        session.setAttribute("cart", "{\"items\":[" + String.join(",", recentSearches) + "]}");
+        return session;
+    }
+
+    private static ShiroSessionRedisSerializer serializer(int threshold) {
+        ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer();
+        serializer.setCompressThreshold(threshold);
+        return serializer;
+    }
+
+    @Test
+    public void compressesOnlyAboveThreshold() {
+        ShiroSessionRedisSerializer serializer = serializer(1024);
+        ShiroSession small = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        small.setId("small");
+        assertTrue(ShiroSessionCodec.isEncoded(serializer.serialize(small)));
+
+        ShiroSession large = largeSession();
+        byte[] bytes = serializer.serialize(large);
+        assertTrue(SessionPayloadCompressor.isCompressed(bytes));
+        ShiroSession decoded = (ShiroSession) serializer.deserialize(bytes);
+        assertEquals(large.getAttributes(), decoded.getAttributes());
+        assertEquals(1, serializer.getCompressor().stats().getCompressedCount());
+    }
+
+    @Test
+    public void oldAndNewPayloadsCoexist() {
+        ShiroSessionRedisSerializer plain = serializer(0);
+        ShiroSessionRedisSerializer compressing = serializer(1024);
+        ShiroSession session = largeSession();
+
+        byte[] old = plain.serialize(session);
+        assertFalse(SessionPayloadCompressor.isCompressed(old));
+        assertEquals(session.getAttributes(), ((ShiroSession) compressing.deserialize(old)).getAttributes());
+
+        byte[] compressed = compressing.serialize(session);
+        assertEquals(session.getAttributes(), ((ShiroSession) plain.deserialize(compressed)).getAttributes());
+
+        // JDK序列化的其他对象同样适用
+        String text = String.join("", Collections.nCopies(500, "abc"));
+        assertEquals(text, plain.deserialize(compressing.serialize(text)));
+    }
+
+    @Test
+    public void incompressibleDataIsStoredAsIs() {
+        SessionPayloadCompressor compressor = new SessionPayloadCompressor();
+        compressor.setThreshold(16);
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertSame(random, compressor.compress(random));
+        assertEquals(1, compressor.stats().getSkippedCount());
+    }
+
+    @Test(expected = SerializationException.class)
+    public void corruptPayloadFails() {
+        ShiroSessionRedisSerializer serializer = serializer(1024);
+        byte[] bytes = serializer.serialize(largeSession());
+        serializer.deserialize(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    /**
+     * 压缩统计按次数和字节累计
+     */
+    @Test
+    public void statsCountRoundTrips() {
+        ShiroSessionRedisSerializer plain = serializer(0);
+        ShiroSessionRedisSerializer compressing = serializer(1024);
+        ShiroSession session = largeSession();
+        byte[] plainBytes = plain.serialize(session);
+        for (int i = 0; i < ITERATIONS; i++) {
+            compressing.deserialize(compressing.serialize(session));
+        }
+        CompressionStats stats = compressing.getCompressor().stats();
+        assertTrue(compressing.serialize(session).length < plainBytes.length);
+        assertEquals(ITERATIONS, stats.getCompressedCount());
+        assertEquals(ITERATIONS, stats.getDecompressedCount());
+        assertTrue(stats.compressionRatio() < 0.3);
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.joizhang.imooc.session.codec;
+
+import com.joizhang.imooc.session.ShiroSession;
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+
+import java.awt.Point;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShiroSessionCodecTest {
+
+    private final ShiroSessionRedisSerializer serializer = new ShiroSessionRedisSerializer();
+
+    private final JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+
+    private static ShiroSession loggedInSession() {
+        ShiroSession session = (ShiroSession) new ShiroSessionFactory().createSession(null);
+        session.setId(UUID.randomUUID().toString());
+        session.setHost("192.168.1.10");
+        session.setTimeout(1_800_000);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                new SimplePrincipalCollection("Mark", "com.joizhang.imooc.realm.ShiroRealm_0"));
+        session.setAttribute(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        session.setAttribute("loginTime", new Date());
+        session.setAttribute("visits", 42);
+        return session;
+    }
+
+    @Test
+    public void roundTrip() {
+        ShiroSession session = loggedInSession();
+        session.stop();
+        ShiroSession decoded = (ShiroSession) serializer.deserialize(serializer.serialize(session));
+        assertEquals(session.getId(), decoded.getId());
+        assertEquals(session.getHost(), decoded.getHost());
+        assertEquals(session.getTimeout(), decoded.getTimeout());
+        assertEquals(session.getStartTimestamp(), decoded.getStartTimestamp());
+        assertEquals(session.getLastAccessTime(), decoded.getLastAccessTime());
+        assertEquals(session.getStopTimestamp(), decoded.getStopTimestamp());
+        assertEquals(session.getAttributes(), decoded.getAttributes());
+        assertFalse(decoded.isChanged());
+    }
+
+    @Test
+    public void emptyPrincipalsAndMissingTimestamps() {
+        ShiroSession session = loggedInSession();
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection());
+        session.setStartTimestamp(null);
+        session.setLastAccessTime(null);
+        ShiroSession decoded = (ShiroSession) serializer.deserialize(serializer.serialize(session));
+        assertNull(decoded.getStartTimestamp());
+        assertNull(decoded.getLastAccessTime());
+        assertTrue(((SimplePrincipalCollection) decoded
+                .getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY)).isEmpty());
+    }
+
+    @Test
+    public void unknownTypesFallBackToJdk() {
+        ShiroSession session = loggedInSession();
+        session.setAttribute(new Point(1, 2), new Point(3, 4));
+        ShiroSession decoded = (ShiroSession) serializer.deserialize(serializer.serialize(session));
+        assertEquals(new Point(3, 4), decoded.getAttribute(new Point(1, 2)));
+    }
+
+    @Test
+    public void readsLegacyJdkPayloads() {
+        ShiroSession session = loggedInSession();
+        ShiroSession decoded = (ShiroSession) serializer.deserialize(jdkSerializer.serialize(session));
+        assertEquals(session.getId(), decoded.getId());
+        assertEquals("Mark", ((SimplePrincipalCollection) decoded
+                .getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY)).getPrimaryPrincipal());
+    }
+
+    @Test
+    public void customEncoder() {
+        ShiroSessionRedisSerializer custom = new ShiroSessionRedisSerializer();
+        custom.getCodec().registerEncoder(new AttributeValueEncoder<Point>() {
+            @Override
+            public int tag() {
+                return 32;
+            }
+
+            @Override
+            public Class<Point> type() {
+                return Point.class;
+            }
+
+            @Override
+            public void encode(Point value, CodecOutput out) {
+                out.writeSignedVarLong(value.x);
+                out.writeSignedVarLong(value.y);
+            }
+
+            @Override
+            public Point decode(CodecInput in) {
+                return new Point((int) in.readSignedVarLong(), (int) in.readSignedVarLong());
+            }
+        });
+        ShiroSession session = loggedInSession();
+        session.setAttribute("point", new Point(3, 4));
+        byte[] withEncoder = custom.serialize(session);
+        assertTrue(withEncoder.length < serializer.serialize(session).length);
+        assertEquals(new Point(3, 4), ((ShiroSession) custom.deserialize(withEncoder)).getAttribute("point"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void customEncoderCannotUseBuiltinTag() {
+        serializer.getCodec().registerEncoder(new AttributeValueEncoder<Point>() {
+            @Override
+            public int tag() {
+                return 1;
+            }
+
+            @Override
+            public Class<Point> type() {
+                return Point.class;
+            }
+
+            @Override
+            public void encode(Point value, CodecOutput out) {
+            }
+
+            @Override
+            public Point decode(CodecInput in) {
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void attributesAreDecodedOnFirstAccess() {
+        AtomicInteger decodes = new AtomicInteger();
+        ShiroSessionRedisSerializer custom = new ShiroSessionRedisSerializer();
+        custom.getCodec().registerEncoder(new CountingPointEncoder(decodes));
+        ShiroSession session = loggedInSession();
+        session.setAttribute("a", new Point(1, 2));
+        session.setAttribute("b", new Point(3, 4));
+
+        ShiroSession decoded = (ShiroSession) custom.deserialize(custom.serialize(session));
+        assertEquals(0, decodes.get());
+        assertTrue(decoded.getRawAttributes().get("a") instanceof EncodedValue);
+        assertTrue(decoded.getAttributeKeys().contains("b"));
+        assertEquals(0, decodes.get());
+
+        assertEquals(new Point(1, 2), decoded.getAttribute("a"));
+        assertEquals(new Point(1, 2), decoded.getAttribute("a"));
+        assertEquals(1, decodes.get());
+        assertTrue(decoded.getRawAttributes().get("b") instanceof EncodedValue);
+    }
+
+    @Test
+    public void untouchedAttributesAreWrittenBackAsIs() {
+        AtomicInteger decodes = new AtomicInteger();
+        ShiroSessionRedisSerializer custom = new ShiroSessionRedisSerializer();
+        custom.getCodec().registerEncoder(new CountingPointEncoder(decodes));
+        ShiroSession session = loggedInSession();
+        session.setAttribute("point", new Point(1, 2));
+        byte[] bytes = custom.serialize(session);
+
+        ShiroSession decoded = (ShiroSession) custom.deserialize(bytes);
+        decoded.setAttribute("visits", 43);
+        ShiroSession again = (ShiroSession) custom.deserialize(custom.serialize(decoded));
+        assertEquals(0, decodes.get());
+        assertEquals(43, again.getAttribute("visits"));
+        assertEquals(new Point(1, 2), again.getAttribute("point"));
+        // 属性顺序取决于HashMap，只比较长度
+        assertEquals(bytes.length, custom.serialize((ShiroSession) custom.deserialize(bytes)).length);
+    }
+
+    @Test
+    public void readsVersionOnePayloads() {
+        ShiroSessionCodec codec = serializer.getCodec();
+        ShiroSession session = loggedInSession();
+        CodecOutput out = new CodecOutput(codec, 256);
+        byte[] meta = codec.encodeMeta(session);
+        meta[1] = 1;
+        out.writeBytes(meta);
+        out.writeVarInt(session.getAttributes().size());
+        session.getAttributes().forEach((key, value) -> {
+            out.writeBytes(codec.encodeAttributeKey(key));
+            out.writeBytes(codec.encodeValue(value));
+        });
+        ShiroSession decoded = codec.decode(out.toByteArray());
+        assertEquals(session.getId(), decoded.getId());
+        assertEquals(session.getAttributes(), decoded.getAttributes());
+        assertFalse(decoded.getRawAttributes().get("visits") instanceof EncodedValue);
+    }
+
+    /**
+     * 编码后不到JdkSerializationRedisSerializer的三分之一
+     */
+    @Test
+    public void smallerThanJdkSerialization() {
+        ShiroSession session = loggedInSession();
+        assertTrue(serializer.serialize(session).length * 3 < jdkSerializer.serialize(session).length);
+    }
+
+    private static class CountingPointEncoder implements AttributeValueEncoder<Point> {
+
+        private final AtomicInteger decodes;
+
+        CountingPointEncoder(AtomicInteger decodes) {
+            this.decodes = decodes;
+        }
+
+        @Override
+        public int tag() {
+            return 32;
+        }
+
+        @Override
+        public Class<Point> type() {
+            return Point.class;
+        }
+
+        @Override
+        public void encode(Point value, CodecOutput out) {
+            out.writeSignedVarLong(value.x);
+            out.writeSignedVarLong(value.y);
+        }
+
+        @Override
+        public Point decode(CodecInput in) {
+            decodes.incrementAndGet();
+            return new Point((int) in.readSignedVarLong(), (int) in.readSignedVarLong());
+        }
+    }
+
+}
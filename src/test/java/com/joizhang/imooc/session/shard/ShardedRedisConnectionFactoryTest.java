@@ -0,0 +1,222 @@
+package com.joizhang.imooc.session.shard;
+
+import com.joizhang.imooc.session.InMemoryRedisConnectionFactory;
+import com.joizhang.imooc.session.SessionWriteBehindFlusher;
+import com.joizhang.imooc.session.ShiroCachingSessionDao;
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import com.joizhang.imooc.session.cache.SessionCacheManager;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedRedisConnectionFactoryTest {
+
+    private static final int SESSIONS = 3000;
+
+    private final Map<String, InMemoryRedisConnectionFactory> shards = new LinkedHashMap<>();
+
+    private ShardedRedisConnectionFactory factory;
+
+    private RedisTemplate<String, Session> redisTemplate;
+
+    @Before
+    public void setUp() {
+        for (String name : new String[]{"a", "b", "c"}) {
+            shards.put(name, new InMemoryRedisConnectionFactory().withSessionScripts());
+        }
+        factory = new ShardedRedisConnectionFactory();
+        factory.setShards(shards);
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(factory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+    }
+
+    private ShiroCachingSessionDao newSessionDao() {
+        ShiroCachingSessionDao sessionDao = new ShiroCachingSessionDao(redisTemplate);
+        sessionDao.setCacheManager(new SessionCacheManager());
+        return sessionDao;
+    }
+
+    private List<Serializable> createSessions(ShiroCachingSessionDao sessionDao) {
+        List<Serializable> ids = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            ids.add(sessionDao.create(new ShiroSessionFactory().createSession(null)));
+        }
+        return ids;
+    }
+
+    private int readable(ShiroCachingSessionDao sessionDao, List<Serializable> ids) {
+        int found = 0;
+        for (Serializable id : ids) {
+            if (sessionDao.doReadSessionWithoutExpire(id) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void spreadsSessionsAcrossShards() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        List<Serializable> ids = createSessions(sessionDao);
+        int total = 0;
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            int keys = shard.keyCount();
+            assertTrue(Math.abs(keys - SESSIONS / 3) < SESSIONS / 3 / 5);
+            total += keys;
+        }
+        assertEquals(SESSIONS, total);
+        assertEquals(SESSIONS, readable(sessionDao, ids));
+        for (Serializable id : ids) {
+            sessionDao.deleteCache(id);
+            assertNotNull(sessionDao.readSession(id));
+        }
+    }
+
+    @Test
+    public void lazyRebalanceKeepsSessions() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        List<Serializable> ids = createSessions(sessionDao);
+        shards.put("d", new InMemoryRedisConnectionFactory().withSessionScripts());
+        factory.setShards(shards);
+
+        assertEquals(SESSIONS, readable(sessionDao, ids));
+        int moved = shards.get("d").keyCount();
+        assertTrue(Math.abs(moved - SESSIONS / 4) < SESSIONS / 4 / 4);
+        int total = 0;
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            total += shard.keyCount();
+        }
+        assertEquals(SESSIONS, total);
+    }
+
+    @Test
+    public void previousShardsSeedLazyRebalanceAfterRestart() {
+        List<Serializable> ids = createSessions(newSessionDao());
+        Map<String, InMemoryRedisConnectionFactory> previousShards = new LinkedHashMap<>(shards);
+        shards.put("d", new InMemoryRedisConnectionFactory().withSessionScripts());
+        // 重启后的新进程：没有上一个hash环，只能从配置中得到改变前的分片
+        factory = new ShardedRedisConnectionFactory();
+        factory.setPreviousShards(previousShards);
+        factory.setShards(shards);
+        redisTemplate.setConnectionFactory(factory);
+
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        assertEquals(SESSIONS, readable(sessionDao, ids));
+        assertTrue(shards.get("d").keyCount() > 0);
+        int total = 0;
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            total += shard.keyCount();
+        }
+        assertEquals(SESSIONS, total);
+    }
+
+    @Test
+    public void movedKeysAreCheckedOnlyOnce() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        List<Serializable> ids = createSessions(sessionDao);
+        List<Serializable> missing = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            missing.add("missing-" + i);
+        }
+        shards.put("d", new InMemoryRedisConnectionFactory().withSessionScripts());
+        factory.setShards(shards);
+        assertEquals(SESSIONS, readable(sessionDao, ids));
+        assertEquals(0, readable(sessionDao, missing));
+
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            shard.resetCounters();
+        }
+        assertEquals(SESSIONS, readable(sessionDao, ids));
+        assertEquals(0, readable(sessionDao, missing));
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            assertEquals(0, shard.commandCount("dump"));
+        }
+    }
+
+    @Test
+    public void rebalanceWithoutMigrationLosesMovedSessions() {
+        factory.setRebalanceMode(RebalanceMode.NONE);
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        List<Serializable> ids = createSessions(sessionDao);
+        shards.put("d", new InMemoryRedisConnectionFactory().withSessionScripts());
+        factory.setShards(shards);
+        int lost = SESSIONS - readable(sessionDao, ids);
+        assertTrue(Math.abs(lost - SESSIONS / 4) < SESSIONS / 4 / 4);
+    }
+
+    @Test
+    public void pipelinesSpanShards() {
+        ShiroCachingSessionDao sessionDao = newSessionDao();
+        SessionWriteBehindFlusher flusher = new SessionWriteBehindFlusher(redisTemplate);
+        sessionDao.setWriteBehindFlusher(flusher);
+        List<Serializable> ids = createSessions(sessionDao);
+        for (Serializable id : ids) {
+            Session session = sessionDao.readSession(id);
+            session.setAttribute("key", "value");
+            sessionDao.update(session);
+        }
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            shard.resetCounters();
+        }
+        flusher.setBatchSize(SESSIONS);
+        flusher.flush();
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            assertEquals(1, shard.roundTrips());
+        }
+        sessionDao.deleteCache(ids.get(0));
+        assertEquals("value", sessionDao.readSession(ids.get(0)).getAttribute("key"));
+    }
+
+    @Test
+    public void multiKeyCommandsAreSplit() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            keys.add("key-" + i);
+            redisTemplate.opsForValue().set("key-" + i, new SimpleSession());
+        }
+        assertEquals(30, redisTemplate.opsForValue().multiGet(keys).size());
+        assertTrue(redisTemplate.opsForValue().multiGet(keys).stream().allMatch(session -> session != null));
+        redisTemplate.delete(keys);
+        for (InMemoryRedisConnectionFactory shard : shards.values()) {
+            assertEquals(0, shard.keyCount());
+        }
+    }
+
+    @Test
+    public void ringMovesOnlyAFractionOfKeys() {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < 8; i++) {
+            nodes.put("node-" + i, "node-" + i);
+        }
+        ConsistentHashRing<String> before = new ConsistentHashRing<>(nodes, 160);
+        nodes.put("node-8", "node-8");
+        ConsistentHashRing<String> after = new ConsistentHashRing<>(nodes, 160);
+        int moved = 0;
+        int keys = 100_000;
+        for (int i = 0; i < keys; i++) {
+            byte[] key = ("shiro-session:" + i).getBytes(StandardCharsets.UTF_8);
+            if (!before.node(key).equals(after.node(key))) {
+                assertEquals("node-8", after.node(key));
+                moved++;
+            }
+        }
+        assertEquals(keys / 9.0, moved, keys / 9.0 / 5);
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.joizhang.imooc.session.store;
+
+public class HeapSessionStoreTest extends SessionStoreContract {
+
+    @Override
+    protected SessionStore newStore(int timeoutSeconds) {
+        HeapSessionStore store = new HeapSessionStore();
+        store.setSessionTimeout(timeoutSeconds);
+        return store;
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.joizhang.imooc.session.store;
+
+import org.apache.shiro.session.Session;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedSessionStoreTest extends SessionStoreContract {
+
+    private final List<MappedSessionStore> stores = new ArrayList<>();
+
+    @Override
+    protected SessionStore newStore(int timeoutSeconds) throws Exception {
+        File file = File.createTempFile("sessions", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        return open(file, timeoutSeconds, 64 * 1024 * 1024);
+    }
+
+    private MappedSessionStore open(File file, int timeoutSeconds, int capacity) {
+        MappedSessionStore store = new MappedSessionStore(file);
+        store.setSessionTimeout(timeoutSeconds);
+        store.setCapacity(capacity);
+        store.setCompactIntervalMillis(0);
+        store.init();
+        stores.add(store);
+        return store;
+    }
+
+    private static File newFile() throws Exception {
+        File file = File.createTempFile("sessions", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        return file;
+    }
+
+    @Test
+    public void recoversIndexAfterRestart() throws Exception {
+        File file = newFile();
+        MappedSessionStore store = open(file, 60, 1024 * 1024);
+        Session kept = newSession();
+        Session updated = newSession();
+        Session deleted = newSession();
+        kept.setAttribute("k", "kept");
+        store.create(kept);
+        store.create(updated);
+        updated.setAttribute("k", "v2");
+        store.update(updated);
+        store.create(deleted);
+        store.delete(deleted.getId());
+        store.destroy();
+
+        MappedSessionStore reopened = open(file, 60, 1024 * 1024);
+        assertEquals(2, reopened.size());
+        assertEquals("kept", reopened.read(kept.getId()).getAttribute("k"));
+        assertEquals("v2", reopened.read(updated.getId()).getAttribute("k"));
+        assertNull(reopened.read(deleted.getId()));
+        assertEquals(store.usedBytes(), reopened.usedBytes());
+    }
+
+    @Test
+    public void keepsSessionsOnlyReadOrTouchedAcrossRestart() throws Exception {
+        File file = newFile();
+        MappedSessionStore store = open(file, 1, 1024 * 1024);
+        Session touched = newSession();
+        Session read = newSession();
+        Session idle = newSession();
+        store.create(touched);
+        store.create(read);
+        store.create(idle);
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(400);
+            store.touch(touched.getId(), System.currentTimeMillis());
+            assertNotNull(store.readAndRefresh(read.getId()));
+        }
+        store.destroy();
+
+        MappedSessionStore reopened = open(file, 1, 1024 * 1024);
+        assertEquals(2, reopened.size());
+        assertNotNull(reopened.read(touched.getId()));
+        assertNotNull(reopened.read(read.getId()));
+        assertNull(reopened.read(idle.getId()));
+
+        reopened.compact();
+        assertNotNull(reopened.read(touched.getId()));
+        assertNotNull(reopened.read(read.getId()));
+    }
+
+    @Test
+    public void stopsRecoveryAtCorruptRecord() throws Exception {
+        File file = newFile();
+        MappedSessionStore store = open(file, 60, 1024 * 1024);
+        Session first = newSession();
+        Session second = newSession();
+        store.create(first);
+        int firstEnd = store.usedBytes();
+        store.create(second);
+        store.destroy();
+
+        // 模拟崩溃时第二条记录只写了一半
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(store.usedBytes() - 4);
+            raf.writeInt(0xDEADBEEF);
+        }
+        MappedSessionStore reopened = open(file, 60, 1024 * 1024);
+        assertNotNull(reopened.read(first.getId()));
+        assertNull(reopened.read(second.getId()));
+        assertEquals(firstEnd, reopened.usedBytes());
+        // 新记录覆盖损坏的尾部
+        reopened.create(second);
+        assertNotNull(reopened.read(second.getId()));
+    }
+
+    @Test
+    public void compactionKeepsLiveSessions() throws Exception {
+        File file = newFile();
+        MappedSessionStore store = open(file, 60, 1024 * 1024);
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Session session = newSession();
+            sessions.add(session);
+            for (int v = 0; v < 10; v++) {
+                session.setAttribute("v", v);
+                store.update(session);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            store.delete(sessions.get(i).getId());
+        }
+        int before = store.usedBytes();
+        assertTrue(store.garbageRatio() > 0.9);
+        store.compact();
+        assertTrue(store.usedBytes() < before / 10);
+        assertEquals(0, store.garbageRatio(), 0.001);
+        store.destroy();
+
+        MappedSessionStore reopened = open(file, 60, 1024 * 1024);
+        assertEquals(50, reopened.size());
+        for (int i = 50; i < 100; i++) {
+            assertEquals(9, reopened.read(sessions.get(i).getId()).getAttribute("v"));
+        }
+        assertEquals(store.usedBytes(), reopened.usedBytes());
+    }
+
+    @Test
+    public void compactsWhenFull() throws Exception {
+        MappedSessionStore store = open(newFile(), 60, 64 * 1024);
+        Session session = newSession();
+        for (int i = 0; i < 10_000; i++) {
+            session.setAttribute("v", i);
+            store.update(session);
+        }
+        assertEquals(9999, store.read(session.getId()).getAttribute("v"));
+    }
+
+    @Test
+    public void recoversLargeFile() throws Exception {
+        File file = newFile();
+        MappedSessionStore store = open(file, 1800, 64 * 1024 * 1024);
+        int sessions = 50_000;
+        for (int i = 0; i < sessions; i++) {
+            Session session = newSession();
+            session.setAttribute("payload", "0123456789012345678901234567890123456789");
+            store.create(session);
+        }
+        store.destroy();
+        MappedSessionStore reopened = open(file, 1800, 64 * 1024 * 1024);
+        assertEquals(sessions, reopened.size());
+        assertEquals(store.usedBytes(), reopened.usedBytes());
+    }
+
+    @After
+    public void tearDown() {
+        stores.forEach(MappedSessionStore::destroy);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsWhenFileIsFull() throws Exception {
+        MappedSessionStore small = open(newFile(), 60, 4096);
+        for (int i = 0; i < 100; i++) {
+            small.create(newSession());
+        }
+        fail("capacity " + small.usedBytes());
+    }
+
+}
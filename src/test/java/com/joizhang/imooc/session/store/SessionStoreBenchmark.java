@@ -0,0 +1,94 @@
+package com.joizhang.imooc.session.store;
+
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 各SessionStore共用的基准：多线程各自创建一批Session，随后反复读取、刷新、更新并最终删除，
+ * 分阶段统计吞吐量。耗时与机器负载相关，不作为单元测试运行，需要时手动执行main
+ */
+public final class SessionStoreBenchmark {
+
+    private SessionStoreBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapSessionStore heap = new HeapSessionStore();
+        heap.setSessionTimeout(1800);
+        run("HeapSessionStore", heap, 4, 2000, 5);
+
+        File file = File.createTempFile("sessions", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        MappedSessionStore mapped = new MappedSessionStore(file);
+        mapped.setSessionTimeout(1800);
+        mapped.setCapacity(64 * 1024 * 1024);
+        mapped.setCompactIntervalMillis(0);
+        mapped.init();
+        try {
+            run("MappedSessionStore", mapped, 4, 2000, 5);
+        } finally {
+            mapped.destroy();
+        }
+    }
+
+    public static void run(String name, SessionStore store, int threads, int sessionsPerThread, int readsPerSession)
+            throws Exception {
+        List<List<Session>> sessions = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Session> own = new ArrayList<>(sessionsPerThread);
+            for (int i = 0; i < sessionsPerThread; i++) {
+                Session session = new ShiroSessionFactory().createSession(null);
+                ((SimpleSession) session).setId(name + "-" + t + "-" + i);
+                session.setAttribute("userName", "user" + i);
+                session.setAttribute("roles", new ArrayList<>(Arrays.asList("admin", "user")));
+                own.add(session);
+            }
+            sessions.add(own);
+        }
+        int total = threads * sessionsPerThread;
+        StringBuilder report = new StringBuilder(name).append(':');
+        report.append(phase("create", threads, total, sessions, store::create));
+        report.append(phase("read", threads, total * readsPerSession, sessions, session -> {
+            for (int r = 0; r < readsPerSession; r++) {
+                store.read(session.getId());
+            }
+        }));
+        report.append(phase("readAndRefresh", threads, total, sessions,
+                session -> store.readAndRefresh(session.getId())));
+        report.append(phase("update", threads, total, sessions, store::update));
+        report.append(phase("delete", threads, total, sessions, session -> store.delete(session.getId())));
+        System.out.println(report);
+    }
+
+    private static String phase(String phase, int threads, int operations, List<List<Session>> sessions,
+                                Consumer<Session> operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<Session> own : sessions) {
+                futures.add(executor.submit(() -> own.forEach(operation)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            return String.format(" %s %,.0f ops/s", phase, operations / (nanos / (double) TimeUnit.SECONDS.toNanos(1)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
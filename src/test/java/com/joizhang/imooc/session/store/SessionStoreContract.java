@@ -0,0 +1,81 @@
+package com.joizhang.imooc.session.store;
+
+import com.joizhang.imooc.session.ShiroSessionFactory;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * 所有SessionStore实现共同遵守的约定，各实现的测试继承此类
+ */
+public abstract class SessionStoreContract {
+
+    /**
+     * @param timeoutSeconds Session的过期时间
+     */
+    protected abstract SessionStore newStore(int timeoutSeconds) throws Exception;
+
+    protected static Session newSession() {
+        Session session = new ShiroSessionFactory().createSession(null);
+        ((SimpleSession) session).setId(UUID.randomUUID().toString());
+        return session;
+    }
+
+    @Test
+    public void createReadUpdateDelete() throws Exception {
+        SessionStore store = newStore(60);
+        Session session = newSession();
+        session.setAttribute("k", "v1");
+        store.create(session);
+        assertEquals("v1", store.read(session.getId()).getAttribute("k"));
+
+        session.setAttribute("k", "v2");
+        store.update(session);
+        Session read = store.readAndRefresh(session.getId());
+        assertEquals("v2", read.getAttribute("k"));
+        assertEquals(session.getStartTimestamp(), read.getStartTimestamp());
+        // 每次读取得到独立的对象
+        assertNotSame(read, store.read(session.getId()));
+
+        store.delete(session.getId());
+        assertNull(store.read(session.getId()));
+        assertNull(store.readAndRefresh(session.getId()));
+        assertNull(store.read("missing"));
+    }
+
+    @Test
+    public void sessionsExpireUnlessRefreshed() throws Exception {
+        SessionStore store = newStore(1);
+        Session idle = newSession();
+        Session active = newSession();
+        store.create(idle);
+        store.create(active);
+        Thread.sleep(600);
+        assertNotNull(store.readAndRefresh(active.getId()));
+        Thread.sleep(600);
+        assertNull(store.read(idle.getId()));
+        assertNotNull(store.read(active.getId()));
+    }
+
+    @Test
+    public void activeButUnchangedSessionSurvivesPastTimeout() throws Exception {
+        SessionStore store = newStore(1);
+        Session idle = newSession();
+        Session active = newSession();
+        store.create(idle);
+        store.create(active);
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(400);
+            store.touch(active.getId(), System.currentTimeMillis());
+        }
+        assertNull(store.read(idle.getId()));
+        assertNotNull(store.read(active.getId()));
+        store.touch("missing", System.currentTimeMillis());
+        assertNull(store.read("missing"));
+    }
+
+}